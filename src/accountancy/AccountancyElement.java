@@ -1,11 +1,17 @@
 package accountancy;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigDecimal;
 
 /**
  * This is the parent class of accounts and budgets. It implements the common
- * fields, like name and value, with the associated methods.
+ * fields, like name and value, with the associated methods.<br/>
+ * <br/>
+ * The value can be stored in fixed-point (see {@link Money}) by giving a scale
+ * to the element. The {@link BigDecimal} value is then only a view of the
+ * fixed-point value, and is used directly if the fixed-point cannot represent
+ * the value.
  * 
  * @author Matthieu Vergne <matthieu.vergne@gmail.com>
  * 
@@ -26,11 +32,25 @@ public class AccountancyElement implements Comparable<AccountancyElement>,
     private String name = DEFAULT_NAME;
     /**
      * The value (amount of money) of the element. At the creation of the
-     * element, it is initialized to zero ({@link BigDecimal#ZERO} ).
+     * element, it is initialized to zero ({@link BigDecimal#ZERO} ). It is null
+     * while the fixed-point value has not been converted.
      */
     private BigDecimal value = BigDecimal.ZERO;
+    /**
+     * The scale of the fixed-point value, {@link Money#NO_SCALE} if this
+     * representation is not used.
+     */
+    private transient int scale = Money.NO_SCALE;
+    /**
+     * The fixed-point value, {@link Money#NOT_REPRESENTABLE} if the value
+     * cannot be represented at the current scale.
+     */
+    private transient long units = Money.NOT_REPRESENTABLE;
 
     public BigDecimal getValue() {
+        if (value == null) {
+            value = Money.toBigDecimal(units, scale);
+        }
         return value;
     }
 
@@ -46,6 +66,87 @@ public class AccountancyElement implements Comparable<AccountancyElement>,
             throw new NullPointerException();
         }
         value = newValue;
+        if (scale != Money.NO_SCALE) {
+            units = Money.toUnits(newValue, scale);
+        }
+    }
+
+    /**
+     * Change the fixed-point value. The {@link BigDecimal} value will be
+     * computed at the next need.
+     * 
+     * @param newUnits
+     *            the value to set, in units at the scale of this element
+     */
+    protected void setUnits(long newUnits) {
+        units = newUnits;
+        value = null;
+    }
+
+    /**
+     * Add an amount to the value of this element. If the amount and the value
+     * of this element are in fixed-point with the same scale, the calculation
+     * is done without creating any {@link BigDecimal}.
+     * 
+     * @param deltaUnits
+     *            the amount to add, in units
+     * @param deltaScale
+     *            the scale of the amount
+     */
+    public void addUnits(long deltaUnits, int deltaScale) {
+        if (isFixedPoint() && deltaScale == scale) {
+            long sum = Money.add(units, deltaUnits);
+            if (sum != Money.NOT_REPRESENTABLE) {
+                setUnits(sum);
+                return;
+            }
+        }
+        setValue(getValue().add(Money.toBigDecimal(deltaUnits, deltaScale)));
+    }
+
+    /**
+     * Give a scale to the value of this element, to use a fixed-point value.
+     * 
+     * @param newScale
+     *            the scale of the value, {@link Money#NO_SCALE} to not use
+     *            the fixed-point representation
+     */
+    public void setScale(int newScale) {
+        if (newScale < Money.NO_SCALE) {
+            throw new IllegalArgumentException("invalid scale: " + newScale);
+        }
+        BigDecimal currentValue = getValue();
+        scale = newScale;
+        units = newScale == Money.NO_SCALE
+                ? Money.NOT_REPRESENTABLE
+                : Money.toUnits(currentValue, newScale);
+    }
+
+    /**
+     * 
+     * @return the scale of the fixed-point value, {@link Money#NO_SCALE} if
+     *         this representation is not used
+     */
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * 
+     * @return true if the value is currently stored in fixed-point, false if
+     *         it is a {@link BigDecimal}
+     */
+    public boolean isFixedPoint() {
+        return units != Money.NOT_REPRESENTABLE;
+    }
+
+    /**
+     * 
+     * @return the fixed-point value, {@link Money#NOT_REPRESENTABLE} if this
+     *         representation is not used
+     */
+    public long getUnits() {
+        return units;
     }
 
     /**
@@ -71,4 +172,16 @@ public class AccountancyElement implements Comparable<AccountancyElement>,
     public String toString() {
         return getName() + " (" + getValue() + ")";
     }
+
+    private void writeObject(java.io.ObjectOutputStream out) throws IOException {
+        getValue();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        scale = Money.NO_SCALE;
+        units = Money.NOT_REPRESENTABLE;
+    }
 }
@@ -0,0 +1,86 @@
+package accountancy;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * This class gives the tools to manage amounts of money in fixed-point: an
+ * amount is a long counting minor units (like cents) at a given scale (the
+ * number of decimal digits of a unit, like 2 for cents). It avoids to create
+ * new {@link BigDecimal} at each calculation, which is especially interesting
+ * when a lot of movements are applied.<br/>
+ * <br/>
+ * When an amount cannot be represented (too many decimals or overflow),
+ * {@link #NOT_REPRESENTABLE} is given, so the caller can use
+ * {@link BigDecimal} instead.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public final class Money {
+
+    /**
+     * The scale telling the fixed-point representation is not used.
+     */
+    public static final int NO_SCALE = -1;
+    /**
+     * The value given when an amount cannot be represented in fixed-point. It
+     * is the lowest long, so this one is never used as an amount.
+     */
+    public static final long NOT_REPRESENTABLE = Long.MIN_VALUE;
+
+    private Money() {
+    }
+
+    /**
+     *
+     * @param value
+     *            the amount to convert
+     * @param scale
+     *            the scale of the units
+     * @return the number of units corresponding to the amount,
+     *         {@link #NOT_REPRESENTABLE} if the amount has too many decimals or
+     *         is too big
+     */
+    public static long toUnits(BigDecimal value, int scale) {
+        if (value.scale() > scale) {
+            value = value.stripTrailingZeros();
+            if (value.scale() > scale) {
+                return NOT_REPRESENTABLE;
+            }
+        }
+        BigInteger units = value.setScale(scale).unscaledValue();
+        return units.bitLength() > 63
+               ? NOT_REPRESENTABLE
+               : units.longValue();
+    }
+
+    /**
+     *
+     * @param units
+     *            a number of units (not {@link #NOT_REPRESENTABLE})
+     * @param scale
+     *            the scale of the units
+     * @return the corresponding amount
+     */
+    public static BigDecimal toBigDecimal(long units, int scale) {
+        return BigDecimal.valueOf(units, scale);
+    }
+
+    /**
+     *
+     * @param units1
+     *            a number of units
+     * @param units2
+     *            another number of units, at the same scale
+     * @return the sum of the units, {@link #NOT_REPRESENTABLE} if the sum
+     *         overflows
+     */
+    public static long add(long units1, long units2) {
+        long sum = units1 + units2;
+        if (((units1 ^ sum) & (units2 ^ sum)) < 0) {
+            return NOT_REPRESENTABLE;
+        }
+        return sum;
+    }
+}
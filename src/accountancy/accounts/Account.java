@@ -2,8 +2,10 @@ package accountancy.accounts;
 
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 
 import accountancy.AccountancyElement;
+import accountancy.Money;
 
 /**
  * An account is a stock of money. It can have a limit, like a cap in a bank
@@ -27,6 +29,12 @@ public class Account extends AccountancyElement {
      * set to {@link Account#INFINITE_LIMIT}.
      */
     private transient BigDecimal limit = INFINITE_LIMIT;
+    /**
+     * The limit of this account in units, when the value is in fixed-point.
+     * It is the greatest number of units which does not overflow the limit, so
+     * the limit can be checked without creating any {@link BigDecimal}.
+     */
+    private transient long limitUnits = Long.MAX_VALUE;
 
     /*
      * This method is overrided to consider the limit of the account.
@@ -62,6 +70,45 @@ public class Account extends AccountancyElement {
             throw new NullPointerException();
         }
         limit = newLimit;
+        updateLimitUnits();
+    }
+
+    /*
+     * This method is overrided to consider the limit of the account.
+     */
+    @Override
+    protected void setUnits(long newUnits) {
+        if (newUnits > limitUnits) {
+            throw new AccountLimitException(limit, Money.toBigDecimal(
+                    newUnits, getScale()));
+        }
+        super.setUnits(newUnits);
+    }
+
+    /*
+     * This method is overrided to update the limit in units.
+     */
+    @Override
+    public void setScale(int newScale) {
+        super.setScale(newScale);
+        updateLimitUnits();
+    }
+
+    /**
+     * Compute the limit in units corresponding to the current limit and scale.
+     */
+    private void updateLimitUnits() {
+        int scale = getScale();
+        if (scale == Money.NO_SCALE || limit == INFINITE_LIMIT
+            || limit.compareTo(Money.toBigDecimal(Long.MAX_VALUE, scale)) >= 0) {
+            limitUnits = Long.MAX_VALUE;
+        } else if (limit.compareTo(Money.toBigDecimal(Long.MIN_VALUE, scale))
+                   <= 0) {
+            limitUnits = Long.MIN_VALUE;
+        } else {
+            limitUnits = limit.setScale(scale, RoundingMode.FLOOR).
+                    unscaledValue().longValue();
+        }
     }
 
     public BigDecimal getLimit() {
@@ -100,5 +147,6 @@ public class Account extends AccountancyElement {
         this.limit = limitDef.equals("")
                      ? INFINITE_LIMIT
                      : new BigDecimal(limitDef);
+        this.limitUnits = Long.MAX_VALUE;
     }
 }
@@ -0,0 +1,27 @@
+package accountancy.movements;
+
+import java.math.BigDecimal;
+
+import accountancy.budgets.Budget;
+
+/**
+ * An assignment visitor is called for each budget assigned in a movement (see
+ * {@link Movement#forEachAssignment(AssignmentVisitor)}).
+ * 
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ * 
+ * @param <E>
+ *            the exception the visitor can throw ({@link RuntimeException} if
+ *            it does not throw checked exceptions)
+ */
+public interface AssignmentVisitor<E extends Exception> {
+
+    /**
+     * 
+     * @param budget
+     *            the budget assigned
+     * @param value
+     *            the value assigned to the budget
+     */
+    public void visit(Budget budget, BigDecimal value) throws E;
+}
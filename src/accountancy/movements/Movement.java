@@ -1,8 +1,10 @@
 package accountancy.movements;
 
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.Map;
 
+import accountancy.Money;
 import accountancy.accounts.Account;
 import accountancy.budgets.Budget;
 import java.util.Arrays;
@@ -25,15 +27,50 @@ public class Movement implements Cloneable {
      * checked relatively to this one.
      */
     private BigDecimal value = BigDecimal.ZERO;
+    /**
+     * The scale of the fixed-point value, {@link Money#NO_SCALE} if this
+     * representation is not used.
+     */
+    private int scale = Money.NO_SCALE;
+    /**
+     * The complete value of the movement in fixed-point (see {@link Money}),
+     * {@link Money#NOT_REPRESENTABLE} if it cannot be represented at the
+     * current scale.
+     */
+    private long units = Money.NOT_REPRESENTABLE;
     /**
      * The account to apply the movement on.
      */
     private Account account;
     /**
-     * The list of budgets to apply the movement on.
+     * No budget assigned, shared by all the movements without assignments.
+     */
+    private static final Budget[] NO_BUDGETS = new Budget[0];
+    /**
+     * No value assigned, shared by all the movements without assignments.
+     */
+    private static final BigDecimal[] NO_VALUES = new BigDecimal[0];
+    /**
+     * The list of budgets to apply the movement on. It is created at the first
+     * assignment and it is null while the movement is locked, the assignments
+     * being frozen in {@link #frozenBudgets} and {@link #frozenValues}.
+     */
+    private Map<Budget, BigDecimal> assignments = null;
+    /**
+     * The budgets assigned, sorted by name, while the movement is locked. As a
+     * locked movement cannot change, the assignments are kept in these compact
+     * arrays rather than in a map.
+     */
+    private Budget[] frozenBudgets = NO_BUDGETS;
+    /**
+     * The values assigned to the {@link #frozenBudgets}, in the same order.
+     */
+    private BigDecimal[] frozenValues = NO_VALUES;
+    /**
+     * The total value assigned to the budgets, updated at each assignment so
+     * it does not need to be computed again.
      */
-    private final Map<Budget, BigDecimal> assignments =
-                                          new TreeMap<Budget, BigDecimal>();
+    private BigDecimal totalAssigned = BigDecimal.ZERO;
     /**
      * Tell if this movement is locked. A locked movement implies no possible
      * modifications of this movement.
@@ -76,6 +113,54 @@ public class Movement implements Cloneable {
         // basically a negative value should be forbidden, as a negative value
         // is equivalent to a positive value in the other sense
         this.value = value;
+        if (scale != Money.NO_SCALE) {
+            units = Money.toUnits(value, scale);
+        }
+    }
+
+    /**
+     * Give a scale to the value of this movement, to have also a fixed-point
+     * value. It does not change the value, so it can be done on a locked
+     * movement.
+     * 
+     * @param scale
+     *            the scale of the value, {@link Money#NO_SCALE} to not use
+     *            the fixed-point representation
+     */
+    public void setScale(int scale) {
+        if (scale < Money.NO_SCALE) {
+            throw new IllegalArgumentException("invalid scale: " + scale);
+        }
+        this.scale = scale;
+        units = scale == Money.NO_SCALE
+                ? Money.NOT_REPRESENTABLE
+                : Money.toUnits(value, scale);
+    }
+
+    /**
+     * 
+     * @return the scale of the fixed-point value, {@link Money#NO_SCALE} if
+     *         this representation is not used
+     */
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * 
+     * @return true if the value has a fixed-point representation
+     */
+    public boolean isFixedPoint() {
+        return units != Money.NOT_REPRESENTABLE;
+    }
+
+    /**
+     * 
+     * @return the value in fixed-point, {@link Money#NOT_REPRESENTABLE} if this
+     *         representation is not used
+     */
+    public long getUnits() {
+        return units;
     }
 
     public void setAccount(Account account) {
@@ -109,27 +194,188 @@ public class Movement implements Cloneable {
      */
     public void assignValueToBudget(Budget budget, BigDecimal value) {
         checkLock();
-        BigDecimal ancientValue = assignments.remove(budget);
-        if (getTotalValueAssigned().add(value).compareTo(getValue()) > 0) {
-            assignments.put(budget, ancientValue);
+        if (value == null) {
+            throw new NullPointerException("the value cannot be null");
+        }
+        if (assignments == null) {
+            assignments = new TreeMap<Budget, BigDecimal>();
+        }
+        BigDecimal ancientValue = assignments.get(budget);
+        BigDecimal total = totalAssigned.add(value);
+        if (ancientValue != null) {
+            total = total.subtract(ancientValue);
+        }
+        if (total.compareTo(getValue()) > 0) {
             throw new MovementExceededValueException();
         }
         assignments.put(budget, value);
+        totalAssigned = total;
     }
 
     /**
-     *
-     * @return the list of the budgets assigned in this movement
+     * Assign parts of this movement to several budgets at once. The total
+     * assigned is checked only once, after all the assignments.
+     * 
+     * @param budgets
+     *            the budgets to apply the values to
+     * @param values
+     *            the amounts of money to apply to the budgets, in the same
+     *            order
+     * @exception MovementExceededValueException
+     *                if the total assigned would exceed the value of the
+     *                movement (then no assignment is done)
+     * @exception NullPointerException
+     *                if a budget or a value is null (then no assignment is
+     *                done)
      */
-    public Budget[] getBudgetsAssigned() {
-        Budget[] budgets = assignments.keySet().toArray(new Budget[0]);
-        Arrays.sort(budgets, new Comparator<Budget>() {
+    public void assignValuesToBudgets(Budget[] budgets, BigDecimal[] values) {
+        checkLock();
+        if (budgets.length != values.length) {
+            throw new IllegalArgumentException("there is " + budgets.length
+                                               + " budgets for "
+                                               + values.length + " values");
+        }
+        for (int index = 0; index < budgets.length; index++) {
+            if (budgets[index] == null) {
+                throw new NullPointerException("the budget cannot be null");
+            } else if (values[index] == null) {
+                throw new NullPointerException("the value cannot be null");
+            }
+        }
+
+        boolean created = assignments == null;
+        if (created) {
+            assignments = new TreeMap<Budget, BigDecimal>();
+        }
+        BigDecimal[] ancientValues = new BigDecimal[budgets.length];
+        BigDecimal total = totalAssigned;
+        int assigned = 0;
+        try {
+            for (; assigned < budgets.length; assigned++) {
+                ancientValues[assigned] = assignments.put(budgets[assigned],
+                        values[assigned]);
+                if (ancientValues[assigned] != null) {
+                    total = total.subtract(ancientValues[assigned]);
+                }
+                total = total.add(values[assigned]);
+            }
+            if (total.compareTo(getValue()) > 0) {
+                throw new MovementExceededValueException();
+            }
+        } catch (RuntimeException ex) {
+            // restore in the reverse order, in case of a budget given twice
+            for (int index = assigned - 1; index >= 0; index--) {
+                if (ancientValues[index] == null) {
+                    assignments.remove(budgets[index]);
+                } else {
+                    assignments.put(budgets[index], ancientValues[index]);
+                }
+            }
+            if (created) {
+                assignments = null;
+            }
+            throw ex;
+        }
+        totalAssigned = total;
+    }
+
+    /**
+     * Split the complete value of this movement between several budgets,
+     * proportionally to the given weights. The parts are rounded to the scale
+     * of the value of the movement. The rounding remainder is given unit by
+     * unit to the parts which lost the most by rounding (the first ones in
+     * case of equality), so the parts always sum to the value of the movement
+     * and the same split always gives the same parts.
+     * 
+     * @param budgets
+     *            the budgets to split the value between
+     * @param weights
+     *            the weights of the budgets, in the same order (positive or
+     *            zero, with a positive sum)
+     * @exception MovementExceededValueException
+     *                if other budgets are already assigned, so the value
+     *                cannot be fully split (then no assignment is done)
+     */
+    public void splitValueToBudgets(Budget[] budgets, BigDecimal[] weights) {
+        checkLock();
+        if (budgets.length != weights.length) {
+            throw new IllegalArgumentException("there is " + budgets.length
+                                               + " budgets for "
+                                               + weights.length + " weights");
+        }
+        int weightsScale = 0;
+        for (BigDecimal weight : weights) {
+            if (weight.signum() < 0) {
+                throw new IllegalArgumentException("negative weight: " + weight);
+            }
+            weightsScale = Math.max(weightsScale, weight.scale());
+        }
+        BigInteger[] integerWeights = new BigInteger[weights.length];
+        BigInteger totalWeight = BigInteger.ZERO;
+        for (int index = 0; index < weights.length; index++) {
+            integerWeights[index] = weights[index].setScale(weightsScale).
+                    unscaledValue();
+            totalWeight = totalWeight.add(integerWeights[index]);
+        }
+        if (totalWeight.signum() == 0) {
+            throw new IllegalArgumentException("the sum of the weights is zero");
+        }
+
+        // parts = floor(units * weight / totalWeight), all in units
+        BigDecimal value = getValue();
+        BigInteger units = value.unscaledValue();
+        BigInteger[] parts = new BigInteger[weights.length];
+        final BigInteger[] remainders = new BigInteger[weights.length];
+        BigInteger leftUnits = units;
+        for (int index = 0; index < weights.length; index++) {
+            BigInteger[] division = units.multiply(integerWeights[index]).
+                    divideAndRemainder(totalWeight);
+            if (division[1].signum() < 0) {
+                division[0] = division[0].subtract(BigInteger.ONE);
+                division[1] = division[1].add(totalWeight);
+            }
+            parts[index] = division[0];
+            remainders[index] = division[1];
+            leftUnits = leftUnits.subtract(division[0]);
+        }
+
+        // the left units (less than the number of parts) go to the greatest
+        // remainders
+        Integer[] order = new Integer[weights.length];
+        for (int index = 0; index < order.length; index++) {
+            order[index] = index;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
 
-            public int compare(Budget b1, Budget b2) {
-                return b1.getName().compareTo(b2.getName());
+            public int compare(Integer i1, Integer i2) {
+                int comparison = remainders[i2].compareTo(remainders[i1]);
+                return comparison != 0
+                       ? comparison
+                       : i1.compareTo(i2);
             }
         });
-        return budgets;
+        int left = leftUnits.intValue();
+        for (int rank = 0; rank < left; rank++) {
+            parts[order[rank]] = parts[order[rank]].add(BigInteger.ONE);
+        }
+
+        BigDecimal[] values = new BigDecimal[parts.length];
+        for (int index = 0; index < parts.length; index++) {
+            values[index] = new BigDecimal(parts[index], value.scale());
+        }
+        assignValuesToBudgets(budgets, values);
+    }
+
+    /**
+     *
+     * @return the list of the budgets assigned in this movement
+     */
+    public Budget[] getBudgetsAssigned() {
+        if (assignments == null) {
+            return frozenBudgets.clone();
+        }
+        // the map is already sorted by name
+        return assignments.keySet().toArray(new Budget[assignments.size()]);
     }
 
     /**
@@ -137,15 +383,52 @@ public class Movement implements Cloneable {
      * @return the list of the names of the budgets assigned in this movement
      */
     public String[] getNamesOfBudgetsAssigned() {
-        String[] budgets = new String[assignments.size()];
-        int count = 0;
-        for (Budget budget : getBudgetsAssigned()) {
-            budgets[count++] = budget.getName();
+        String[] budgets = new String[getAssignmentsCount()];
+        if (assignments == null) {
+            for (int index = 0; index < budgets.length; index++) {
+                budgets[index] = frozenBudgets[index].getName();
+            }
+        } else {
+            int count = 0;
+            for (Budget budget : assignments.keySet()) {
+                budgets[count++] = budget.getName();
+            }
         }
-        Arrays.sort(budgets);
         return budgets;
     }
 
+    /**
+     * 
+     * @return the number of budgets assigned in this movement
+     */
+    public int getAssignmentsCount() {
+        return assignments == null
+               ? frozenBudgets.length
+               : assignments.size();
+    }
+
+    /**
+     * Call the visitor for each budget assigned in this movement, sorted by
+     * name. Contrary to {@link #getBudgetsAssigned()}, no array is created.
+     * 
+     * @param visitor
+     *            the visitor to call
+     * @exception E
+     *                if the visitor throws it (then the browsing is stopped)
+     */
+    public <E extends Exception> void forEachAssignment(
+            AssignmentVisitor<E> visitor) throws E {
+        if (assignments == null) {
+            for (int index = 0; index < frozenBudgets.length; index++) {
+                visitor.visit(frozenBudgets[index], frozenValues[index]);
+            }
+        } else {
+            for (Map.Entry<Budget, BigDecimal> entry : assignments.entrySet()) {
+                visitor.visit(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
     /**
      * Give the value assigned to the given budget.
      *
@@ -153,6 +436,12 @@ public class Movement implements Cloneable {
      * @return
      */
     public BigDecimal getValueForBudget(Budget budget) {
+        if (assignments == null) {
+            int index = Arrays.binarySearch(frozenBudgets, budget);
+            return index < 0
+                   ? null
+                   : frozenValues[index];
+        }
         return assignments.get(budget);
     }
 
@@ -161,11 +450,7 @@ public class Movement implements Cloneable {
      * @return the total value of all the budgets assigned
      */
     public BigDecimal getTotalValueAssigned() {
-        BigDecimal total = BigDecimal.ZERO;
-        for (BigDecimal value : assignments.values()) {
-            total = total.add(value);
-        }
-        return total;
+        return totalAssigned;
     }
 
     /**
@@ -176,7 +461,12 @@ public class Movement implements Cloneable {
      */
     public void unassignBudget(Budget budget) {
         checkLock();
-        assignments.remove(budget);
+        if (assignments != null) {
+            BigDecimal value = assignments.remove(budget);
+            if (value != null) {
+                totalAssigned = totalAssigned.subtract(value);
+            }
+        }
     }
 
     public void setSense(Sense sense) {
@@ -191,10 +481,53 @@ public class Movement implements Cloneable {
         return sense;
     }
 
+    /**
+     * Lock or unlock this movement. When a movement is locked, its assignments
+     * are frozen in a compact form, they come back in a map when it is
+     * unlocked.
+     */
     public void setLocked(boolean locked) {
+        if (locked && !this.locked) {
+            freezeAssignments();
+        } else if (!locked && this.locked) {
+            thawAssignments();
+        }
         this.locked = locked;
     }
 
+    /**
+     * Move the assignments from the map to the compact arrays.
+     */
+    private void freezeAssignments() {
+        if (assignments != null && !assignments.isEmpty()) {
+            int size = assignments.size();
+            frozenBudgets = new Budget[size];
+            frozenValues = new BigDecimal[size];
+            int index = 0;
+            // the map is sorted by name, like the frozen budgets
+            for (Map.Entry<Budget, BigDecimal> entry : assignments.entrySet()) {
+                frozenBudgets[index] = entry.getKey();
+                frozenValues[index] = entry.getValue();
+                index++;
+            }
+        }
+        assignments = null;
+    }
+
+    /**
+     * Move the assignments from the compact arrays to the map.
+     */
+    private void thawAssignments() {
+        if (frozenBudgets.length > 0) {
+            assignments = new TreeMap<Budget, BigDecimal>();
+            for (int index = 0; index < frozenBudgets.length; index++) {
+                assignments.put(frozenBudgets[index], frozenValues[index]);
+            }
+        }
+        frozenBudgets = NO_BUDGETS;
+        frozenValues = NO_VALUES;
+    }
+
     public boolean isLocked() {
         return locked;
     }
@@ -202,12 +535,16 @@ public class Movement implements Cloneable {
     @Override
     public Movement clone() {
         Movement clone = new Movement();
+        clone.setScale(getScale());
         clone.setSense(getSense());
         clone.setAccount(getAccount());
         clone.setValue(getValue());
-        for (Budget budget : assignments.keySet()) {
-            clone.assignValueToBudget(budget, assignments.get(budget));
+        Budget[] budgets = getBudgetsAssigned();
+        BigDecimal[] values = new BigDecimal[budgets.length];
+        for (int index = 0; index < budgets.length; index++) {
+            values[index] = getValueForBudget(budgets[index]);
         }
+        clone.assignValuesToBudgets(budgets, values);
         return clone;
     }
 
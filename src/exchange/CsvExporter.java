@@ -0,0 +1,161 @@
+package exchange;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+
+import accountancy.accounts.Account;
+import accountancy.budgets.Budget;
+import accountancy.movements.AssignmentVisitor;
+import accountancy.movements.Movement;
+
+/**
+ * A CSV exporter writes a record by line, its first field giving its type:
+ *
+ * <pre>
+ * account,name,value,limit
+ * budget,name,value
+ * link,account,budget,value
+ * movement,id,account,sense,value,applied,budget,value,budget,value...
+ * </pre>
+ *
+ * An infinite limit and a link without value are written as empty fields,
+ * and each budget assigned by a movement adds a pair of fields (its name and
+ * the value assigned). The fields containing the separator, a quote or a line
+ * break are quoted, their quotes being doubled.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public class CsvExporter extends Exporter {
+
+    private final char separator;
+    /**
+     * The visitor writing the assignments of a movement.
+     */
+    private final AssignmentVisitor<IOException> assignmentWriter = new AssignmentVisitor<IOException>() {
+
+        @Override
+        public void visit(Budget budget, BigDecimal value) throws IOException {
+            write(separator);
+            writeField(budget.getName());
+            write(separator);
+            writeDecimal(value);
+        }
+    };
+
+    /**
+     * Create an exporter separating the fields by a comma.
+     *
+     * @param writer
+     *            the writer of the export
+     */
+    public CsvExporter(Writer writer) {
+        this(writer, ',');
+    }
+
+    /**
+     *
+     * @param writer
+     *            the writer of the export
+     * @param separator
+     *            the separator of the fields
+     */
+    public CsvExporter(Writer writer, char separator) {
+        super(writer);
+        this.separator = separator;
+    }
+
+    @Override
+    protected void start() {
+    }
+
+    @Override
+    protected void writeAccount(Account account) throws IOException {
+        write("account");
+        write(separator);
+        writeField(account.getName());
+        write(separator);
+        writeDecimal(account.getValue());
+        write(separator);
+        if (account.getLimit() != Account.INFINITE_LIMIT) {
+            writeDecimal(account.getLimit());
+        }
+        write('\n');
+    }
+
+    @Override
+    protected void writeBudget(Budget budget) throws IOException {
+        write("budget");
+        write(separator);
+        writeField(budget.getName());
+        write(separator);
+        writeDecimal(budget.getValue());
+        write('\n');
+    }
+
+    @Override
+    protected void writeLink(Account account, Budget budget, BigDecimal value)
+            throws IOException {
+        write("link");
+        write(separator);
+        writeField(account.getName());
+        write(separator);
+        writeField(budget.getName());
+        write(separator);
+        if (value != null) {
+            writeDecimal(value);
+        }
+        write('\n');
+    }
+
+    @Override
+    protected void writeMovement(long id, Movement movement)
+            throws IOException {
+        write("movement");
+        write(separator);
+        writeLong(id);
+        write(separator);
+        if (movement.getAccount() != null) {
+            writeField(movement.getAccount().getName());
+        }
+        write(separator);
+        write(movement.getSense().name());
+        write(separator);
+        writeValue(movement);
+        write(separator);
+        write(movement.isLocked()
+              ? "true"
+              : "false");
+        movement.forEachAssignment(assignmentWriter);
+        write('\n');
+    }
+
+    @Override
+    protected void end() {
+    }
+
+    /**
+     * Write a text field, quoted if needed.
+     */
+    private void writeField(String text) throws IOException {
+        boolean quoted = false;
+        for (int index = 0; index < text.length() && !quoted; index++) {
+            char c = text.charAt(index);
+            quoted = c == separator || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quoted) {
+            write(text);
+        } else {
+            write('"');
+            for (int index = 0; index < text.length(); index++) {
+                char c = text.charAt(index);
+                if (c == '"') {
+                    write('"');
+                }
+                write(c);
+            }
+            write('"');
+        }
+    }
+}
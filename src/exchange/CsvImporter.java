@@ -0,0 +1,458 @@
+package exchange;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import accountancy.accounts.Account;
+import accountancy.budgets.Budget;
+import accountancy.movements.Movement;
+import accountancy.movements.Movement.Sense;
+import manager.Manager;
+import manager.UnknownAccountException;
+import manager.UnknownBudgetException;
+
+/**
+ * A CSV importer adds the lines of a CSV file (like a bank statement) as
+ * movements of a manager. The columns giving the account, the sense, the
+ * value and the budgets of the movements are configured, then the file is
+ * streamed: the lines are parsed in place (see {@link CsvReader}), the
+ * accounts and budgets are found by their names through a cache, and the
+ * movements are added (and applied) by batches (see
+ * {@link Manager#addMovements(List, boolean)}). So the memory used does not
+ * depend on the size of the file.<br/>
+ * <br/>
+ * If a line cannot be imported, an {@link InvalidLineException} is thrown,
+ * the movements of the previous lines staying in the manager (the movement
+ * of the line stays too if it is valid but cannot be applied, see
+ * {@link Manager#addMovements(List, boolean)}).
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public class CsvImporter {
+
+    /**
+     * The default number of movements added to the manager at once.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+    /**
+     * The size of the buffer used to read the file.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * The maximum number of digits parsed without {@link BigDecimal}.
+     */
+    private static final int MAX_LONG_DIGITS = 18;
+    private final Manager manager;
+    private char separator = ',';
+    private char decimalSeparator = '.';
+    private int headerLines = 0;
+    /**
+     * The column of the account, -1 if all the movements have the same
+     * account ({@link #account}).
+     */
+    private int accountColumn = -1;
+    private Account account = null;
+    private int valueColumn = -1;
+    /**
+     * The column of the sense, -1 if the sense is given by the sign of the
+     * value.
+     */
+    private int senseColumn = -1;
+    private char[] inputToken = null;
+    private char[] outputToken = null;
+    /**
+     * The columns of the budget names, each one with the column of the value
+     * at the same index.
+     */
+    private final List<Integer> budgetColumns = new ArrayList<Integer>();
+    private final List<Integer> budgetValueColumns = new ArrayList<Integer>();
+    private boolean applied = true;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     *
+     * @param manager
+     *            the manager to add the movements to
+     */
+    public CsvImporter(Manager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     *
+     * @param separator
+     *            the separator of the fields, ',' by default
+     */
+    public void setSeparator(char separator) {
+        this.separator = separator;
+    }
+
+    /**
+     *
+     * @param decimalSeparator
+     *            the separator of the decimals in the values, '.' by default
+     */
+    public void setDecimalSeparator(char decimalSeparator) {
+        this.decimalSeparator = decimalSeparator;
+    }
+
+    /**
+     *
+     * @param headerLines
+     *            the number of lines to ignore at the beginning of the file
+     *            (0 by default)
+     */
+    public void setHeaderLines(int headerLines) {
+        if (headerLines < 0) {
+            throw new IllegalArgumentException("invalid number of lines: "
+                                               + headerLines);
+        }
+        this.headerLines = headerLines;
+    }
+
+    /**
+     *
+     * @param column
+     *            the column (starting at 0) giving the name of the account
+     *            of each movement
+     */
+    public void setAccountColumn(int column) {
+        checkColumn(column);
+        accountColumn = column;
+        account = null;
+    }
+
+    /**
+     * Give the same account to all the movements, as for the statement of a
+     * single bank account.
+     *
+     * @param accountName
+     *            the name of the account of the movements
+     * @exception UnknownAccountException
+     *                if the account is not in the manager
+     */
+    public void setAccount(String accountName) {
+        Account newAccount = manager.getAccount(accountName);
+        if (newAccount == null) {
+            throw new UnknownAccountException(accountName);
+        }
+        account = newAccount;
+        accountColumn = -1;
+    }
+
+    /**
+     *
+     * @param column
+     *            the column (starting at 0) giving the value of each
+     *            movement
+     */
+    public void setValueColumn(int column) {
+        checkColumn(column);
+        valueColumn = column;
+    }
+
+    /**
+     * Give the sense of the movements by a column. By default, the sense is
+     * given by the sign of the value: a negative value is an output of the
+     * opposite value.
+     *
+     * @param column
+     *            the column (starting at 0) giving the sense of each
+     *            movement
+     * @param input
+     *            the text of the column for an input
+     * @param output
+     *            the text of the column for an output
+     */
+    public void setSenseColumn(int column, String input, String output) {
+        checkColumn(column);
+        senseColumn = column;
+        inputToken = input.toCharArray();
+        outputToken = output.toCharArray();
+    }
+
+    /**
+     * Assign a part of the movements to a budget. A line can have several
+     * budgets by adding several pairs of columns. A line with an empty (or
+     * missing) budget name is not assigned to this budget, and an empty (or
+     * missing) value assigns the whole value of the movement.
+     *
+     * @param budgetColumn
+     *            the column (starting at 0) giving the name of the budget
+     * @param valueColumn
+     *            the column (starting at 0) giving the value assigned to the
+     *            budget
+     */
+    public void addBudgetColumns(int budgetColumn, int valueColumn) {
+        checkColumn(budgetColumn);
+        checkColumn(valueColumn);
+        budgetColumns.add(budgetColumn);
+        budgetValueColumns.add(valueColumn);
+    }
+
+    /**
+     *
+     * @param applied
+     *            true to apply the movements imported (by default), false to
+     *            only add them
+     */
+    public void setApplied(boolean applied) {
+        this.applied = applied;
+    }
+
+    /**
+     *
+     * @param batchSize
+     *            the number of movements added to the manager at once
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("invalid batch size: "
+                                               + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    private static void checkColumn(int column) {
+        if (column < 0) {
+            throw new IllegalArgumentException("invalid column: " + column);
+        }
+    }
+
+    /**
+     * Import a CSV file.
+     *
+     * @param filePath
+     *            the path of the file
+     * @param charset
+     *            the charset of the file
+     * @return the number of movements imported
+     * @throws IOException
+     *             if the file cannot be read
+     * @exception InvalidLineException
+     *                if a line cannot be imported
+     */
+    public long importFile(String filePath, Charset charset)
+            throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(filePath),
+                charset);
+        try {
+            return importFrom(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Import a CSV text. The reader does not need to be buffered.
+     *
+     * @param reader
+     *            the reader of the text
+     * @return the number of movements imported
+     * @throws IOException
+     *             if the text cannot be read
+     * @exception InvalidLineException
+     *                if a line cannot be imported
+     */
+    public long importFrom(Reader reader) throws IOException {
+        if (valueColumn < 0) {
+            throw new IllegalStateException("no value column");
+        } else if (accountColumn < 0 && account == null) {
+            throw new IllegalStateException("no account column");
+        }
+        NameCache<Account> accounts = new NameCache<Account>() {
+
+            @Override
+            protected Account resolve(String name) {
+                return manager.getAccount(name);
+            }
+        };
+        NameCache<Budget> budgets = new NameCache<Budget>() {
+
+            @Override
+            protected Budget resolve(String name) {
+                return manager.getBudget(name);
+            }
+        };
+
+        CsvReader csv = new CsvReader(reader, separator, BUFFER_SIZE);
+        for (int line = 0; line < headerLines && csv.next(); line++) {
+            // ignored
+        }
+        List<Movement> batch = new ArrayList<Movement>(batchSize);
+        long[] lines = new long[batchSize];
+        long count = 0;
+        while (csv.next()) {
+            try {
+                lines[batch.size()] = csv.getLine();
+                batch.add(parseMovement(csv, accounts, budgets));
+            } catch (RuntimeException ex) {
+                throw new InvalidLineException(csv.getLine(), ex);
+            }
+            if (batch.size() == batchSize) {
+                count += addBatch(batch, lines);
+            }
+        }
+        count += addBatch(batch, lines);
+        return count;
+    }
+
+    /**
+     * Create the movement of the current line.
+     */
+    private Movement parseMovement(CsvReader csv, NameCache<Account> accounts,
+                                   NameCache<Budget> budgets) {
+        char[] buffer = csv.getBuffer();
+        Movement movement = new Movement();
+
+        Account movementAccount = account;
+        if (accountColumn >= 0) {
+            movementAccount = accounts.get(buffer, csv.getStart(accountColumn),
+                    csv.getEnd(accountColumn));
+            if (movementAccount == null) {
+                throw new UnknownAccountException(csv.getField(accountColumn));
+            }
+        }
+        movement.setAccount(movementAccount);
+
+        BigDecimal value = parseValue(buffer, csv.getStart(valueColumn),
+                csv.getEnd(valueColumn));
+        if (senseColumn >= 0) {
+            int start = csv.getStart(senseColumn);
+            int end = csv.getEnd(senseColumn);
+            if (matches(inputToken, buffer, start, end)) {
+                movement.setSense(Sense.INPUT);
+            } else if (matches(outputToken, buffer, start, end)) {
+                movement.setSense(Sense.OUTPUT);
+            } else {
+                throw new IllegalArgumentException("unknown sense: "
+                                                   + csv.getField(senseColumn));
+            }
+        } else if (value.signum() < 0) {
+            movement.setSense(Sense.OUTPUT);
+            value = value.negate();
+        }
+        movement.setValue(value);
+
+        for (int index = 0; index < budgetColumns.size(); index++) {
+            int budgetColumn = budgetColumns.get(index);
+            if (budgetColumn >= csv.getFieldCount()
+                || csv.getStart(budgetColumn) == csv.getEnd(budgetColumn)) {
+                continue;
+            }
+            int start = csv.getStart(budgetColumn);
+            int end = csv.getEnd(budgetColumn);
+            Budget budget = budgets.get(buffer, start, end);
+            if (budget == null) {
+                throw new UnknownBudgetException(csv.getField(budgetColumn));
+            }
+            int budgetValueColumn = budgetValueColumns.get(index);
+            BigDecimal budgetValue = value;
+            if (budgetValueColumn < csv.getFieldCount()
+                && csv.getStart(budgetValueColumn) < csv.getEnd(
+                    budgetValueColumn)) {
+                budgetValue = parseValue(buffer, csv.getStart(
+                        budgetValueColumn), csv.getEnd(budgetValueColumn)).
+                        abs();
+            }
+            movement.assignValueToBudget(budget, budgetValue);
+        }
+        return movement;
+    }
+
+    /**
+     * Add a batch of movements to the manager, then empty it.
+     *
+     * @return the number of movements added
+     */
+    private int addBatch(List<Movement> batch, long[] lines) {
+        int size = batch.size();
+        if (size > 0) {
+            try {
+                manager.addMovements(batch, applied);
+            } catch (RuntimeException ex) {
+                // the movements are applied in order, so the first one not
+                // applied is the one which has failed
+                int failed = 0;
+                while (applied && failed < size - 1
+                       && batch.get(failed).isLocked()) {
+                    failed++;
+                }
+                throw new InvalidLineException(lines[failed], ex);
+            }
+            batch.clear();
+        }
+        return size;
+    }
+
+    private static boolean matches(char[] token, char[] chars, int start,
+                                   int end) {
+        if (token.length != end - start) {
+            return false;
+        }
+        for (int index = 0; index < token.length; index++) {
+            if (token[index] != chars[start + index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse a decimal value in place. The values up to
+     * {@link #MAX_LONG_DIGITS} digits are computed without intermediate
+     * objects.
+     *
+     * @exception NumberFormatException
+     *                if the value is invalid
+     */
+    private BigDecimal parseValue(char[] chars, int start, int end) {
+        while (start < end && chars[start] == ' ') {
+            start++;
+        }
+        while (end > start && chars[end - 1] == ' ') {
+            end--;
+        }
+        boolean negative = false;
+        int index = start;
+        if (index < end && (chars[index] == '-' || chars[index] == '+')) {
+            negative = chars[index] == '-';
+            index++;
+        }
+        long unscaled = 0;
+        int digits = 0;
+        int scale = -1;
+        for (; index < end; index++) {
+            char c = chars[index];
+            if (c >= '0' && c <= '9') {
+                if (digits == MAX_LONG_DIGITS) {
+                    String text = new String(chars, start, end - start);
+                    return new BigDecimal(text.replace(decimalSeparator, '.'));
+                }
+                unscaled = 10 * unscaled + (c - '0');
+                digits++;
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else if (c == decimalSeparator && scale < 0) {
+                scale = 0;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0 || index < end) {
+            String text = new String(chars, start, end - start);
+            throw new NumberFormatException("invalid value: " + text);
+        }
+        return BigDecimal.valueOf(negative
+                                  ? -unscaled
+                                  : unscaled, Math.max(scale, 0));
+    }
+}
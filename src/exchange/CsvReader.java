@@ -0,0 +1,292 @@
+package exchange;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * A CSV reader splits a text in records and fields, without creating any
+ * object for them: the fields of the current record are ranges of a buffer of
+ * characters (see {@link #getBuffer()}), which is reused for the next
+ * records. A field can be quoted (to contain the separator, quotes doubled or
+ * line breaks), its quotes being removed in place.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+class CsvReader {
+
+    private final Reader reader;
+    private final char separator;
+    /**
+     * The characters read and not consumed yet.
+     */
+    private char[] buffer;
+    /**
+     * The position of the next record in the buffer.
+     */
+    private int position = 0;
+    /**
+     * The number of characters in the buffer.
+     */
+    private int limit = 0;
+    /**
+     * True when the end of the text has been read.
+     */
+    private boolean ended = false;
+    /**
+     * The position where the search of the end of the record continues, after
+     * filling the buffer.
+     */
+    private int scanPosition = 0;
+    /**
+     * True if the search of the end of the record stopped in a quoted field.
+     */
+    private boolean scanQuoted = false;
+    /**
+     * The positions where the fields of the current record start.
+     */
+    private int[] starts = new int[16];
+    /**
+     * The positions where the fields of the current record end (excluded).
+     */
+    private int[] ends = new int[16];
+    /**
+     * The number of fields of the current record.
+     */
+    private int fieldCount = 0;
+    /**
+     * The line where the current record starts, starting at 1.
+     */
+    private long line = 0;
+    /**
+     * The line where the next record starts.
+     */
+    private long nextLine = 1;
+
+    /**
+     *
+     * @param reader
+     *            the reader of the text, which is not buffered again
+     * @param separator
+     *            the separator of the fields
+     * @param bufferSize
+     *            the initial size of the buffer, which grows if a record is
+     *            bigger
+     */
+    public CsvReader(Reader reader, char separator, int bufferSize) {
+        this.reader = reader;
+        this.separator = separator;
+        this.buffer = new char[bufferSize];
+    }
+
+    /**
+     * Read the next record, the empty lines being ignored. The fields of the
+     * previous record are not available anymore.
+     *
+     * @return true if a record has been read, false at the end of the text
+     * @throws IOException
+     *             if the text cannot be read
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            int end = findRecordEnd();
+            if (end < 0) {
+                if (!ended) {
+                    fill();
+                    continue;
+                } else if (position == limit) {
+                    fieldCount = 0;
+                    return false;
+                } else {
+                    end = limit;
+                }
+            }
+            line = nextLine;
+            nextLine++;
+            int next = end;
+            if (next < limit && buffer[next] == '\r') {
+                next++;
+            }
+            if (next < limit && buffer[next] == '\n') {
+                next++;
+            }
+            int start = position;
+            position = next;
+            scanPosition = next;
+            scanQuoted = false;
+            if (end > start) {
+                split(start, end);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Search the end of the record starting at {@link #position}.
+     *
+     * @return the position of the line break ending the record, -1 if it is
+     *         not in the buffer
+     */
+    private int findRecordEnd() {
+        boolean quoted = scanQuoted;
+        int index = scanPosition;
+        for (; index < limit; index++) {
+            char c = buffer[index];
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && (c == '\n' || c == '\r')) {
+                if (c == '\r' && index + 1 == limit && !ended) {
+                    // a '\n' may follow, once the buffer is filled
+                    break;
+                }
+                return index;
+            }
+        }
+        scanPosition = index;
+        scanQuoted = quoted;
+        return -1;
+    }
+
+    /**
+     * Move the current record at the beginning of the buffer (growing it if
+     * the record fills it) and read the next characters after it.
+     */
+    private void fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            scanPosition -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+        }
+        int read = reader.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            ended = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    /**
+     * Split a record in fields, removing the quotes of the quoted fields.
+     */
+    private void split(int start, int end) {
+        fieldCount = 0;
+        int index = start;
+        while (true) {
+            int fieldStart = index;
+            int fieldEnd;
+            if (index < end && buffer[index] == '"') {
+                int written = index;
+                index++;
+                while (index < end) {
+                    char c = buffer[index];
+                    if (c != '"') {
+                        if (c == '\n') {
+                            nextLine++;
+                        }
+                        buffer[written++] = c;
+                        index++;
+                    } else if (index + 1 < end && buffer[index + 1] == '"') {
+                        buffer[written++] = '"';
+                        index += 2;
+                    } else {
+                        index++;
+                        break;
+                    }
+                }
+                fieldEnd = written;
+                while (index < end && buffer[index] != separator) {
+                    index++;
+                }
+            } else {
+                while (index < end && buffer[index] != separator) {
+                    index++;
+                }
+                fieldEnd = index;
+            }
+            addField(fieldStart, fieldEnd);
+            if (index >= end) {
+                break;
+            }
+            index++;
+        }
+    }
+
+    private void addField(int start, int end) {
+        if (fieldCount == starts.length) {
+            starts = Arrays.copyOf(starts, 2 * fieldCount);
+            ends = Arrays.copyOf(ends, 2 * fieldCount);
+        }
+        starts[fieldCount] = start;
+        ends[fieldCount] = end;
+        fieldCount++;
+    }
+
+    /**
+     *
+     * @return the buffer containing the fields of the current record
+     */
+    public char[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     *
+     * @return the number of fields of the current record
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     *
+     * @param field
+     *            the index of a field of the current record
+     * @return the position of the field in the buffer
+     */
+    public int getStart(int field) {
+        checkField(field);
+        return starts[field];
+    }
+
+    /**
+     *
+     * @param field
+     *            the index of a field of the current record
+     * @return the position after the field in the buffer
+     */
+    public int getEnd(int field) {
+        checkField(field);
+        return ends[field];
+    }
+
+    /**
+     *
+     * @param field
+     *            the index of a field of the current record
+     * @return the field, as a new string
+     */
+    public String getField(int field) {
+        checkField(field);
+        return new String(buffer, starts[field], ends[field] - starts[field]);
+    }
+
+    /**
+     *
+     * @return the line where the current record starts, starting at 1
+     */
+    public long getLine() {
+        return line;
+    }
+
+    private void checkField(int field) {
+        if (field < 0 || field >= fieldCount) {
+            throw new IndexOutOfBoundsException("no field " + field + " ("
+                                                + fieldCount + " fields)");
+        }
+    }
+}
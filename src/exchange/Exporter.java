@@ -0,0 +1,275 @@
+package exchange;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import accountancy.accounts.Account;
+import accountancy.budgets.Budget;
+import accountancy.movements.Movement;
+import manager.Manager;
+import manager.RecordVisitor;
+import manager.SaveReader;
+
+/**
+ * An exporter writes the accounts, budgets, links and movements of a manager
+ * in a text format, record by record: the records are streamed from the
+ * manager (see {@link Manager#forEachRecord(RecordVisitor)}) or from a saved
+ * file (see {@link SaveReader}) and written as soon as they are visited, so
+ * no collection is created. Exporting a saved file uses a constant memory,
+ * whatever the number of movements.<br/>
+ * <br/>
+ * An export can be done in background (see
+ * {@link #exportInBackground(String, String)}). An exporter does only one
+ * export at a time, and the manager exported must not be changed until the
+ * export is done: to export a manager which continues to change, save it
+ * (see {@link Manager#saveInBackground(String, String)}) then export the
+ * file.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public abstract class Exporter {
+
+    /**
+     * The size of the buffer of the writer.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * The thread doing the exports in background.
+     */
+    private static final ExecutorService EXPORTER = Executors.
+            newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "exporter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final Writer writer;
+    /**
+     * The characters of the numbers written (see {@link #writeLong(long)}).
+     */
+    private final char[] digits = new char[20];
+    /**
+     * The number of movements written by the current export.
+     */
+    private long movementCount = 0;
+    /**
+     * The visitor writing the records.
+     */
+    private final RecordVisitor<IOException> visitor = new RecordVisitor<IOException>() {
+
+        @Override
+        public void visitAccount(Account account) throws IOException {
+            writeAccount(account);
+        }
+
+        @Override
+        public void visitBudget(Budget budget) throws IOException {
+            writeBudget(budget);
+        }
+
+        @Override
+        public void visitLink(Account account, Budget budget, BigDecimal value)
+                throws IOException {
+            writeLink(account, budget, value);
+        }
+
+        @Override
+        public void visitMovement(long id, Movement movement)
+                throws IOException {
+            writeMovement(id, movement);
+            movementCount++;
+        }
+    };
+
+    /**
+     *
+     * @param writer
+     *            the writer of the export, buffered if it is not already,
+     *            which is flushed but not closed after each export
+     */
+    protected Exporter(Writer writer) {
+        this.writer = writer instanceof BufferedWriter
+                      ? writer
+                      : new BufferedWriter(writer, BUFFER_SIZE);
+    }
+
+    /**
+     * Export a manager.
+     *
+     * @param manager
+     *            the manager to export
+     * @return the number of movements exported
+     * @throws IOException
+     *             if the export cannot be written
+     */
+    public long export(Manager manager) throws IOException {
+        movementCount = 0;
+        start();
+        manager.forEachRecord(visitor);
+        end();
+        writer.flush();
+        return movementCount;
+    }
+
+    /**
+     * Export a saved manager, without loading it (see {@link SaveReader}).
+     *
+     * @param filePath
+     *            the file path where the manager is saved
+     * @param password
+     *            the password to decrypt the file, null if it is not
+     *            encrypted
+     * @return the number of movements exported
+     * @throws IOException
+     *             if the file cannot be read or the export cannot be written
+     */
+    public long export(String filePath, String password) throws IOException {
+        movementCount = 0;
+        start();
+        SaveReader.read(filePath, password, visitor);
+        end();
+        writer.flush();
+        return movementCount;
+    }
+
+    /**
+     * Export a manager in background (see {@link #export(Manager)}). The
+     * manager must not be changed until the export is done.
+     *
+     * @param manager
+     *            the manager to export
+     * @return the export, which gives the number of movements exported
+     */
+    public Future<Long> exportInBackground(final Manager manager) {
+        return EXPORTER.submit(new Callable<Long>() {
+
+            @Override
+            public Long call() throws IOException {
+                return export(manager);
+            }
+        });
+    }
+
+    /**
+     * Export a saved manager in background (see
+     * {@link #export(String, String)}).
+     *
+     * @param filePath
+     *            the file path where the manager is saved
+     * @param password
+     *            the password to decrypt the file, null if it is not
+     *            encrypted
+     * @return the export, which gives the number of movements exported
+     */
+    public Future<Long> exportInBackground(final String filePath,
+                                           final String password) {
+        return EXPORTER.submit(new Callable<Long>() {
+
+            @Override
+            public Long call() throws IOException {
+                return export(filePath, password);
+            }
+        });
+    }
+
+    /**
+     * Write what precedes the records.
+     */
+    protected abstract void start() throws IOException;
+
+    protected abstract void writeAccount(Account account) throws IOException;
+
+    protected abstract void writeBudget(Budget budget) throws IOException;
+
+    /**
+     * @param value
+     *            the value of the link, null if there is not
+     */
+    protected abstract void writeLink(Account account, Budget budget,
+                                      BigDecimal value) throws IOException;
+
+    protected abstract void writeMovement(long id, Movement movement)
+            throws IOException;
+
+    /**
+     * Write what follows the records.
+     */
+    protected abstract void end() throws IOException;
+
+    protected void write(char c) throws IOException {
+        writer.write(c);
+    }
+
+    protected void write(String text) throws IOException {
+        writer.write(text);
+    }
+
+    /**
+     * Write a number, without creating a string for it.
+     */
+    protected void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writer.write(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            writer.write('-');
+            value = -value;
+        }
+        int position = digits.length;
+        do {
+            digits[--position] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        writer.write(digits, position, digits.length - position);
+    }
+
+    /**
+     * Write a decimal value, without exponent.
+     */
+    protected void writeDecimal(BigDecimal value) throws IOException {
+        writer.write(value.toPlainString());
+    }
+
+    /**
+     * Write the value of a movement. If its fixed-point value has the same
+     * scale, it is written without creating a string for it.
+     */
+    protected void writeValue(Movement movement) throws IOException {
+        BigDecimal value = movement.getValue();
+        int scale = movement.getScale();
+        if (!movement.isFixedPoint() || value.scale() != scale
+            || scale >= digits.length - 1) {
+            writeDecimal(value);
+        } else {
+            long units = movement.getUnits();
+            if (units < 0) {
+                writer.write('-');
+                units = -units;
+            }
+            long factor = 1;
+            for (int i = 0; i < scale; i++) {
+                factor *= 10;
+            }
+            writeLong(units / factor);
+            if (scale > 0) {
+                writer.write('.');
+                long decimals = units % factor;
+                for (long digit = factor / 10; digit > 0; digit /= 10) {
+                    writer.write((char) ('0' + decimals / digit % 10));
+                }
+            }
+        }
+    }
+}
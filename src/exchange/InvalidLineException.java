@@ -0,0 +1,31 @@
+package exchange;
+
+/**
+ * Exception thrown when a line of an imported file cannot be imported (see
+ * {@link CsvImporter}), because it is malformed or it refers to an unknown
+ * element, or because its movement cannot be applied.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+@SuppressWarnings("serial")
+public class InvalidLineException extends RuntimeException {
+
+    /**
+     * The number of the invalid line.
+     */
+    private final long line;
+
+    public InvalidLineException(long line, Throwable cause) {
+        super("line " + line + ": " + cause.getMessage(), cause);
+        this.line = line;
+    }
+
+    /**
+     *
+     * @return the number of the invalid line, starting at 1
+     */
+    public long getLine() {
+        return line;
+    }
+}
@@ -0,0 +1,224 @@
+package exchange;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+
+import accountancy.accounts.Account;
+import accountancy.budgets.Budget;
+import accountancy.movements.AssignmentVisitor;
+import accountancy.movements.Movement;
+
+/**
+ * A JSON exporter writes an object with an array for each type of record, a
+ * record by line:
+ *
+ * <pre>
+ * {
+ * "accounts":[
+ * {"name":"bank","value":120.50,"limit":null}],
+ * "budgets":[
+ * {"name":"food","value":-30}],
+ * "links":[
+ * {"account":"bank","budget":"food","value":null}],
+ * "movements":[
+ * {"id":1,"account":"bank","sense":"OUTPUT","value":30,"applied":true,
+ *  "assignments":[{"budget":"food","value":30}]}]
+ * }
+ * </pre>
+ *
+ * The values are written as numbers, with all their digits. As the records
+ * are streamed, they must come in this order (as given by a manager or a
+ * saved file).
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public class JsonExporter extends Exporter {
+
+    /**
+     * The names of the arrays, in their order.
+     */
+    private static final String[] SECTIONS = { "accounts", "budgets",
+            "links", "movements" };
+    private static final int ACCOUNTS = 0;
+    private static final int BUDGETS = 1;
+    private static final int LINKS = 2;
+    private static final int MOVEMENTS = 3;
+    private static final char[] HEXADECIMAL = "0123456789abcdef".toCharArray();
+    /**
+     * The array being written, -1 before the first one.
+     */
+    private int section = -1;
+    /**
+     * True until the first assignment of a movement is written.
+     */
+    private boolean firstAssignment;
+    /**
+     * The visitor writing the assignments of a movement.
+     */
+    private final AssignmentVisitor<IOException> assignmentWriter = new AssignmentVisitor<IOException>() {
+
+        @Override
+        public void visit(Budget budget, BigDecimal value) throws IOException {
+            if (!firstAssignment) {
+                write(',');
+            }
+            firstAssignment = false;
+            write("{\"budget\":");
+            writeString(budget.getName());
+            write(",\"value\":");
+            writeDecimal(value);
+            write('}');
+        }
+    };
+
+    /**
+     *
+     * @param writer
+     *            the writer of the export
+     */
+    public JsonExporter(Writer writer) {
+        super(writer);
+    }
+
+    @Override
+    protected void start() throws IOException {
+        section = -1;
+        write('{');
+    }
+
+    @Override
+    protected void writeAccount(Account account) throws IOException {
+        startRecord(ACCOUNTS);
+        write("{\"name\":");
+        writeString(account.getName());
+        write(",\"value\":");
+        writeDecimal(account.getValue());
+        write(",\"limit\":");
+        if (account.getLimit() == Account.INFINITE_LIMIT) {
+            write("null");
+        } else {
+            writeDecimal(account.getLimit());
+        }
+        write('}');
+    }
+
+    @Override
+    protected void writeBudget(Budget budget) throws IOException {
+        startRecord(BUDGETS);
+        write("{\"name\":");
+        writeString(budget.getName());
+        write(",\"value\":");
+        writeDecimal(budget.getValue());
+        write('}');
+    }
+
+    @Override
+    protected void writeLink(Account account, Budget budget, BigDecimal value)
+            throws IOException {
+        startRecord(LINKS);
+        write("{\"account\":");
+        writeString(account.getName());
+        write(",\"budget\":");
+        writeString(budget.getName());
+        write(",\"value\":");
+        if (value == null) {
+            write("null");
+        } else {
+            writeDecimal(value);
+        }
+        write('}');
+    }
+
+    @Override
+    protected void writeMovement(long id, Movement movement)
+            throws IOException {
+        startRecord(MOVEMENTS);
+        write("{\"id\":");
+        writeLong(id);
+        write(",\"account\":");
+        if (movement.getAccount() == null) {
+            write("null");
+        } else {
+            writeString(movement.getAccount().getName());
+        }
+        write(",\"sense\":\"");
+        write(movement.getSense().name());
+        write("\",\"value\":");
+        writeValue(movement);
+        write(",\"applied\":");
+        write(movement.isLocked()
+              ? "true"
+              : "false");
+        write(",\"assignments\":[");
+        firstAssignment = true;
+        movement.forEachAssignment(assignmentWriter);
+        write("]}");
+    }
+
+    @Override
+    protected void end() throws IOException {
+        openSection(MOVEMENTS);
+        write("]\n}\n");
+    }
+
+    /**
+     * Start a record in its array, after the previous record of the array or
+     * after opening the array.
+     */
+    private void startRecord(int recordSection) throws IOException {
+        if (recordSection < section) {
+            throw new IllegalStateException("the " + SECTIONS[recordSection]
+                                            + " must be written before the "
+                                            + SECTIONS[section]);
+        } else if (recordSection == section) {
+            write(",\n");
+        } else {
+            openSection(recordSection);
+            write('\n');
+        }
+    }
+
+    /**
+     * Close the current array and open the next ones until the given one.
+     */
+    private void openSection(int newSection) throws IOException {
+        while (section < newSection) {
+            if (section >= 0) {
+                write("],");
+            }
+            section++;
+            write("\n\"");
+            write(SECTIONS[section]);
+            write("\":[");
+        }
+    }
+
+    /**
+     * Write a string, with its special characters escaped.
+     */
+    private void writeString(String text) throws IOException {
+        write('"');
+        for (int index = 0; index < text.length(); index++) {
+            char c = text.charAt(index);
+            if (c == '"' || c == '\\') {
+                write('\\');
+                write(c);
+            } else if (c == '\n') {
+                write("\\n");
+            } else if (c == '\r') {
+                write("\\r");
+            } else if (c == '\t') {
+                write("\\t");
+            } else if (c < 0x20) {
+                write("\\u00");
+                write(HEXADECIMAL[c >> 4]);
+                write(HEXADECIMAL[c & 0xF]);
+            } else {
+                write(c);
+            }
+        }
+        write('"');
+    }
+}
@@ -0,0 +1,116 @@
+package exchange;
+
+/**
+ * A name cache finds the element having a name given as a range of
+ * characters (see {@link CsvReader#getBuffer()}), without creating a string
+ * for it once the name is known. The first time a name is met, the element
+ * is asked to {@link #resolve(String)}.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ * @param <T>
+ *            the type of the elements
+ */
+abstract class NameCache<T> {
+
+    /**
+     * The names known, in an open addressing table.
+     */
+    private char[][] names = new char[16][];
+    /**
+     * The elements of the names, at the same positions.
+     */
+    private Object[] elements = new Object[16];
+    /**
+     * The number of names known.
+     */
+    private int size = 0;
+
+    /**
+     * Give the element having a name.
+     *
+     * @param chars
+     *            the characters containing the name
+     * @param start
+     *            the position of the name
+     * @param end
+     *            the position after the name
+     * @return the element having the name, null if there is not
+     */
+    @SuppressWarnings("unchecked")
+    public T get(char[] chars, int start, int end) {
+        int mask = names.length - 1;
+        int slot = hash(chars, start, end) & mask;
+        while (names[slot] != null) {
+            if (matches(names[slot], chars, start, end)) {
+                return (T) elements[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        String name = new String(chars, start, end - start);
+        T element = resolve(name);
+        if (element != null) {
+            names[slot] = name.toCharArray();
+            elements[slot] = element;
+            size++;
+            if (2 * size > names.length) {
+                grow();
+            }
+        }
+        return element;
+    }
+
+    /**
+     * Give the element having a name which is not in the cache yet.
+     *
+     * @param name
+     *            the name of the element
+     * @return the element having the name, null if there is not (then the
+     *         name is not cached)
+     */
+    protected abstract T resolve(String name);
+
+    private static boolean matches(char[] name, char[] chars, int start,
+                                   int end) {
+        if (name.length != end - start) {
+            return false;
+        }
+        for (int index = 0; index < name.length; index++) {
+            if (name[index] != chars[start + index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(char[] chars, int start, int end) {
+        int hash = 0;
+        for (int index = start; index < end; index++) {
+            hash = 31 * hash + chars[index];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Double the size of the table.
+     */
+    private void grow() {
+        char[][] oldNames = names;
+        Object[] oldElements = elements;
+        names = new char[2 * oldNames.length][];
+        elements = new Object[names.length];
+        int mask = names.length - 1;
+        for (int index = 0; index < oldNames.length; index++) {
+            char[] name = oldNames[index];
+            if (name != null) {
+                int slot = hash(name, 0, name.length) & mask;
+                while (names[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                names[slot] = name;
+                elements[slot] = oldElements[index];
+            }
+        }
+    }
+}
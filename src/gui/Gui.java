@@ -24,6 +24,10 @@ import manager.Manager;
  */
 public class Gui extends javax.swing.JFrame {
 
+    /**
+     * The number of movements read at once from the manager.
+     */
+    private static final int MOVEMENTS_PAGE_SIZE = 1000;
     private final Manager manager;
 
     /** Creates new form Gui */
@@ -150,7 +154,8 @@ public class Gui extends javax.swing.JFrame {
     }
 
     public void refreshMovementsTable() {
-        movementsTable.refreshWith(manager.getMovements());
+        movementsTable.setModel(new MovementsTableModel(manager,
+                movementsTable, MOVEMENTS_PAGE_SIZE));
     }
 
     /** This method is called from within the constructor to
@@ -0,0 +1,127 @@
+package gui;
+
+import accountancy.movements.Movement;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.table.AbstractTableModel;
+import manager.Manager;
+import manager.MovementPage;
+
+/**
+ * A table model showing the movements of a manager page by page (see
+ * {@link Manager#getMovementsPage(long, int)}). Only the first ID of each page
+ * is known in advance, the movements of a page are asked only when one of its
+ * rows is displayed, and only the pages recently displayed are kept. So the
+ * table shows the visible movements without loading all of them.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ */
+@SuppressWarnings("serial")
+public class MovementsTableModel extends AbstractTableModel {
+
+    /**
+     * The number of pages kept, enough for a visible window across two
+     * pages.
+     */
+    private static final int CACHED_PAGES = 3;
+    private final Manager manager;
+    private final int pageSize;
+    private final String[] columnNames;
+    private final Method[] columnMethods;
+    /**
+     * The number of movements when the model has been created.
+     */
+    private final int rowCount;
+    /**
+     * The ID of the first movement of each page.
+     */
+    private final long[] pageStarts;
+    /**
+     * The pages recently displayed, from the least recently used.
+     */
+    private final Map<Integer, MovementPage> pages = new LinkedHashMap<Integer, MovementPage>(
+            16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Integer, MovementPage> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    /**
+     *
+     * @param manager
+     *            the manager of the movements
+     * @param table
+     *            the table describing the columns (see
+     *            {@link SimpleTable#getColumnDescriptionMap()}), with the
+     *            methods of {@link Movement} giving their values
+     * @param pageSize
+     *            the number of movements asked at once to the manager
+     */
+    public MovementsTableModel(Manager manager, SimpleTable<?> table,
+                               int pageSize) {
+        LinkedHashMap<String, Method> columnDescriptions =
+                                      table.getColumnDescriptionMap();
+        this.manager = manager;
+        this.pageSize = pageSize;
+        columnNames = columnDescriptions.keySet().toArray(
+                new String[columnDescriptions.size()]);
+        columnMethods = columnDescriptions.values().toArray(
+                new Method[columnDescriptions.size()]);
+
+        // only the IDs are browsed, not the movements
+        rowCount = manager.getMovementsIDs().size();
+        pageStarts = new long[(rowCount + pageSize - 1) / pageSize];
+        Iterator<BigDecimal> iterator = manager.getMovementsIDs().iterator();
+        for (int row = 0; row < rowCount && iterator.hasNext(); row++) {
+            BigDecimal id = iterator.next();
+            if (row % pageSize == 0) {
+                pageStarts[row / pageSize] = id.longValueExact();
+            }
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        int pageIndex = row / pageSize;
+        MovementPage page = pages.get(pageIndex);
+        if (page == null) {
+            page = manager.getMovementsPage(pageStarts[pageIndex], pageSize);
+            pages.put(pageIndex, page);
+        }
+        int index = row % pageSize;
+        if (index >= page.size()) {
+            // the movement has been removed since the model has been created
+            return null;
+        }
+        try {
+            return columnMethods[column].invoke(page.getMovement(index));
+        } catch (Exception ex) {
+            Logger.getLogger(MovementsTableModel.class.getName()).
+                    log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package manager;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import accountancy.movements.Movement;
+
+/**
+ * An array movement store keeps the movements in memory. As the IDs are
+ * generated by incrementing a counter, they are dense: the movements are
+ * stored in arrays indexed by ID, so there is no boxing nor tree rebalancing
+ * when a movement is stored. The arrays are split in pages, so the pages which
+ * do not contain any movement anymore are released.<br/>
+ * <br/>
+ * The movements given by a {@link MovementStore.Loader} are loaded at the
+ * first time they are asked, so the movements which are never used are never
+ * loaded.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+class ArrayMovementStore implements MovementStore {
+
+    /**
+     * The number of bits of an ID giving its position in a page.
+     */
+    private static final int PAGE_BITS = 10;
+    /**
+     * The number of movements in a page.
+     */
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    /**
+     * The greatest ID which can be stored.
+     */
+    public static final long MAX_ID = ((long) Integer.MAX_VALUE << PAGE_BITS)
+                                      + PAGE_SIZE - 1;
+    /**
+     * The pages of movements, indexed by page number. A page is null if it
+     * does not contain any movement.
+     */
+    private Movement[][] pages = new Movement[0][];
+    /**
+     * The number of movements in each page.
+     */
+    private int[] pageCounts = new int[0];
+    /**
+     * The number of movements in this store.
+     */
+    private int size = 0;
+    /**
+     * The loader of the movements not loaded yet, null if all the movements
+     * are loaded.
+     */
+    private Loader loader = null;
+    /**
+     * The indexes (in the {@link #loader}) of the movements which are not
+     * pending anymore, because they have been loaded, replaced or removed.
+     */
+    private BitSet settled = null;
+    /**
+     * The number of movements of the {@link #loader} which are still pending.
+     */
+    private int pendingCount = 0;
+
+    @Override
+    public void setLoader(Loader loader) {
+        if (this.loader != null) {
+            this.loader.close();
+        }
+        this.loader = loader;
+        this.pendingCount = loader.size();
+        this.settled = new BitSet(pendingCount);
+        if (pendingCount == 0) {
+            releaseLoader();
+        }
+    }
+
+    @Override
+    public void loadAll() {
+        while (loader != null) {
+            get(loader.getId(settled.nextClearBit(0)));
+        }
+    }
+
+    /**
+     *
+     * @return true if some movements are not loaded yet, false otherwise
+     */
+    public boolean hasPending() {
+        return loader != null;
+    }
+
+    @Override
+    public int size() {
+        return size + pendingCount;
+    }
+
+    @Override
+    public Movement get(long id) {
+        if (id < 0 || id > MAX_ID) {
+            return null;
+        }
+        Movement movement = getLoaded(id);
+        if (movement == null && loader != null) {
+            int index = getPendingIndex(id);
+            if (index >= 0) {
+                movement = loader.load(index);
+                settle(index);
+                put(id, movement);
+            }
+        }
+        return movement;
+    }
+
+    /**
+     *
+     * @return the movement loaded with this ID, null if there is not
+     */
+    private Movement getLoaded(long id) {
+        int page = (int) (id >>> PAGE_BITS);
+        if (page >= pages.length || pages[page] == null) {
+            return null;
+        }
+        return pages[page][(int) id & (PAGE_SIZE - 1)];
+    }
+
+    /**
+     *
+     * @return the index in the {@link #loader} of the pending movement which
+     *         has this ID, -1 if there is not
+     */
+    private int getPendingIndex(long id) {
+        int index = lowerBound(id);
+        return index < loader.size() && loader.getId(index) == id
+               && !settled.get(index)
+               ? index
+               : -1;
+    }
+
+    /**
+     *
+     * @return the index in the {@link #loader} of the first movement which
+     *         has this ID or a greater one
+     */
+    private int lowerBound(long id) {
+        int low = 0;
+        int high = loader.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (loader.getId(middle) < id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Tell a movement of the {@link #loader} is not pending anymore.
+     */
+    private void settle(int index) {
+        settled.set(index);
+        if (--pendingCount == 0) {
+            releaseLoader();
+        }
+    }
+
+    private void releaseLoader() {
+        loader.close();
+        loader = null;
+        settled = null;
+    }
+
+    @Override
+    public boolean sharesMovements() {
+        return true;
+    }
+
+    @Override
+    public void put(long id, Movement movement) {
+        if (movement == null) {
+            throw new NullPointerException("the movement cannot be null");
+        }
+        if (id < 0 || id > MAX_ID) {
+            throw new IllegalArgumentException("the ID " + id
+                                               + " cannot be stored");
+        }
+        int page = (int) (id >>> PAGE_BITS);
+        if (page >= pages.length) {
+            int length = Math.max(page + 1, pages.length * 2);
+            pages = Arrays.copyOf(pages, length);
+            pageCounts = Arrays.copyOf(pageCounts, length);
+        }
+        if (pages[page] == null) {
+            pages[page] = new Movement[PAGE_SIZE];
+        }
+        if (loader != null) {
+            int pending = getPendingIndex(id);
+            if (pending >= 0) {
+                settle(pending);
+            }
+        }
+        int index = (int) id & (PAGE_SIZE - 1);
+        if (pages[page][index] == null) {
+            pageCounts[page]++;
+            size++;
+        }
+        pages[page][index] = movement;
+    }
+
+    @Override
+    public Movement remove(long id) {
+        Movement movement = get(id);
+        if (movement != null) {
+            int page = (int) (id >>> PAGE_BITS);
+            pages[page][(int) id & (PAGE_SIZE - 1)] = null;
+            size--;
+            if (--pageCounts[page] == 0) {
+                pages[page] = null;
+            }
+        }
+        return movement;
+    }
+
+    @Override
+    public long nextId(long id) {
+        if (id < 0) {
+            id = 0;
+        }
+        long next = nextLoadedId(id);
+        if (loader != null) {
+            int index = settled.nextClearBit(lowerBound(id));
+            if (index < loader.size()) {
+                long pending = loader.getId(index);
+                if (next < 0 || pending < next) {
+                    next = pending;
+                }
+            }
+        }
+        return next;
+    }
+
+    @Override
+    public void close() {
+        if (loader != null) {
+            releaseLoader();
+        }
+    }
+
+    /**
+     *
+     * @return the first ID of a loaded movement from the given one (included),
+     *         -1 if there is no more ID
+     */
+    private long nextLoadedId(long id) {
+        for (int page = (int) Math.min(id >>> PAGE_BITS, pages.length);
+             page < pages.length; page++) {
+            Movement[] movements = pages[page];
+            if (movements != null) {
+                int start = page == id >>> PAGE_BITS
+                            ? (int) id & (PAGE_SIZE - 1)
+                            : 0;
+                for (int index = start; index < PAGE_SIZE; index++) {
+                    if (movements[index] != null) {
+                        return ((long) page << PAGE_BITS) + index;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+}
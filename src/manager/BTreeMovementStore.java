@@ -0,0 +1,695 @@
+package manager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import accountancy.AccountancyElement;
+import accountancy.accounts.Account;
+import accountancy.budgets.Budget;
+import accountancy.movements.Movement;
+
+/**
+ * A B+tree movement store keeps the movements on disk, so a manager can have
+ * more movements than its memory can hold. It uses two temporary files,
+ * deleted when the store is closed:
+ * <ul>
+ * <li>a page file, containing a B+tree of fixed-size pages indexed by ID,
+ * which gives the position of each movement in the data file,</li>
+ * <li>a data file, where the movements are appended in the binary format (see
+ * {@link BinaryFormat#writeMovement}).</li>
+ * </ul>
+ * Only the pages recently used are kept in memory (the buffer pool), the
+ * least recently used one being written (if it has changed) and forgotten
+ * when a new page is needed. As the IDs are generated in increasing order, a
+ * page filled by a new ID is split by moving only the new ID, so the pages are
+ * full.<br/>
+ * <br/>
+ * The movements are not kept in memory: each {@link #get(long)} decodes a new
+ * movement from the data file, so changing it does not change the store. A
+ * movement changed must be given again to {@link #put(long, Movement)}, which
+ * the manager does for its own changes (like applying a movement) and for the
+ * changes given to {@link Manager#updateMovement(long, Movement)}. The
+ * accounts and budgets of the movements must be the ones of the manager. A
+ * movement put is appended again in the data file, so the data file grows
+ * until the store is closed, and the pages emptied by removals are not merged.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+class BTreeMovementStore implements MovementStore {
+
+    /**
+     * The size of a page, in bytes.
+     */
+    static final int PAGE_SIZE = 1 << 12;
+    /**
+     * The size of the header of a page: its type, its number of keys and the
+     * next leaf.
+     */
+    private static final int HEADER_SIZE = 16;
+    /**
+     * The number of movements referenced by a leaf: their ID, position and
+     * length.
+     */
+    static final int LEAF_CAPACITY = (PAGE_SIZE - HEADER_SIZE) / 20;
+    /**
+     * The number of keys of an inner page, which has one child more.
+     */
+    static final int INNER_CAPACITY = (PAGE_SIZE - HEADER_SIZE - 4) / 12;
+    /**
+     * The smallest number of pages kept in memory, enough for the pages used
+     * by a single change.
+     */
+    public static final int MIN_CACHED_PAGES = 16;
+    /**
+     * The size of the buffer of the data file.
+     */
+    private static final int DATA_BUFFER_SIZE = 1 << 16;
+    /**
+     * The page number telling there is no next leaf.
+     */
+    private static final int NONE = -1;
+
+    private final Manager manager;
+    private final File pageFile;
+    private final File dataFile;
+    private final FileChannel pageChannel;
+    private final FileChannel dataChannel;
+    /**
+     * The pages in memory, from the least recently used.
+     */
+    private final Map<Integer, Page> pages;
+    /**
+     * The buffer used to read the pages.
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(PAGE_SIZE);
+    /**
+     * The buffer used to write the pages.
+     */
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(PAGE_SIZE);
+    /**
+     * The movements appended but not written in the data file yet.
+     */
+    private final byte[] dataBuffer = new byte[DATA_BUFFER_SIZE];
+    /**
+     * The number of bytes in the {@link #dataBuffer}.
+     */
+    private int dataBufferLength = 0;
+    /**
+     * The number of bytes written in the data file.
+     */
+    private long dataLength = 0;
+    /**
+     * The output used to encode the movements.
+     */
+    private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    /**
+     * The indexes of the accounts and budgets of the manager, to encode the
+     * movements.
+     */
+    private final Map<AccountancyElement, Integer> references =
+                                                  new IdentityHashMap<AccountancyElement, Integer>();
+    /**
+     * The number of accounts in the {@link #references}.
+     */
+    private int referencedAccounts = 0;
+    /**
+     * The number of budgets in the {@link #references}.
+     */
+    private int referencedBudgets = 0;
+    /**
+     * The number of the root page.
+     */
+    private int root;
+    /**
+     * The number of pages in the page file.
+     */
+    private int pageCount = 0;
+    /**
+     * The number of movements in this store.
+     */
+    private int size = 0;
+    /**
+     * The key to add in the parent of the page split by the last
+     * {@link #insert(Page, long, long, int)}.
+     */
+    private long splitKey;
+    /**
+     * True if the last {@link #insert(Page, long, long, int)} added an ID,
+     * false if it replaced one.
+     */
+    private boolean inserted;
+
+    /**
+     * A page of the B+tree, decoded. A leaf has the position and length of
+     * the movement of each ID, and the number of the next leaf. An inner page
+     * has a child more than its keys: the child after a key contains the IDs
+     * from this key (included) to the next one (excluded).
+     */
+    private static class Page {
+
+        public final int number;
+        public final boolean leaf;
+        public int count = 0;
+        public final long[] keys;
+        public final long[] positions;
+        public final int[] lengths;
+        public final int[] children;
+        public int next = NONE;
+        /**
+         * True if the page has changed since it has been read.
+         */
+        public boolean dirty = false;
+
+        public Page(int number, boolean leaf) {
+            this.number = number;
+            this.leaf = leaf;
+            // one more entry to split the page after its overflow
+            if (leaf) {
+                keys = new long[LEAF_CAPACITY + 1];
+                positions = new long[LEAF_CAPACITY + 1];
+                lengths = new int[LEAF_CAPACITY + 1];
+                children = null;
+            } else {
+                keys = new long[INNER_CAPACITY + 1];
+                positions = null;
+                lengths = null;
+                children = new int[INNER_CAPACITY + 2];
+            }
+        }
+
+        /**
+         *
+         * @return the index of the key, or (-(insertion point) - 1) if it is
+         *         not in this page (see
+         *         {@link Arrays#binarySearch(long[], int, int, long)})
+         */
+        public int search(long key) {
+            return Arrays.binarySearch(keys, 0, count, key);
+        }
+
+        /**
+         *
+         * @return the index of the child which can contain the key
+         */
+        public int getChildIndex(long key) {
+            int index = search(key);
+            return index >= 0
+                   ? index + 1
+                   : -index - 1;
+        }
+    }
+
+    /**
+     * Create an empty store, with its files in the given directory.
+     *
+     * @param manager
+     *            the manager of the movements
+     * @param directory
+     *            the directory of the files, null for the default temporary
+     *            directory
+     * @param cachedPages
+     *            the number of pages kept in memory
+     * @throws IOException
+     *             if the files cannot be created
+     * @exception IllegalArgumentException
+     *                if less than {@link #MIN_CACHED_PAGES} pages are kept
+     */
+    @SuppressWarnings("serial")
+    public BTreeMovementStore(Manager manager, File directory,
+                              final int cachedPages) throws IOException {
+        if (cachedPages < MIN_CACHED_PAGES) {
+            throw new IllegalArgumentException("at least " + MIN_CACHED_PAGES
+                                               + " pages must be cached: "
+                                               + cachedPages);
+        }
+        this.manager = manager;
+        this.pageFile = File.createTempFile("movements", ".pages", directory);
+        this.dataFile = File.createTempFile("movements", ".data", directory);
+        pageFile.deleteOnExit();
+        dataFile.deleteOnExit();
+        this.pageChannel = new RandomAccessFile(pageFile, "rw").getChannel();
+        this.dataChannel = new RandomAccessFile(dataFile, "rw").getChannel();
+        this.pages = new LinkedHashMap<Integer, Page>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+                if (size() > cachedPages) {
+                    Page page = eldest.getValue();
+                    if (page.dirty) {
+                        try {
+                            writePage(page);
+                        } catch (IOException ex) {
+                            throw new MovementStorageException(ex);
+                        }
+                    }
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        };
+        this.root = newPage(true).number;
+    }
+
+    /**
+     * Put all the movements of the loader in this store, so they are not
+     * kept in memory.
+     */
+    @Override
+    public synchronized void setLoader(Loader loader) {
+        try {
+            for (int index = 0; index < loader.size(); index++) {
+                put(loader.getId(index), loader.load(index));
+            }
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Override
+    public void loadAll() {
+        // all the movements are in the files
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Decode the movement of the given ID. Each call gives a new movement, so
+     * a change made on it is stored only if it is put again (see
+     * {@link #put(long, Movement)}).
+     */
+    @Override
+    public synchronized Movement get(long id) {
+        try {
+            Page leaf = findLeaf(id);
+            int index = leaf.search(id);
+            if (index < 0) {
+                return null;
+            }
+            byte[] bytes = readData(leaf.positions[index], leaf.lengths[index]);
+            Movement movement = BinaryFormat.readMovement(new DataInputStream(
+                    new ByteArrayInputStream(bytes)), manager.
+                    getAccountsByOrdinal(), manager.getBudgetsByOrdinal());
+            movement.setScale(manager.getScale());
+            return movement;
+        } catch (IOException ex) {
+            throw new MovementLoadingException(id, ex);
+        }
+    }
+
+    @Override
+    public boolean sharesMovements() {
+        return false;
+    }
+
+    /**
+     * @exception MovementStorageException
+     *                if the movement cannot be written
+     */
+    @Override
+    public synchronized void put(long id, Movement movement) {
+        if (movement == null) {
+            throw new NullPointerException("the movement cannot be null");
+        }
+        if (id < 0) {
+            throw new IllegalArgumentException("the ID " + id
+                                               + " cannot be stored");
+        }
+        try {
+            byte[] bytes = encode(movement);
+            if (store(id, bytes)) {
+                size++;
+            }
+        } catch (IOException ex) {
+            throw new MovementStorageException(ex);
+        }
+    }
+
+    @Override
+    public synchronized Movement remove(long id) {
+        Movement movement = get(id);
+        if (movement != null) {
+            try {
+                Page leaf = findLeaf(id);
+                int index = leaf.search(id);
+                int moved = leaf.count - index - 1;
+                System.arraycopy(leaf.keys, index + 1, leaf.keys, index, moved);
+                System.arraycopy(leaf.positions, index + 1, leaf.positions,
+                        index, moved);
+                System.arraycopy(leaf.lengths, index + 1, leaf.lengths, index,
+                        moved);
+                leaf.count--;
+                changed(leaf);
+            } catch (IOException ex) {
+                throw new MovementStorageException(ex);
+            }
+            size--;
+        }
+        return movement;
+    }
+
+    @Override
+    public synchronized long nextId(long id) {
+        if (id < 0) {
+            id = 0;
+        }
+        try {
+            Page leaf = findLeaf(id);
+            int index = leaf.search(id);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            while (index >= leaf.count) {
+                if (leaf.next == NONE) {
+                    return -1;
+                }
+                leaf = getPage(leaf.next);
+                index = 0;
+            }
+            return leaf.keys[index];
+        } catch (IOException ex) {
+            throw new MovementStorageException(ex);
+        }
+    }
+
+    /**
+     * Close the files and delete them.
+     */
+    @Override
+    public synchronized void close() {
+        pages.clear();
+        try {
+            pageChannel.close();
+            dataChannel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeMovementStore.class.getName()).
+                    log(Level.SEVERE, null, ex);
+        }
+        pageFile.delete();
+        dataFile.delete();
+    }
+
+    /**
+     * Encode a movement in the binary format.
+     */
+    private byte[] encode(Movement movement) throws IOException {
+        List<Account> accounts = manager.getAccountsByOrdinal();
+        for (; referencedAccounts < accounts.size(); referencedAccounts++) {
+            references.put(accounts.get(referencedAccounts),
+                    referencedAccounts);
+        }
+        List<Budget> budgets = manager.getBudgetsByOrdinal();
+        for (; referencedBudgets < budgets.size(); referencedBudgets++) {
+            references.put(budgets.get(referencedBudgets), referencedBudgets);
+        }
+        encoded.reset();
+        BinaryFormat.writeMovement(new DataOutputStream(encoded), references,
+                movement);
+        return encoded.toByteArray();
+    }
+
+    /**
+     * Append an encoded movement to the data file and reference it in the
+     * B+tree.
+     *
+     * @return true if the ID is new, false if it replaces one
+     */
+    private boolean store(long id, byte[] bytes) throws IOException {
+        long position = appendData(bytes);
+        Page right = insert(getPage(root), id, position, bytes.length);
+        if (right != null) {
+            Page newRoot = newPage(false);
+            newRoot.children[0] = root;
+            newRoot.keys[0] = splitKey;
+            newRoot.children[1] = right.number;
+            newRoot.count = 1;
+            root = newRoot.number;
+        }
+        return inserted;
+    }
+
+    /**
+     * Insert or replace the reference of a movement in the subtree of a page.
+     *
+     * @return the new page at the right of the given one if it has been
+     *         split (its first key being {@link #splitKey}), null otherwise
+     */
+    private Page insert(Page page, long id, long position, int length)
+            throws IOException {
+        if (page.leaf) {
+            int index = page.search(id);
+            if (index >= 0) {
+                inserted = false;
+            } else {
+                inserted = true;
+                index = -index - 1;
+                int moved = page.count - index;
+                System.arraycopy(page.keys, index, page.keys, index + 1, moved);
+                System.arraycopy(page.positions, index, page.positions,
+                        index + 1, moved);
+                System.arraycopy(page.lengths, index, page.lengths, index + 1,
+                        moved);
+                page.keys[index] = id;
+                page.count++;
+            }
+            page.positions[index] = position;
+            page.lengths[index] = length;
+            changed(page);
+            return page.count > LEAF_CAPACITY
+                   ? splitLeaf(page, index)
+                   : null;
+        } else {
+            int child = page.getChildIndex(id);
+            Page right = insert(getPage(page.children[child]), id, position,
+                    length);
+            if (right == null) {
+                return null;
+            }
+            int moved = page.count - child;
+            System.arraycopy(page.keys, child, page.keys, child + 1, moved);
+            System.arraycopy(page.children, child + 1, page.children,
+                    child + 2, moved);
+            page.keys[child] = splitKey;
+            page.children[child + 1] = right.number;
+            page.count++;
+            changed(page);
+            return page.count > INNER_CAPACITY
+                   ? splitInner(page, child)
+                   : null;
+        }
+    }
+
+    /**
+     * Split a leaf which has one movement too many.
+     *
+     * @param index
+     *            the index of the movement inserted
+     */
+    private Page splitLeaf(Page leaf, int index) {
+        // the last leaf filled by a new ID keeps all its movements
+        int kept = index == leaf.count - 1 && leaf.next == NONE
+                   ? leaf.count - 1
+                   : leaf.count / 2;
+        Page right = newPage(true);
+        right.count = leaf.count - kept;
+        System.arraycopy(leaf.keys, kept, right.keys, 0, right.count);
+        System.arraycopy(leaf.positions, kept, right.positions, 0, right.count);
+        System.arraycopy(leaf.lengths, kept, right.lengths, 0, right.count);
+        leaf.count = kept;
+        right.next = leaf.next;
+        leaf.next = right.number;
+        changed(leaf);
+        splitKey = right.keys[0];
+        return right;
+    }
+
+    /**
+     * Split an inner page which has one key too many, its middle key going to
+     * its parent.
+     *
+     * @param index
+     *            the index of the key inserted
+     */
+    private Page splitInner(Page page, int index) {
+        // the last page filled by a new ID keeps all its keys
+        int middle = index == page.count - 1
+                     ? page.count - 1
+                     : page.count / 2;
+        Page right = newPage(false);
+        right.count = page.count - middle - 1;
+        System.arraycopy(page.keys, middle + 1, right.keys, 0, right.count);
+        System.arraycopy(page.children, middle + 1, right.children, 0,
+                right.count + 1);
+        splitKey = page.keys[middle];
+        page.count = middle;
+        changed(page);
+        return right;
+    }
+
+    /**
+     *
+     * @return the leaf which can contain the ID
+     */
+    private Page findLeaf(long id) throws IOException {
+        Page page = getPage(root);
+        while (!page.leaf) {
+            page = getPage(page.children[page.getChildIndex(id)]);
+        }
+        return page;
+    }
+
+    /**
+     *
+     * @return the page of this number, read if it is not in memory
+     */
+    private Page getPage(int number) throws IOException {
+        Page page = pages.get(number);
+        if (page == null) {
+            page = readPage(number);
+            pages.put(number, page);
+        }
+        return page;
+    }
+
+    private Page newPage(boolean leaf) {
+        Page page = new Page(pageCount++, leaf);
+        changed(page);
+        return page;
+    }
+
+    /**
+     * Tell a page has changed, so it is written when it is forgotten. The
+     * page is put back in memory if it has been forgotten while it was
+     * changed.
+     */
+    private void changed(Page page) {
+        page.dirty = true;
+        pages.put(page.number, page);
+    }
+
+    private Page readPage(int number) throws IOException {
+        ByteBuffer buffer = readBuffer;
+        buffer.clear();
+        long position = (long) number * PAGE_SIZE;
+        while (buffer.hasRemaining()) {
+            if (pageChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("the page " + number + " is missing");
+            }
+        }
+        buffer.flip();
+        Page page = new Page(number, buffer.get() != 0);
+        buffer.position(4);
+        page.count = buffer.getInt();
+        page.next = buffer.getInt();
+        buffer.position(HEADER_SIZE);
+        if (page.leaf) {
+            for (int index = 0; index < page.count; index++) {
+                page.keys[index] = buffer.getLong();
+                page.positions[index] = buffer.getLong();
+                page.lengths[index] = buffer.getInt();
+            }
+        } else {
+            page.children[0] = buffer.getInt();
+            for (int index = 0; index < page.count; index++) {
+                page.keys[index] = buffer.getLong();
+                page.children[index + 1] = buffer.getInt();
+            }
+        }
+        return page;
+    }
+
+    private void writePage(Page page) throws IOException {
+        ByteBuffer buffer = writeBuffer;
+        buffer.clear();
+        buffer.put((byte) (page.leaf
+                           ? 1
+                           : 0));
+        buffer.position(4);
+        buffer.putInt(page.count);
+        buffer.putInt(page.next);
+        buffer.position(HEADER_SIZE);
+        if (page.leaf) {
+            for (int index = 0; index < page.count; index++) {
+                buffer.putLong(page.keys[index]);
+                buffer.putLong(page.positions[index]);
+                buffer.putInt(page.lengths[index]);
+            }
+        } else {
+            buffer.putInt(page.children[0]);
+            for (int index = 0; index < page.count; index++) {
+                buffer.putLong(page.keys[index]);
+                buffer.putInt(page.children[index + 1]);
+            }
+        }
+        buffer.clear();
+        writeFully(pageChannel, buffer, (long) page.number * PAGE_SIZE);
+        page.dirty = false;
+    }
+
+    /**
+     * Append bytes to the data file, through the {@link #dataBuffer}.
+     *
+     * @return the position of the bytes in the data file
+     */
+    private long appendData(byte[] bytes) throws IOException {
+        if (dataBufferLength + bytes.length > dataBuffer.length) {
+            writeFully(dataChannel, ByteBuffer.wrap(dataBuffer, 0,
+                    dataBufferLength), dataLength);
+            dataLength += dataBufferLength;
+            dataBufferLength = 0;
+        }
+        long position = dataLength + dataBufferLength;
+        if (bytes.length > dataBuffer.length) {
+            writeFully(dataChannel, ByteBuffer.wrap(bytes), dataLength);
+            dataLength += bytes.length;
+        } else {
+            System.arraycopy(bytes, 0, dataBuffer, dataBufferLength,
+                    bytes.length);
+            dataBufferLength += bytes.length;
+        }
+        return position;
+    }
+
+    private byte[] readData(long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        if (position >= dataLength) {
+            System.arraycopy(dataBuffer, (int) (position - dataLength), bytes,
+                    0, length);
+        } else {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                if (dataChannel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("the movement at " + position
+                                           + " is truncated");
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer,
+                                   long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,1330 @@
+package manager;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.CipherInputStream;
+import javax.crypto.SecretKey;
+
+import accountancy.AccountancyElement;
+import accountancy.accounts.Account;
+import accountancy.budgets.Budget;
+import accountancy.movements.AssignmentVisitor;
+import accountancy.movements.Movement;
+import accountancy.movements.Movement.Sense;
+import util.BlockCipherInputStream;
+import util.BlockCipherOutputStream;
+import util.CorruptedBlockException;
+import util.Crypto;
+
+/**
+ * The binary format used to save a manager. Contrary to
+ * {@link Manager#writeExternal(java.io.ObjectOutput)}, which writes all the
+ * numbers and names as strings, this format writes:
+ * <ul>
+ * <li>the numbers (IDs, counts, etc.) as variable-length integers (7 bits per
+ * byte, the IDs of the movements being written as the difference with the
+ * previous one),</li>
+ * <li>the decimals as their scale followed by the bytes of their unscaled
+ * value,</li>
+ * <li>the names of the accounts and budgets once, in a dictionary, the links
+ * and movements referring to them by their index,</li>
+ * <li>the sense and the locking of a movement in one byte.</li>
+ * </ul>
+ * A saved file starts with {@link #MAGIC} and the version of the format, not
+ * encrypted, so the format is recognized before reading the content (a file
+ * without them is read with {@link Manager#readExternal(java.io.ObjectInput)}
+ * ).<br/>
+ * <br/>
+ * Since the version 3, the movements are followed by an index giving the
+ * position of each movement in the file (a fixed-size entry of 16 bytes for
+ * each movement: its ID then its position, sorted by ID) and the file ends
+ * with the position of the index. So a file not encrypted can be read
+ * without its movements, which are loaded only when they are needed (see
+ * {@link #readLazily(File, long, int)}). The version 2 has no index.<br/>
+ * <br/>
+ * Since the version 4, the file is split in sections: the elements (accounts,
+ * budgets and links), the movements and their index. The movements are split
+ * in chunks of {@link #MOVEMENTS_PER_CHUNK} movements, each chunk being
+ * preceded by its size and starting with the absolute ID of its first
+ * movement. So the chunks are independent and decoded in parallel once the
+ * elements they refer to are read. The file ends with a table giving the
+ * position and the size of each section (at the end because they are known
+ * only after writing them).<br/>
+ * <br/>
+ * Since the version 5, the version is followed by a byte of flags, telling
+ * whether the content is compressed ({@link #DEFLATED}). The content is
+ * compressed before being encrypted, and a compressed file is always read
+ * sequentially (the positions of the sections and of the index are then
+ * positions in the content not compressed).<br/>
+ * <br/>
+ * Since the version 6, the flags are followed by the stamp of the file, a
+ * random number identifying this save. The deltas written after it (see
+ * {@link #writeDelta(Snapshot, IdSet, boolean, OutputStream)}) carry the same
+ * stamp, so the deltas of a previous save are not merged on this one.<br/>
+ * <br/>
+ * Since the version 7, an encrypted file has the flag {@link #ENCRYPTED} and
+ * its header ends with the salt and the number of iterations used to derive
+ * its key from the password, then the initialization vector of its cipher.
+ * The previous versions are encrypted with a key which depends on the JVM
+ * (see {@link Crypto#getCipher(Crypto.Mode, String)}).<br/>
+ * <br/>
+ * Since the version 8, the content is encrypted in authenticated blocks (see
+ * {@link BlockCipherOutputStream}), so it is encrypted and decrypted in
+ * parallel and a corrupted block is reported (see
+ * {@link CorruptedBlockException}). The header has no initialization vector
+ * anymore, each block having its own nonce.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+final class BinaryFormat {
+
+    /**
+     * The bytes starting a file in this format.
+     */
+    public static final byte[] MAGIC = { 'A', 'M', 'G', 'R' };
+    /**
+     * The version of the format.
+     */
+    public static final int VERSION = 8;
+    /**
+     * The first version, without index of the movements.
+     */
+    public static final int VERSION_WITHOUT_INDEX = 2;
+    /**
+     * The last version without chunks of movements.
+     */
+    public static final int VERSION_WITHOUT_CHUNKS = 3;
+    /**
+     * The last version without flags in the header.
+     */
+    public static final int VERSION_WITHOUT_FLAGS = 4;
+    /**
+     * The last version without stamp in the header.
+     */
+    public static final int VERSION_WITHOUT_STAMP = 5;
+    /**
+     * The last version without key derivation in the header.
+     */
+    public static final int VERSION_WITHOUT_KEY_DERIVATION = 6;
+    /**
+     * The last version encrypting the content in a single stream.
+     */
+    public static final int VERSION_WITHOUT_BLOCKS = 7;
+    /**
+     * The bit of the header flags telling the content is compressed (with a
+     * {@link java.util.zip.Deflater}).
+     */
+    public static final int DEFLATED = 1;
+    /**
+     * The bit of the header flags telling the content is encrypted with a key
+     * derived from a password (see {@link Crypto#getKey(String, byte[], int)}
+     * ), the parameters of the derivation being in the header.
+     */
+    public static final int ENCRYPTED = 2;
+    /**
+     * The number of movements in a chunk (except the last one).
+     */
+    private static final int MOVEMENTS_PER_CHUNK = 4096;
+    /**
+     * The size of the section table, at the end of the file.
+     */
+    private static final int SECTION_TABLE_SIZE = 6 * 8;
+    /**
+     * The pool decoding the chunks of movements.
+     */
+    private static final ForkJoinPool DECODERS = new ForkJoinPool();
+    /**
+     * The maximum number of chunks read but not yet put in the manager, to
+     * not read the whole file in memory if the decoding is slower than the
+     * reading.
+     */
+    private static final int MAX_PENDING_CHUNKS = 4 * DECODERS.getParallelism();
+    /**
+     * The bit of the movement flags telling the sense is output.
+     */
+    private static final int OUTPUT = 1;
+    /**
+     * The bit of the movement flags telling the movement is locked.
+     */
+    private static final int LOCKED = 2;
+
+    private BinaryFormat() {
+    }
+
+    /**
+     *
+     * @param version
+     *            the version of the format
+     * @return the size of the header (magic, version, flags and stamp) in
+     *         this version
+     */
+    public static int getHeaderLength(int version) {
+        if (version <= VERSION_WITHOUT_FLAGS) {
+            return MAGIC.length + 1;
+        } else if (version <= VERSION_WITHOUT_STAMP) {
+            return MAGIC.length + 2;
+        } else {
+            return MAGIC.length + 2 + 8;
+        }
+    }
+
+    /**
+     * The header of a file in this format.
+     */
+    static class Header {
+
+        private final int version;
+        private final int flags;
+        private final long stamp;
+        /**
+         * The salt of the key derivation, null if the file is not encrypted
+         * or encrypted with the legacy key (see
+         * {@link Crypto#getCipher(Crypto.Mode, String)}).
+         */
+        private final byte[] salt;
+        private final int iterations;
+        /**
+         * The initialization vector of the cipher, null if the file is not
+         * encrypted or encrypted in blocks.
+         */
+        private final byte[] iv;
+
+        private Header(int version, int flags, long stamp, byte[] salt,
+                       int iterations, byte[] iv) {
+            this.version = version;
+            this.flags = flags;
+            this.stamp = stamp;
+            this.salt = salt;
+            this.iterations = iterations;
+            this.iv = iv;
+        }
+
+        /**
+         * Create the header of a new file, in the last version. If the file
+         * is encrypted, its key is derived with the salt of the session (see
+         * {@link Crypto#getSessionSalt()}), so it is derived only once.
+         *
+         * @param deflated
+         *            true if the content is compressed
+         * @param encrypted
+         *            true if the content is encrypted
+         * @param stamp
+         *            the stamp of the file
+         * @return the header
+         */
+        public static Header create(boolean deflated, boolean encrypted,
+                                    long stamp) {
+            int flags = (deflated ? DEFLATED : 0)
+                        | (encrypted ? ENCRYPTED : 0);
+            return encrypted
+                   ? new Header(VERSION, flags, stamp,
+                           Crypto.getSessionSalt(),
+                           Crypto.DEFAULT_ITERATIONS, null)
+                   : new Header(VERSION, flags, stamp, null, 0, null);
+        }
+
+        /**
+         * Read the header of a file. If the file does not start with
+         * {@link BinaryFormat#MAGIC}, the input is reset to its beginning.
+         *
+         * @param input
+         *            the input of the file, at its beginning
+         * @return the header read, null if the file is not in this format
+         * @throws IOException
+         *             if the header cannot be read or has an unsupported
+         *             version
+         */
+        public static Header read(BufferedInputStream input)
+                throws IOException {
+            input.mark(MAGIC.length);
+            byte[] magic = new byte[MAGIC.length];
+            int read = input.read(magic);
+            if (read != magic.length || !Arrays.equals(magic, MAGIC)) {
+                input.reset();
+                return null;
+            }
+            DataInputStream in = new DataInputStream(input);
+            int version = in.readUnsignedByte();
+            if (version < VERSION_WITHOUT_INDEX || version > VERSION) {
+                throw new IOException("unsupported version: " + version);
+            }
+            int flags = version > VERSION_WITHOUT_FLAGS
+                        ? in.readUnsignedByte()
+                        : 0;
+            long stamp = version > VERSION_WITHOUT_STAMP
+                         ? in.readLong()
+                         : 0;
+            if ((flags & ENCRYPTED) == 0) {
+                return new Header(version, flags, stamp, null, 0, null);
+            } else {
+                byte[] salt = new byte[Crypto.SALT_SIZE];
+                in.readFully(salt);
+                int iterations = in.readInt();
+                byte[] iv = null;
+                if (version <= VERSION_WITHOUT_BLOCKS) {
+                    iv = new byte[Crypto.IV_SIZE];
+                    in.readFully(iv);
+                }
+                return new Header(version, flags, stamp, salt, iterations,
+                        iv);
+            }
+        }
+
+        /**
+         * Write this header at the beginning of a file.
+         *
+         * @param output
+         *            the output of the file
+         */
+        public void write(OutputStream output) throws IOException {
+            DataOutputStream out = new DataOutputStream(output);
+            out.write(MAGIC);
+            out.writeByte(version);
+            out.writeByte(flags);
+            out.writeLong(stamp);
+            if (salt != null) {
+                out.write(salt);
+                out.writeInt(iterations);
+                if (iv != null) {
+                    out.write(iv);
+                }
+            }
+            out.flush();
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public long getStamp() {
+            return stamp;
+        }
+
+        /**
+         *
+         * @return true if the content is compressed
+         */
+        public boolean isDeflated() {
+            return (flags & DEFLATED) != 0;
+        }
+
+        /**
+         *
+         * @param password
+         *            the password given to read the file, null if there is
+         *            not
+         * @return true if the content is encrypted
+         */
+        public boolean isEncrypted(String password) {
+            return salt != null
+                   || password != null && version <= VERSION_WITHOUT_KEY_DERIVATION;
+        }
+
+        /**
+         * Decrypt the content of the file. Before the version 7, there is
+         * no key derivation in the header, so the legacy key is used if a
+         * password is given. Before the version 8, the content is decrypted
+         * in a single stream, without authentication.
+         *
+         * @param input
+         *            the input of the file, after the header
+         * @param password
+         *            the password of the file
+         * @return the input of the content decrypted, the given input if
+         *         the content is not encrypted
+         * @throws IOException
+         *             if the file is encrypted without password given, or
+         *             if the decryption cannot be started
+         */
+        @SuppressWarnings("deprecation")
+        public InputStream decrypt(InputStream input, String password)
+                throws IOException {
+            if (salt != null) {
+                SecretKey key = getKey(password);
+                if (iv == null) {
+                    return new BlockCipherInputStream(input, key);
+                } else {
+                    try {
+                        return new CipherInputStream(input, Crypto.getCipher(
+                                Crypto.Mode.DECRYPT, key, iv));
+                    } catch (GeneralSecurityException ex) {
+                        throw new IOException(ex);
+                    }
+                }
+            } else if (password != null
+                       && version <= VERSION_WITHOUT_KEY_DERIVATION) {
+                return new CipherInputStream(input, Crypto.getCipher(
+                        Crypto.Mode.DECRYPT, password));
+            } else {
+                return input;
+            }
+        }
+
+        /**
+         * Encrypt the content of a new file (see
+         * {@link #create(boolean, boolean, long)}).
+         *
+         * @param output
+         *            the output of the file, after the header
+         * @param password
+         *            the password of the file
+         * @return the output of the content to encrypt, the given output if
+         *         the content is not encrypted
+         * @throws IOException
+         *             if the file is encrypted without password given, or
+         *             if the encryption cannot be started
+         */
+        public OutputStream encrypt(OutputStream output, String password)
+                throws IOException {
+            if (salt != null) {
+                return new BlockCipherOutputStream(output, getKey(password));
+            } else {
+                return output;
+            }
+        }
+
+        /**
+         * Derive the key of the file from its password.
+         */
+        private SecretKey getKey(String password) throws IOException {
+            if (password == null) {
+                throw new IOException("the file is encrypted");
+            }
+            try {
+                return Crypto.getKey(password, salt, iterations);
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex);
+            }
+        }
+
+        /**
+         *
+         * @return the size of the header, so the position of the content
+         */
+        public int getLength() {
+            return getHeaderLength(version)
+                   + (salt == null
+                      ? 0
+                      : Crypto.SALT_SIZE + 4)
+                   + (iv == null
+                      ? 0
+                      : Crypto.IV_SIZE);
+        }
+    }
+
+    /**
+     * Write the content of a manager (without the header).
+     *
+     * @param snapshot
+     *            the snapshot of the manager to write
+     * @param output
+     *            the output to write to
+     * @param offset
+     *            the position in the file of the first byte written (after
+     *            the header)
+     * @throws IOException
+     *             if the content cannot be written
+     */
+    public static void write(Snapshot snapshot, OutputStream output,
+                             final long offset) throws IOException {
+        final CountingOutputStream counter = new CountingOutputStream(output);
+        final DataOutputStream out = new DataOutputStream(counter);
+        writeVarLong(out, snapshot.getLastGeneratedId());
+        writeVarLong(out, snapshot.getJournalSequence());
+        writeVarLong(out, snapshot.getScale() + 1);
+
+        final Map<AccountancyElement, Integer> references =
+                                               new IdentityHashMap<AccountancyElement, Integer>();
+        writeElements(out, snapshot, references, true);
+
+        // the movements, by chunks
+        final long[] positions = new long[snapshot.getMovementCount()];
+        writeVarLong(out, positions.length);
+        final long movementsPosition = offset + counter.getCount();
+        writeVarLong(out, (positions.length + MOVEMENTS_PER_CHUNK - 1)
+                          / MOVEMENTS_PER_CHUNK);
+        final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        final DataOutputStream chunkOut = new DataOutputStream(chunk);
+        snapshot.forEachMovement(new MovementVisitor<IOException>() {
+
+            private long previousId;
+            private long chunkPosition;
+            private int index = 0;
+            private int chunkEnd = 0;
+
+            @Override
+            public void visit(long id, Movement movement) throws IOException {
+                if (index == chunkEnd) {
+                    chunkEnd = Math.min(index + MOVEMENTS_PER_CHUNK,
+                            positions.length);
+                    chunk.reset();
+                    writeVarLong(chunkOut, chunkEnd - index);
+                    chunkPosition = offset + counter.getCount() + 4;
+                    previousId = 0;
+                }
+                positions[index++] = chunkPosition + chunk.size();
+                writeVarLong(chunkOut, id - previousId);
+                previousId = id;
+                writeMovement(chunkOut, references, movement);
+                if (index == chunkEnd) {
+                    out.writeInt(chunk.size());
+                    chunk.writeTo(out);
+                }
+            }
+        });
+
+        // the index
+        long indexPosition = offset + counter.getCount();
+        for (int index = 0; index < positions.length; index++) {
+            out.writeLong(snapshot.getMovementId(index));
+            out.writeLong(positions[index]);
+        }
+
+        // the section table
+        long endPosition = offset + counter.getCount();
+        out.writeLong(offset);
+        out.writeLong(movementsPosition - offset);
+        out.writeLong(movementsPosition);
+        out.writeLong(indexPosition - movementsPosition);
+        out.writeLong(indexPosition);
+        out.writeLong(endPosition - indexPosition);
+        out.flush();
+    }
+
+    /**
+     * Write the accounts, budgets and links of a snapshot.
+     *
+     * @param references
+     *            the map to fill with the index of each account and budget,
+     *            used to refer to them
+     * @param written
+     *            false to only fill the references
+     */
+    private static void writeElements(DataOutput out, Snapshot snapshot,
+                                      Map<AccountancyElement, Integer> references,
+                                      boolean written) throws IOException {
+        for (int index = 0; index < snapshot.getAccountCount(); index++) {
+            references.put(snapshot.getAccount(index), index);
+        }
+        for (int index = 0; index < snapshot.getBudgetCount(); index++) {
+            references.put(snapshot.getBudget(index), index);
+        }
+        if (!written) {
+            return;
+        }
+
+        writeVarLong(out, snapshot.getAccountCount());
+        for (int index = 0; index < snapshot.getAccountCount(); index++) {
+            out.writeUTF(snapshot.getAccountName(index));
+            writeDecimal(out, snapshot.getAccountValue(index));
+            BigDecimal limit = snapshot.getAccountLimit(index);
+            if (limit == Account.INFINITE_LIMIT) {
+                out.writeBoolean(false);
+            } else {
+                out.writeBoolean(true);
+                writeDecimal(out, limit);
+            }
+        }
+
+        writeVarLong(out, snapshot.getBudgetCount());
+        for (int index = 0; index < snapshot.getBudgetCount(); index++) {
+            out.writeUTF(snapshot.getBudgetName(index));
+            writeDecimal(out, snapshot.getBudgetValue(index));
+        }
+
+        writeVarLong(out, snapshot.getLinkCount());
+        for (int index = 0; index < snapshot.getLinkCount(); index++) {
+            writeVarLong(out, references.get(snapshot.getLinkAccount(index)));
+            writeVarLong(out, references.get(snapshot.getLinkBudget(index)));
+            writeOptionalDecimal(out, snapshot.getLinkValue(index));
+        }
+    }
+
+    /**
+     * Write the changes of a manager since its last save: the counters, the
+     * elements if they have changed, the IDs of the movements removed and the
+     * movements added or changed. The elements are few, so they are written
+     * all together rather than one by one.
+     *
+     * @param snapshot
+     *            the snapshot of the manager, with only the movements added
+     *            or changed
+     * @param removed
+     *            the IDs of the movements removed
+     * @param elementsChanged
+     *            true if the accounts, budgets or links have changed
+     * @param output
+     *            the output to write to
+     * @throws IOException
+     *             if the changes cannot be written
+     */
+    public static void writeDelta(Snapshot snapshot, IdSet removed,
+                                  boolean elementsChanged, OutputStream output)
+            throws IOException {
+        final DataOutputStream out = new DataOutputStream(output);
+        writeVarLong(out, snapshot.getLastGeneratedId());
+        writeVarLong(out, snapshot.getJournalSequence());
+        writeVarLong(out, snapshot.getScale() + 1);
+        out.writeBoolean(elementsChanged);
+        final Map<AccountancyElement, Integer> references =
+                                               new IdentityHashMap<AccountancyElement, Integer>();
+        writeElements(out, snapshot, references, elementsChanged);
+
+        writeVarLong(out, removed.size());
+        long previousId = 0;
+        for (int index = 0; index < removed.size(); index++) {
+            writeVarLong(out, removed.get(index) - previousId);
+            previousId = removed.get(index);
+        }
+
+        writeVarLong(out, snapshot.getMovementCount());
+        snapshot.forEachMovement(new MovementVisitor<IOException>() {
+
+            private long previousId = 0;
+
+            @Override
+            public void visit(long id, Movement movement) throws IOException {
+                writeVarLong(out, id - previousId);
+                previousId = id;
+                writeMovement(out, references, movement);
+            }
+        });
+        out.flush();
+    }
+
+    /**
+     * Merge the changes written by
+     * {@link #writeDelta(Snapshot, IdSet, boolean, OutputStream)} in a
+     * manager.
+     *
+     * @param in
+     *            the input to read from
+     * @param manager
+     *            the manager to change
+     * @throws IOException
+     *             if the changes cannot be read
+     */
+    public static void readDelta(DataInput in, Manager manager)
+            throws IOException {
+        long lastGeneratedId = readVarLong(in);
+        long journalSequence = readVarLong(in);
+        int scale = (int) readVarLong(in) - 1;
+        if (scale != manager.getScale()) {
+            manager.setScale(scale);
+        }
+
+        List<Account> accounts = new ArrayList<Account>();
+        List<Budget> budgets = new ArrayList<Budget>();
+        if (in.readBoolean()) {
+            Manager elements = new Manager();
+            elements.setScale(scale);
+            readElements(in, elements, new ArrayList<Account>(),
+                    new ArrayList<Budget>());
+            mergeElements(elements, manager);
+        }
+        accounts.addAll(manager.getAccounts());
+        budgets.addAll(manager.getBudgets());
+
+        int size = readCount(in);
+        long id = 0;
+        for (int i = 0; i < size; i++) {
+            id += readVarLong(in);
+            manager.restoreRemoval(id);
+        }
+
+        size = readCount(in);
+        id = 0;
+        for (int i = 0; i < size; i++) {
+            id += readVarLong(in);
+            manager.restoreMovement(id, readMovement(in, accounts, budgets));
+        }
+        manager.setLastGeneratedId(lastGeneratedId);
+        manager.setJournalSequence(journalSequence);
+    }
+
+    /**
+     * Give to the elements of a manager the values of the elements of another
+     * one, adding the ones which are missing. The links are changed the same
+     * way.
+     */
+    private static void mergeElements(Manager source, Manager target) {
+        for (Account account : source.getAccounts()) {
+            Account existing = target.getAccount(account.getName());
+            if (existing == null) {
+                target.addAccount(account);
+            } else {
+                existing.setLimit(account.getLimit());
+                existing.setForcedValue(account.getValue());
+            }
+        }
+        for (Budget budget : source.getBudgets()) {
+            Budget existing = target.getBudget(budget.getName());
+            if (existing == null) {
+                target.addBudget(budget);
+            } else {
+                existing.setValue(budget.getValue());
+            }
+        }
+
+        for (String account : target.getAccountNames()) {
+            for (String budget : target.getBudgetsLinkedToAccount(account)) {
+                if (!source.isLinked(account, budget)) {
+                    target.unlink(account, budget);
+                }
+            }
+        }
+        for (String account : source.getAccountNames()) {
+            for (String budget : source.getBudgetsLinkedToAccount(account)) {
+                BigDecimal value = source.getLinkValue(account, budget);
+                if (!target.isLinked(account, budget)) {
+                    target.link(account, budget, value);
+                } else if (value == null
+                           ? target.getLinkValue(account, budget) != null
+                           : !value.equals(target.getLinkValue(account,
+                                   budget))) {
+                    target.changeLinkValue(account, budget, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a movement, after its ID.
+     */
+    static void writeMovement(final DataOutput out,
+                              final Map<AccountancyElement, Integer> references,
+                              Movement movement) throws IOException {
+        writeReference(out, references, movement.getAccount());
+        int flags = movement.getSense() == Sense.OUTPUT
+                    ? OUTPUT
+                    : 0;
+        if (movement.isLocked()) {
+            flags |= LOCKED;
+        }
+        out.writeByte(flags);
+        writeDecimal(out, movement.getValue());
+        writeVarLong(out, movement.getAssignmentsCount());
+        movement.forEachAssignment(new AssignmentVisitor<IOException>() {
+
+            @Override
+            public void visit(Budget budget, BigDecimal value)
+                    throws IOException {
+                writeReference(out, references, budget);
+                writeDecimal(out, value);
+            }
+        });
+    }
+
+    /**
+     * Read the content of a manager (without the header), with all its
+     * movements.
+     *
+     * @param in
+     *            the input to read from
+     * @param version
+     *            the version of the format
+     * @return the manager read
+     * @throws IOException
+     *             if the content cannot be read
+     */
+    public static Manager read(DataInput in, int version) throws IOException {
+        final List<Account> accounts = new ArrayList<Account>();
+        final List<Budget> budgets = new ArrayList<Budget>();
+        Manager manager = readElements(in, accounts, budgets);
+
+        int size = readCount(in);
+        if (version <= VERSION_WITHOUT_CHUNKS) {
+            long id = 0;
+            for (int i = 0; i < size; i++) {
+                id += readVarLong(in);
+                manager.restoreMovement(id, readMovement(in, accounts,
+                        budgets));
+            }
+        } else {
+            // the chunks are decoded in parallel but put in the manager in
+            // their order, by this thread
+            int chunkCount = readCount(in);
+            Deque<Future<MovementChunk>> decodings =
+                                         new ArrayDeque<Future<MovementChunk>>();
+            try {
+                for (int i = 0; i < chunkCount; i++) {
+                    final ByteBuffer buffer = readBuffer(in, in.readInt());
+                    decodings.add(DECODERS.submit(
+                            new Callable<MovementChunk>() {
+
+                                @Override
+                                public MovementChunk call() throws IOException {
+                                    return new MovementChunk(buffer, accounts,
+                                            budgets);
+                                }
+                            }));
+                    if (decodings.size() >= MAX_PENDING_CHUNKS) {
+                        restore(manager, decodings.removeFirst());
+                    }
+                }
+                while (!decodings.isEmpty()) {
+                    restore(manager, decodings.removeFirst());
+                }
+            } finally {
+                for (Future<MovementChunk> decoding : decodings) {
+                    decoding.cancel(false);
+                }
+            }
+        }
+        return manager;
+    }
+
+    /**
+     * Read the content of a manager (without the header) record by record,
+     * without building the manager. Only the accounts and budgets are kept,
+     * to be referred by the links and movements, so the memory used does not
+     * depend on the number of movements.
+     *
+     * @param in
+     *            the input to read from
+     * @param version
+     *            the version of the format
+     * @param visitor
+     *            the visitor to call for each record
+     * @throws IOException
+     *             if the content cannot be read
+     * @exception E
+     *                if the visitor throws it (then the reading is stopped)
+     */
+    public static <E extends Exception> void readRecords(DataInput in,
+                                                         int version,
+                                                         RecordVisitor<E> visitor)
+            throws IOException, E {
+        readVarLong(in); // last generated ID
+        readVarLong(in); // journal sequence
+        int scale = (int) readVarLong(in) - 1;
+
+        List<Account> accounts = new ArrayList<Account>();
+        int size = readCount(in);
+        for (int i = 0; i < size; i++) {
+            Account account = new Account();
+            account.setScale(scale);
+            account.setName(in.readUTF());
+            account.setValue(readDecimal(in));
+            if (in.readBoolean()) {
+                account.setLimit(readDecimal(in));
+            }
+            accounts.add(account);
+            visitor.visitAccount(account);
+        }
+
+        List<Budget> budgets = new ArrayList<Budget>();
+        size = readCount(in);
+        for (int i = 0; i < size; i++) {
+            Budget budget = new Budget();
+            budget.setScale(scale);
+            budget.setName(in.readUTF());
+            budget.setValue(readDecimal(in));
+            budgets.add(budget);
+            visitor.visitBudget(budget);
+        }
+
+        size = readCount(in);
+        for (int i = 0; i < size; i++) {
+            Account account = accounts.get(readCount(in));
+            Budget budget = budgets.get(readCount(in));
+            visitor.visitLink(account, budget, readOptionalDecimal(in));
+        }
+
+        // the chunks are read in the stream, so none is kept in memory
+        size = readCount(in);
+        int chunkCount = version <= VERSION_WITHOUT_CHUNKS
+                         ? 1
+                         : readCount(in);
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            int chunkSize = size;
+            if (version > VERSION_WITHOUT_CHUNKS) {
+                in.readInt(); // the length of the chunk
+                chunkSize = readCount(in);
+            }
+            long id = 0;
+            for (int i = 0; i < chunkSize; i++) {
+                id += readVarLong(in);
+                Movement movement = readMovement(in, accounts, budgets);
+                movement.setScale(scale);
+                visitor.visitMovement(id, movement);
+            }
+        }
+    }
+
+    /**
+     * Put the movements of a chunk in the manager, once decoded.
+     */
+    private static void restore(Manager manager, Future<MovementChunk> decoding)
+            throws IOException {
+        MovementChunk chunk;
+        try {
+            chunk = decoding.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            } else {
+                throw new IOException(ex.getCause());
+            }
+        }
+        for (int i = 0; i < chunk.ids.length; i++) {
+            manager.restoreMovement(chunk.ids[i], chunk.movements[i]);
+        }
+    }
+
+    /**
+     * Read some bytes, without copying them if they are mapped.
+     */
+    private static ByteBuffer readBuffer(DataInput in, int length)
+            throws IOException {
+        if (in instanceof MappedInput) {
+            return ((MappedInput) in).readBuffer(length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        }
+    }
+
+    /**
+     * A chunk of movements, decoded from its bytes.
+     */
+    private static class MovementChunk {
+
+        private final long[] ids;
+        private final Movement[] movements;
+
+        public MovementChunk(ByteBuffer buffer, List<Account> accounts,
+                             List<Budget> budgets) throws IOException {
+            MappedInput in = new MappedInput(buffer);
+            int size = readCount(in);
+            ids = new long[size];
+            movements = new Movement[size];
+            long id = 0;
+            for (int i = 0; i < size; i++) {
+                id += readVarLong(in);
+                ids[i] = id;
+                movements[i] = readMovement(in, accounts, budgets);
+            }
+        }
+    }
+
+    /**
+     * Read the content of a manager (without the header) in the version 3 or
+     * later, without its movements. The file stays open to load the movements when
+     * they are needed (see {@link MovementStore#setLoader(MovementStore.Loader)}
+     * ), until all of them are loaded.<br/>
+     * <br/>
+     * The file is mapped in memory (see {@link MappedInput}), and a mapping is
+     * released only when it is garbage collected. So, on the systems refusing
+     * to replace a mapped file (like Windows), the file cannot be saved again
+     * while the manager read from it is still used: a lazily loaded manager
+     * must be saved in another file, or loaded entirely before.
+     *
+     * @param file
+     *            the file to read, not encrypted
+     * @param offset
+     *            the position of the content, after the header
+     * @param version
+     *            the version of the format
+     * @return the manager read
+     * @throws IOException
+     *             if the content cannot be read
+     */
+    public static Manager readLazily(File file, long offset, int version)
+            throws IOException {
+        MappedInput in = new MappedInput(file, offset);
+        MappedInput index = null;
+        try {
+            List<Account> accounts = new ArrayList<Account>();
+            List<Budget> budgets = new ArrayList<Budget>();
+            Manager manager = readElements(in, accounts, budgets);
+            int size = readCount(in);
+
+            long indexPosition;
+            if (version <= VERSION_WITHOUT_CHUNKS) {
+                index = new MappedInput(file, in.size() - 8);
+                indexPosition = index.readLong();
+            } else {
+                index = new MappedInput(file, in.size() - SECTION_TABLE_SIZE
+                                              + 4 * 8);
+                indexPosition = index.readLong();
+            }
+            manager.setMovementLoader(new Loader(manager, accounts, budgets,
+                    in, index, indexPosition, size));
+            return manager;
+        } catch (IOException ex) {
+            in.close();
+            if (index != null) {
+                index.close();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Read the beginning of the content, until the movements.
+     *
+     * @param in
+     *            the input to read from
+     * @param accounts
+     *            the list to fill with the accounts, in the order of the
+     *            dictionary
+     * @param budgets
+     *            the list to fill with the budgets, in the order of the
+     *            dictionary
+     * @return the manager read, without movements
+     */
+    private static Manager readElements(DataInput in, List<Account> accounts,
+                                        List<Budget> budgets)
+            throws IOException {
+        Manager manager = new Manager();
+        manager.setLastGeneratedId(readVarLong(in));
+        manager.setJournalSequence(readVarLong(in));
+        // the scale is given first, so each element is converted only once
+        manager.setScale((int) readVarLong(in) - 1);
+        readElements(in, manager, accounts, budgets);
+        return manager;
+    }
+
+    /**
+     * Read the accounts, budgets and links, and add them to a manager.
+     */
+    private static void readElements(DataInput in, Manager manager,
+                                     List<Account> accounts,
+                                     List<Budget> budgets) throws IOException {
+        int size = readCount(in);
+        for (int i = 0; i < size; i++) {
+            Account account = new Account();
+            account.setName(in.readUTF());
+            account.setValue(readDecimal(in));
+            if (in.readBoolean()) {
+                account.setLimit(readDecimal(in));
+            }
+            manager.addAccount(account);
+            accounts.add(account);
+        }
+
+        size = readCount(in);
+        for (int i = 0; i < size; i++) {
+            Budget budget = new Budget();
+            budget.setName(in.readUTF());
+            budget.setValue(readDecimal(in));
+            manager.addBudget(budget);
+            budgets.add(budget);
+        }
+
+        size = readCount(in);
+        for (int i = 0; i < size; i++) {
+            Account account = accounts.get(readCount(in));
+            Budget budget = budgets.get(readCount(in));
+            manager.link(account.getName(), budget.getName(),
+                    readOptionalDecimal(in));
+        }
+    }
+
+    /**
+     * Read a movement, after its ID.
+     */
+    static Movement readMovement(DataInput in, List<Account> accounts,
+                                 List<Budget> budgets)
+            throws IOException {
+        Movement movement = new Movement();
+        int account = readCount(in);
+        if (account > 0) {
+            movement.setAccount(accounts.get(account - 1));
+        }
+        int flags = in.readByte();
+        movement.setSense((flags & OUTPUT) == 0
+                          ? Sense.INPUT
+                          : Sense.OUTPUT);
+        movement.setValue(readDecimal(in));
+
+        int assignmentCount = readCount(in);
+        if (assignmentCount > 0) {
+            Budget[] assigned = new Budget[assignmentCount];
+            BigDecimal[] values = new BigDecimal[assignmentCount];
+            for (int j = 0; j < assignmentCount; j++) {
+                int budget = readCount(in);
+                assigned[j] = budget == 0
+                              ? null
+                              : budgets.get(budget - 1);
+                values[j] = readDecimal(in);
+            }
+            movement.assignValuesToBudgets(assigned, values);
+        }
+
+        movement.setLocked((flags & LOCKED) != 0);
+        return movement;
+    }
+
+    /**
+     * A loader reading the movements of a file when they are needed, by
+     * looking for their position in the index of the file.
+     */
+    private static class Loader implements MovementStore.Loader {
+
+        private final Manager manager;
+        private final List<Account> accounts;
+        private final List<Budget> budgets;
+        /**
+         * The input used to read the movements.
+         */
+        private final MappedInput in;
+        /**
+         * The input used to read the index.
+         */
+        private final MappedInput index;
+        /**
+         * The position of the index in the file.
+         */
+        private final long indexPosition;
+        /**
+         * The number of movements in the file.
+         */
+        private final int size;
+
+        public Loader(Manager manager, List<Account> accounts,
+                      List<Budget> budgets, MappedInput in, MappedInput index,
+                      long indexPosition, int size) {
+            this.manager = manager;
+            this.accounts = accounts;
+            this.budgets = budgets;
+            this.in = in;
+            this.index = index;
+            this.indexPosition = indexPosition;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public long getId(int position) {
+            try {
+                index.seek(indexPosition + 16L * position);
+                return index.readLong();
+            } catch (IOException ex) {
+                throw new MovementLoadingException(-1, ex);
+            }
+        }
+
+        @Override
+        public Movement load(int position) {
+            long id = getId(position);
+            try {
+                in.seek(index.readLong());
+                readVarLong(in);
+                Movement movement = readMovement(in, accounts, budgets);
+                manager.movementLoaded(id, movement);
+                return movement;
+            } catch (IOException ex) {
+                throw new MovementLoadingException(id, ex);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                in.close();
+                index.close();
+            } catch (IOException ex) {
+                Logger.getLogger(BinaryFormat.class.getName()).
+                        log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * An output stream counting the bytes written, to know the position of
+     * the movements in the file.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length)
+                throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Write a reference to an element of the dictionary: 0 for no element,
+     * its index + 1 otherwise (an element which is not in the manager is
+     * written as no element, as {@link Manager#getAccount(String)} would give
+     * for the legacy format).
+     */
+    private static void writeReference(DataOutput out,
+                                       Map<AccountancyElement, Integer> references,
+                                       AccountancyElement element)
+            throws IOException {
+        Integer index = element == null
+                        ? null
+                        : references.get(element);
+        writeVarLong(out, index == null
+                          ? 0
+                          : index + 1);
+    }
+
+    /**
+     * Write a decimal as its scale then its unscaled value (the number of
+     * bytes followed by the bytes, in two's complement).
+     */
+    static void writeDecimal(DataOutput out, BigDecimal value)
+            throws IOException {
+        writeVarLong(out, zigZag(value.scale()));
+        BigInteger unscaled = value.unscaledValue();
+        if (unscaled.bitLength() < 64) {
+            long units = unscaled.longValue();
+            int length = (64 - Long.numberOfLeadingZeros(units < 0
+                                                         ? ~units
+                                                         : units)) / 8 + 1;
+            out.writeByte(length);
+            for (int shift = (length - 1) * 8; shift >= 0; shift -= 8) {
+                out.writeByte((int) (units >> shift));
+            }
+        } else {
+            byte[] bytes = unscaled.toByteArray();
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Read a decimal written by {@link #writeDecimal(DataOutput, BigDecimal)}.
+     * The small values (the most common) are read without creating a
+     * {@link BigInteger}.
+     */
+    static BigDecimal readDecimal(DataInput in) throws IOException {
+        int scale = unZigZag(readVarLong(in));
+        int length = readCount(in);
+        if (length <= 8) {
+            long units = in.readByte();
+            for (int i = 1; i < length; i++) {
+                units = (units << 8) | (in.readByte() & 0xFF);
+            }
+            return BigDecimal.valueOf(units, scale);
+        } else {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new BigDecimal(new BigInteger(bytes), scale);
+        }
+    }
+
+    private static void writeOptionalDecimal(DataOutput out, BigDecimal value)
+            throws IOException {
+        if (value == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            writeDecimal(out, value);
+        }
+    }
+
+    private static BigDecimal readOptionalDecimal(DataInput in)
+            throws IOException {
+        return in.readBoolean()
+               ? readDecimal(in)
+               : null;
+    }
+
+    /**
+     * Write a positive long with 7 bits per byte, the high bit telling if
+     * another byte follows.
+     */
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Read a long written by {@link #writeVarLong(DataOutput, long)}.
+     */
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed variable-length number");
+    }
+
+    /**
+     * Read a count or an index, which must fit an int.
+     */
+    private static int readCount(DataInput in) throws IOException {
+        long value = readVarLong(in);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("invalid count: " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * @return the value with the sign in the lowest bit, so the small negative
+     *         values are written in few bytes
+     */
+    private static long zigZag(int value) {
+        return ((long) value << 1) ^ (value >> 31);
+    }
+
+    private static int unZigZag(long value) {
+        return (int) ((value >>> 1) ^ -(value & 1));
+    }
+}
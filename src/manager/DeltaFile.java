@@ -0,0 +1,190 @@
+package manager;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import util.Crypto;
+
+/**
+ * A delta file contains the changes of a manager since it has been saved (see
+ * {@link Manager#saveIncremental(String, String)}), so only these changes are
+ * written instead of the whole manager. Each incremental save appends a delta
+ * (see {@link BinaryFormat#writeDelta(Snapshot, IdSet, boolean, OutputStream)})
+ * preceded by the stamp of the saved file and by the size of the delta. A
+ * delta is encrypted alone, so it can be appended without reading the
+ * previous ones: an encrypted delta starts with the salt and the number of
+ * iterations used to derive its key, then the initialization vector of its
+ * cipher (see {@link Crypto}).<br/>
+ * <br/>
+ * The deltas are merged on the saved manager when it is loaded, until a delta
+ * with another stamp (written for a previous save) or an incomplete one (the
+ * writing has been interrupted) is found.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+final class DeltaFile {
+
+    /**
+     * The size of the stamp and the length preceding each delta.
+     */
+    private static final int DELTA_HEADER_SIZE = 8 + 4;
+
+    private DeltaFile() {
+    }
+
+    /**
+     * Append a delta to a delta file.
+     *
+     * @param file
+     *            the delta file
+     * @param length
+     *            the length of the valid deltas of the file, the next bytes
+     *            (an interrupted writing or the deltas of a previous save)
+     *            being replaced
+     * @param stamp
+     *            the stamp of the saved file
+     * @param snapshot
+     *            the snapshot of the manager, with only the movements added
+     *            or changed
+     * @param removed
+     *            the IDs of the movements removed
+     * @param elementsChanged
+     *            true if the accounts, budgets or links have changed
+     * @param password
+     *            the password to encrypt the delta, null to not encrypt it
+     * @return the new length of the valid deltas of the file
+     * @throws IOException
+     *             if the delta cannot be written
+     */
+    public static long append(File file, long length, long stamp,
+                              Snapshot snapshot, IdSet removed,
+                              boolean elementsChanged, String password)
+            throws IOException {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        OutputStream output = delta;
+        if (password != null) {
+            byte[] salt = Crypto.getSessionSalt();
+            byte[] iv = Crypto.generateBytes(Crypto.IV_SIZE);
+            DataOutputStream parameters = new DataOutputStream(delta);
+            parameters.write(salt);
+            parameters.writeInt(Crypto.DEFAULT_ITERATIONS);
+            parameters.write(iv);
+            output = new CipherOutputStream(output, getCipher(
+                    Crypto.Mode.ENCRYPT, password, salt,
+                    Crypto.DEFAULT_ITERATIONS, iv));
+        }
+        BinaryFormat.writeDelta(snapshot, removed, elementsChanged, output);
+        output.close();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                DELTA_HEADER_SIZE + delta.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(stamp);
+        out.writeInt(delta.size());
+        delta.writeTo(out);
+        out.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+            raf.seek(length);
+            raf.write(bytes.toByteArray());
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+        return length + bytes.size();
+    }
+
+    /**
+     * Give a cipher with a key derived from a password.
+     */
+    private static Cipher getCipher(Crypto.Mode mode, String password,
+                                    byte[] salt, int iterations, byte[] iv)
+            throws IOException {
+        try {
+            return Crypto.getCipher(mode, Crypto.getKey(password, salt,
+                    iterations), iv);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Merge the deltas of a delta file on a manager.
+     *
+     * @param file
+     *            the delta file
+     * @param manager
+     *            the manager loaded from the saved file
+     * @param stamp
+     *            the stamp of the saved file
+     * @param password
+     *            the password to decrypt the deltas, null if they are not
+     *            encrypted
+     * @return the length of the valid deltas of the file
+     * @throws IOException
+     *             if a delta cannot be read
+     */
+    public static long merge(File file, Manager manager, long stamp,
+                             String password) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        long length = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            while (true) {
+                byte[] delta;
+                try {
+                    if (in.readLong() != stamp) {
+                        break;
+                    }
+                    int size = in.readInt();
+                    if (size < 0) {
+                        break;
+                    }
+                    delta = new byte[size];
+                    in.readFully(delta);
+                } catch (EOFException ex) {
+                    // the end of the file or an interrupted writing
+                    break;
+                }
+
+                InputStream input = new ByteArrayInputStream(delta);
+                if (password != null) {
+                    DataInputStream parameters = new DataInputStream(input);
+                    byte[] salt = new byte[Crypto.SALT_SIZE];
+                    parameters.readFully(salt);
+                    int iterations = parameters.readInt();
+                    byte[] iv = new byte[Crypto.IV_SIZE];
+                    parameters.readFully(iv);
+                    input = new CipherInputStream(input, getCipher(
+                            Crypto.Mode.DECRYPT, password, salt, iterations,
+                            iv));
+                }
+                BinaryFormat.readDelta(new DataInputStream(
+                        new BufferedInputStream(input)), manager);
+                length += DELTA_HEADER_SIZE + delta.length;
+            }
+        } finally {
+            in.close();
+        }
+        return length;
+    }
+}
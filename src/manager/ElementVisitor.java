@@ -0,0 +1,27 @@
+package manager;
+
+import accountancy.AccountancyElement;
+
+/**
+ * An element visitor is called for each account or budget of a manager (see
+ * {@link Manager#forEachAccount(ElementVisitor)} and
+ * {@link Manager#forEachBudget(ElementVisitor)}).
+ * 
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ * 
+ * @param <T>
+ *            the type of element visited
+ * @param <E>
+ *            the exception the visitor can throw ({@link RuntimeException} if
+ *            it does not throw checked exceptions)
+ */
+public interface ElementVisitor<T extends AccountancyElement,
+        E extends Exception> {
+
+    /**
+     * 
+     * @param element
+     *            the element visited
+     */
+    public void visit(T element) throws E;
+}
@@ -0,0 +1,223 @@
+package manager;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A set of movement IDs, kept sorted in an array of longs. As the IDs are
+ * generated in increasing order, they are usually added at the end of the
+ * array.<br/>
+ * <br/>
+ * An ID removed is only marked as removed, so removing the first IDs does not
+ * shift all the others. The marked IDs are dropped at once when the IDs are
+ * browsed by index, or when they become half of the array, so a removal costs
+ * a constant time on average.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+class IdSet {
+
+    /**
+     * The IDs of this set, sorted. Only the {@link #size} first ones are used.
+     */
+    private long[] ids = new long[4];
+    /**
+     * The number of IDs used in the array, including the removed ones.
+     */
+    private int size = 0;
+    /**
+     * The positions in the array of the IDs removed but still there, null if
+     * there is not.
+     */
+    private BitSet removed = null;
+    /**
+     * The number of IDs removed but still in the array.
+     */
+    private int removedCount = 0;
+
+    /**
+     * Create an empty set.
+     */
+    public IdSet() {
+    }
+
+    /**
+     * Create a set from IDs in any order, sorted once rather than inserted one
+     * by one.
+     *
+     * @param ids
+     *            the IDs of the set, without duplicates, the array being used
+     *            by the set
+     * @param size
+     *            the number of IDs used in the array
+     */
+    public IdSet(long[] ids, int size) {
+        Arrays.sort(ids, 0, size);
+        this.ids = ids.length == 0
+                   ? new long[4]
+                   : ids;
+        this.size = size;
+    }
+
+    /**
+     *
+     * @return the number of IDs in this set
+     */
+    public int size() {
+        return size - removedCount;
+    }
+
+    /**
+     *
+     * @param index
+     *            the index of an ID in this set
+     * @return the ID at this index, the IDs being sorted
+     */
+    public long get(int index) {
+        compact();
+        return ids[index];
+    }
+
+    /**
+     *
+     * @param id
+     *            the ID to check
+     * @return true if the ID is in this set, false otherwise
+     */
+    public boolean contains(long id) {
+        int index = Arrays.binarySearch(ids, 0, size, id);
+        return index >= 0 && !isRemoved(index);
+    }
+
+    /**
+     * Give the IDs which are both in this set and in another one. Each ID of
+     * the smallest set is searched in the biggest one by galloping from the
+     * last ID found, so the intersection costs little more than browsing the
+     * smallest set.
+     *
+     * @param other
+     *            the other set
+     * @return the IDs of both sets
+     */
+    public IdSet intersection(IdSet other) {
+        compact();
+        other.compact();
+        IdSet small = size <= other.size
+                      ? this
+                      : other;
+        IdSet big = small == this
+                    ? other
+                    : this;
+        IdSet result = new IdSet();
+        int start = 0;
+        for (int index = 0; index < small.size && start < big.size; index++) {
+            long id = small.ids[index];
+            // gallop until the ID is passed, then search between the steps
+            int step = 1;
+            int end = start;
+            while (end < big.size && big.ids[end] < id) {
+                start = end + 1;
+                end += step;
+                step *= 2;
+            }
+            int found = Arrays.binarySearch(big.ids, start,
+                    Math.min(end + 1, big.size), id);
+            if (found >= 0) {
+                result.add(id);
+                start = found + 1;
+            } else {
+                start = -found - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add an ID to this set, if it is not already in.
+     *
+     * @param id
+     *            the ID to add
+     */
+    public void add(long id) {
+        int index = size == 0 || id > ids[size - 1]
+                    ? size
+                    : Arrays.binarySearch(ids, 0, size, id);
+        if (index >= 0 && index < size) {
+            if (isRemoved(index)) {
+                removed.clear(index);
+                removedCount--;
+            }
+            return;
+        }
+        if (index < 0) {
+            // the IDs are shifted, so their marks must be dropped before
+            compact();
+            index = -Arrays.binarySearch(ids, 0, size, id) - 1;
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        System.arraycopy(ids, index, ids, index + 1, size - index);
+        ids[index] = id;
+        size++;
+    }
+
+    /**
+     * Remove all the IDs of this set.
+     */
+    public void clear() {
+        size = 0;
+        removed = null;
+        removedCount = 0;
+    }
+
+    /**
+     * Remove an ID from this set, if it is in.
+     *
+     * @param id
+     *            the ID to remove
+     */
+    public void remove(long id) {
+        int index = Arrays.binarySearch(ids, 0, size, id);
+        if (index < 0 || isRemoved(index)) {
+            return;
+        } else if (index == size - 1) {
+            size--;
+        } else {
+            if (removed == null) {
+                removed = new BitSet(size);
+            }
+            removed.set(index);
+            removedCount++;
+            if (removedCount > size / 2) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * @return true if the ID at the given position of the array is removed
+     */
+    private boolean isRemoved(int index) {
+        return removed != null && removed.get(index);
+    }
+
+    /**
+     * Drop the IDs removed from the array, so the IDs are at their index.
+     */
+    private void compact() {
+        if (removedCount == 0) {
+            return;
+        }
+        int kept = 0;
+        for (int index = 0; index < size; index++) {
+            if (!removed.get(index)) {
+                ids[kept++] = ids[index];
+            }
+        }
+        size = kept;
+        removed = null;
+        removedCount = 0;
+    }
+}
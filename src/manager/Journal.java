@@ -0,0 +1,843 @@
+package manager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import accountancy.accounts.Account;
+import accountancy.budgets.Budget;
+import accountancy.movements.AssignmentVisitor;
+import accountancy.movements.Movement;
+import accountancy.movements.Movement.Sense;
+import util.Crypto;
+
+/**
+ * A journal is a file where the changes of a manager are appended, so saving a
+ * change costs as much as the change itself, not as the whole manager. The
+ * state of the manager is rebuilt by reading its last snapshot (see
+ * {@link Manager#save(String, String)}) then replaying the journal.<br/>
+ * <br/>
+ * Each record is written at once and has a sequence number, so the records
+ * already covered by a snapshot are ignored. A record is preceded by its
+ * length, so a record partially written (if the application has been stopped
+ * while writing it) is recognized and forgotten, like a length which does not
+ * fit in the rest of the file.<br/>
+ * <br/>
+ * The journal of an encrypted manager is encrypted with the same password: it
+ * starts with the salt and the number of iterations deriving its key (see
+ * {@link Crypto#getKey(String, byte[], int)}), then each record is encrypted
+ * with its own nonce by an authenticated cipher (see
+ * {@link Crypto#getAuthenticatedCipher(Crypto.Mode, SecretKey, byte[])}), so
+ * a record changed is detected.<br/>
+ * <br/>
+ * A journal can be compacted in background while records are appended: the
+ * movements added then removed without being applied are purged, only the
+ * removal staying as a tombstone (to not generate their IDs again). The
+ * tombstones disappear with the next snapshot, which empties the journal.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+class Journal {
+
+    private static final byte ADD_ACCOUNT = 1;
+    private static final byte ADD_BUDGET = 2;
+    private static final byte LINK = 3;
+    private static final byte UNLINK = 4;
+    private static final byte CHANGE_LINK_VALUE = 5;
+    private static final byte ADD_MOVEMENT = 6;
+    private static final byte APPLY_MOVEMENT = 7;
+    private static final byte CANCEL_MOVEMENT = 8;
+    private static final byte REMOVE_MOVEMENT = 9;
+    /**
+     * The length of the smallest record: its type and sequence number.
+     */
+    private static final int MIN_RECORD_LENGTH = 1 + 8;
+    /**
+     * The first int of an encrypted journal, which no record length can be.
+     */
+    private static final int ENCRYPTED = -1;
+    /**
+     * The size of the header of an encrypted journal: {@link #ENCRYPTED}, the
+     * salt and the number of iterations.
+     */
+    private static final int ENCRYPTED_HEADER_SIZE = 4 + Crypto.SALT_SIZE + 4;
+    /**
+     * The position of the movement ID in a movement record (after the type
+     * and the sequence number).
+     */
+    private static final int ID_POSITION = 1 + 8;
+    /**
+     * The thread compacting the journals in background.
+     */
+    private static final ExecutorService COMPACTOR = Executors.
+            newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "journal compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * The file of this journal.
+     */
+    private final File file;
+    /**
+     * The key encrypting the records, null if they are not encrypted.
+     */
+    private final SecretKey key;
+    /**
+     * The size of the header, before the records.
+     */
+    private final int headerSize;
+    /**
+     * The file opened to append the records, replaced by the compacted one
+     * after a compaction.
+     */
+    private RandomAccessFile output;
+    /**
+     * The number of records in this journal.
+     */
+    private int recordCount = 0;
+    /**
+     * The number of times this journal has been emptied, to know if it has
+     * been emptied during a compaction.
+     */
+    private int generation = 0;
+    /**
+     * Tell if this journal is closed.
+     */
+    private boolean closed = false;
+    /**
+     * The buffer where a record is prepared, to write it at once.
+     */
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    /**
+     * The stream filling the {@link #buffer}.
+     */
+    private final DataOutputStream record = new DataOutputStream(buffer);
+    /**
+     * The records prepared since {@link #startBatch()}, to write them at
+     * once, null if no batch is started.
+     */
+    private ByteArrayOutputStream batch = null;
+
+    /**
+     * Open a journal to append records to it. If the last record of the file
+     * is incomplete, it is removed. A journal without records is encrypted
+     * if a password is given, but a journal having records must be encrypted
+     * the same way.
+     *
+     * @param file
+     *            the file of the journal (created if it does not exist)
+     * @param password
+     *            the password to encrypt the records, null to not encrypt
+     *            them
+     * @throws IOException
+     *             if the file cannot be opened, or if its records are not
+     *             encrypted with this password
+     */
+    public Journal(File file, String password) throws IOException {
+        this.file = file;
+        this.output = new RandomAccessFile(file, "rw");
+        try {
+            DataInputStream input = openInput(file);
+            long fileLength = file.length();
+            boolean encrypted = false;
+            SecretKey fileKey = null;
+            long length = 0;
+            try {
+                if (isEncrypted(input, fileLength)) {
+                    encrypted = true;
+                    fileKey = readKey(input, password);
+                    length = ENCRYPTED_HEADER_SIZE;
+                }
+                byte[] bytes;
+                while ((bytes = readRecord(input, fileLength - length)) != null) {
+                    decode(bytes, fileKey);
+                    length += 4 + bytes.length;
+                    recordCount++;
+                }
+            } finally {
+                input.close();
+            }
+
+            if (recordCount > 0 && encrypted != (password != null)) {
+                throw new IOException(password == null
+                                      ? "the journal is encrypted"
+                                      : "the journal is not encrypted");
+            } else if (recordCount == 0 && password != null) {
+                byte[] salt = Crypto.getSessionSalt();
+                output.setLength(0);
+                output.writeInt(ENCRYPTED);
+                output.write(salt);
+                output.writeInt(Crypto.DEFAULT_ITERATIONS);
+                fileKey = getKey(password, salt, Crypto.DEFAULT_ITERATIONS);
+                length = ENCRYPTED_HEADER_SIZE;
+            } else if (recordCount == 0) {
+                length = 0;
+            }
+            this.key = fileKey;
+            this.headerSize = fileKey == null
+                              ? 0
+                              : ENCRYPTED_HEADER_SIZE;
+            output.setLength(length);
+            output.seek(length);
+        } catch (IOException ex) {
+            output.close();
+            throw ex;
+        }
+    }
+
+    /**
+     *
+     * @return the file of this journal
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Remove all the records of this journal, because they are covered by a
+     * snapshot.
+     *
+     * @throws IOException
+     *             if the file cannot be changed
+     */
+    public synchronized void clear() throws IOException {
+        output.setLength(headerSize);
+        output.getFD().sync();
+        recordCount = 0;
+        generation++;
+    }
+
+    /**
+     *
+     * @return the number of records in this journal
+     */
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Close this journal, no more record can be written.
+     *
+     * @throws IOException
+     *             if the file cannot be closed
+     */
+    public synchronized void close() throws IOException {
+        closed = true;
+        output.close();
+    }
+
+    public synchronized void accountAdded(long sequence, Account account) {
+        try {
+            start(ADD_ACCOUNT, sequence);
+            record.writeUTF(account.getName());
+            record.writeUTF(account.getValue().toString());
+            record.writeUTF(account.getLimit() == Account.INFINITE_LIMIT
+                            ? ""
+                            : account.getLimit().toString());
+            end();
+        } catch (IOException ex) {
+            throw new JournalException(ex);
+        }
+    }
+
+    public synchronized void budgetAdded(long sequence, Budget budget) {
+        try {
+            start(ADD_BUDGET, sequence);
+            record.writeUTF(budget.getName());
+            record.writeUTF(budget.getValue().toString());
+            end();
+        } catch (IOException ex) {
+            throw new JournalException(ex);
+        }
+    }
+
+    public synchronized void linked(long sequence, String accountName, String budgetName,
+                       BigDecimal value) {
+        try {
+            start(LINK, sequence);
+            record.writeUTF(accountName);
+            record.writeUTF(budgetName);
+            writeOptionalValue(value);
+            end();
+        } catch (IOException ex) {
+            throw new JournalException(ex);
+        }
+    }
+
+    public synchronized void unlinked(long sequence, String accountName, String budgetName) {
+        try {
+            start(UNLINK, sequence);
+            record.writeUTF(accountName);
+            record.writeUTF(budgetName);
+            end();
+        } catch (IOException ex) {
+            throw new JournalException(ex);
+        }
+    }
+
+    public synchronized void linkValueChanged(long sequence, String accountName,
+                                 String budgetName, BigDecimal value) {
+        try {
+            start(CHANGE_LINK_VALUE, sequence);
+            record.writeUTF(accountName);
+            record.writeUTF(budgetName);
+            writeOptionalValue(value);
+            end();
+        } catch (IOException ex) {
+            throw new JournalException(ex);
+        }
+    }
+
+    public synchronized void movementAdded(long sequence, long id, Movement movement) {
+        try {
+            start(ADD_MOVEMENT, sequence);
+            record.writeLong(id);
+            writeMovement(movement);
+            end();
+        } catch (IOException ex) {
+            throw new JournalException(ex);
+        }
+    }
+
+    /**
+     * As a movement can change until it is applied, the content of the
+     * movement is written with its applying.
+     */
+    public synchronized void movementApplied(long sequence, long id, Movement movement) {
+        try {
+            start(APPLY_MOVEMENT, sequence);
+            record.writeLong(id);
+            writeMovement(movement);
+            end();
+        } catch (IOException ex) {
+            throw new JournalException(ex);
+        }
+    }
+
+    public synchronized void movementCanceled(long sequence, long id) {
+        try {
+            start(CANCEL_MOVEMENT, sequence);
+            record.writeLong(id);
+            end();
+        } catch (IOException ex) {
+            throw new JournalException(ex);
+        }
+    }
+
+    public synchronized void movementRemoved(long sequence, long id) {
+        try {
+            start(REMOVE_MOVEMENT, sequence);
+            record.writeLong(id);
+            end();
+        } catch (IOException ex) {
+            throw new JournalException(ex);
+        }
+    }
+
+    /**
+     * Start a batch of records: the next records are kept in memory and
+     * written at once by {@link #endBatch()}, so a lot of records cost a
+     * single writing. Each record keeps its length, so if the batch is
+     * partially written the complete records are still read.
+     */
+    public synchronized void startBatch() {
+        if (batch == null) {
+            batch = new ByteArrayOutputStream();
+        }
+    }
+
+    /**
+     * Write the records prepared since {@link #startBatch()}.
+     *
+     * @exception JournalException
+     *                if the records cannot be written
+     */
+    public synchronized void endBatch() {
+        if (batch != null) {
+            try {
+                if (batch.size() > 0) {
+                    output.write(batch.toByteArray());
+                }
+            } catch (IOException ex) {
+                throw new JournalException(ex);
+            } finally {
+                batch = null;
+            }
+        }
+    }
+
+    /**
+     * Start a new record.
+     */
+    private void start(byte type, long sequence) throws IOException {
+        buffer.reset();
+        record.writeByte(type);
+        record.writeLong(sequence);
+    }
+
+    /**
+     * Write the record prepared in the {@link #buffer}, preceded by its length.
+     */
+    private void end() throws IOException {
+        byte[] content = encode(buffer.toByteArray());
+        byte[] bytes = new byte[4 + content.length];
+        int length = content.length;
+        bytes[0] = (byte) (length >>> 24);
+        bytes[1] = (byte) (length >>> 16);
+        bytes[2] = (byte) (length >>> 8);
+        bytes[3] = (byte) length;
+        System.arraycopy(content, 0, bytes, 4, length);
+        if (batch == null) {
+            output.write(bytes);
+        } else {
+            batch.write(bytes);
+        }
+        recordCount++;
+    }
+
+    /**
+     * Compact this journal in background (see {@link #compact()}).
+     *
+     * @return the compaction, which gives true if the journal has been
+     *         compacted, false if there was nothing to purge
+     */
+    public Future<Boolean> compactInBackground() {
+        return COMPACTOR.submit(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws IOException {
+                return compact();
+            }
+        });
+    }
+
+    /**
+     * Purge the records of the movements added then removed without being
+     * applied, the removal staying as a tombstone. The compacted records are
+     * written in a new file, then the records appended meanwhile are copied
+     * and the new file replaces the journal. If the journal is emptied or
+     * closed meanwhile, the compaction is abandoned.
+     *
+     * @return true if the journal has been compacted, false if there was
+     *         nothing to purge
+     * @throws IOException
+     *             if the journal cannot be compacted
+     */
+    public boolean compact() throws IOException {
+        long length;
+        int startGeneration;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            length = output.length();
+            startGeneration = generation;
+        }
+
+        // find the movements to purge
+        IdSet added = new IdSet();
+        IdSet applied = new IdSet();
+        IdSet purged = new IdSet();
+        byte[] header = new byte[headerSize];
+        DataInputStream input = openInput(file);
+        try {
+            input.readFully(header);
+            long position = headerSize;
+            byte[] bytes;
+            while ((bytes = readRecord(input, length - position)) != null) {
+                position += 4 + bytes.length;
+                byte[] content = decode(bytes, key);
+                if (content[0] == ADD_MOVEMENT) {
+                    added.add(readId(content));
+                } else if (content[0] == APPLY_MOVEMENT) {
+                    applied.add(readId(content));
+                } else if (content[0] == REMOVE_MOVEMENT) {
+                    long id = readId(content);
+                    if (added.contains(id) && !applied.contains(id)) {
+                        purged.add(id);
+                    }
+                }
+            }
+        } finally {
+            input.close();
+        }
+        if (purged.size() == 0) {
+            return false;
+        }
+
+        // write the remaining records
+        File compactedFile = new File(file.getPath() + ".compact");
+        int dropped = 0;
+        DataOutputStream compacted = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(compactedFile)));
+        try {
+            input = openInput(file);
+            try {
+                input.readFully(header);
+                compacted.write(header);
+                long position = headerSize;
+                byte[] bytes;
+                while ((bytes = readRecord(input, length - position)) != null) {
+                    position += 4 + bytes.length;
+                    byte[] content = decode(bytes, key);
+                    if (content[0] == ADD_MOVEMENT
+                        && purged.contains(readId(content))) {
+                        dropped++;
+                    } else {
+                        compacted.writeInt(bytes.length);
+                        compacted.write(bytes);
+                    }
+                }
+            } finally {
+                input.close();
+            }
+
+            // replace the journal, with the records appended meanwhile
+            synchronized (this) {
+                if (closed || generation != startGeneration) {
+                    compacted.close();
+                    compactedFile.delete();
+                    return false;
+                }
+                byte[] appended = new byte[(int) (output.length() - length)];
+                output.seek(length);
+                output.readFully(appended);
+                compacted.write(appended);
+                compacted.close();
+                output.close();
+                Manager.replaceFile(compactedFile, file);
+                output = new RandomAccessFile(file, "rw");
+                output.seek(output.length());
+                recordCount -= dropped;
+            }
+        } finally {
+            compacted.close();
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return the ID of the movement of a movement record
+     */
+    private static long readId(byte[] bytes) {
+        return ByteBuffer.wrap(bytes, ID_POSITION, 8).getLong();
+    }
+
+    /**
+     *
+     * @return a buffered stream to read the records of the file
+     */
+    private static DataInputStream openInput(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+    }
+
+    private void writeOptionalValue(BigDecimal value) throws IOException {
+        record.writeUTF(value == null
+                        ? ""
+                        : value.toString());
+    }
+
+    private void writeMovement(Movement movement) throws IOException {
+        Account account = movement.getAccount();
+        record.writeUTF(account == null
+                        ? ""
+                        : account.getName());
+        record.writeByte(movement.getSense().ordinal());
+        record.writeUTF(movement.getValue().toString());
+        record.writeInt(movement.getAssignmentsCount());
+        movement.forEachAssignment(new AssignmentVisitor<IOException>() {
+
+            @Override
+            public void visit(Budget budget, BigDecimal value)
+                    throws IOException {
+                record.writeUTF(budget.getName());
+                record.writeUTF(value.toString());
+            }
+        });
+    }
+
+    /**
+     * Replay the records of a journal on a manager.
+     *
+     * @param file
+     *            the file of the journal
+     * @param manager
+     *            the manager to change
+     * @param lastSequence
+     *            the sequence number of the last change already known by the
+     *            manager, the records until this one are ignored
+     * @param password
+     *            the password to decrypt the records if they are encrypted
+     * @return the sequence number of the last change known by the manager
+     * @throws IOException
+     *             if the journal cannot be read
+     */
+    public static long replay(File file, Manager manager, long lastSequence,
+                              String password) throws IOException {
+        DataInputStream input = openInput(file);
+        long length = file.length();
+        long position = 0;
+        try {
+            SecretKey key = null;
+            if (isEncrypted(input, length)) {
+                if (password == null) {
+                    throw new IOException("the journal is encrypted");
+                }
+                key = readKey(input, password);
+                position = ENCRYPTED_HEADER_SIZE;
+            }
+            byte[] bytes;
+            while ((bytes = readRecord(input, length - position)) != null) {
+                position += 4 + bytes.length;
+                DataInputStream in = new DataInputStream(
+                        new ByteArrayInputStream(decode(bytes, key)));
+                byte type = in.readByte();
+                long sequence = in.readLong();
+                if (sequence > lastSequence) {
+                    replay(type, in, manager);
+                    lastSequence = sequence;
+                }
+            }
+        } finally {
+            input.close();
+        }
+        return lastSequence;
+    }
+
+    private static void replay(byte type, DataInputStream in, Manager manager)
+            throws IOException {
+        switch (type) {
+        case ADD_ACCOUNT: {
+            Account account = new Account();
+            account.setName(in.readUTF());
+            account.setValue(new BigDecimal(in.readUTF()));
+            BigDecimal limit = readOptionalValue(in);
+            if (limit != null) {
+                account.setLimit(limit);
+            }
+            manager.addAccount(account);
+            break;
+        }
+        case ADD_BUDGET: {
+            Budget budget = new Budget();
+            budget.setName(in.readUTF());
+            budget.setValue(new BigDecimal(in.readUTF()));
+            manager.addBudget(budget);
+            break;
+        }
+        case LINK:
+            manager.link(in.readUTF(), in.readUTF(), readOptionalValue(in));
+            break;
+        case UNLINK:
+            manager.unlink(in.readUTF(), in.readUTF());
+            break;
+        case CHANGE_LINK_VALUE:
+            manager.changeLinkValue(in.readUTF(), in.readUTF(),
+                    readOptionalValue(in));
+            break;
+        case ADD_MOVEMENT: {
+            long id = in.readLong();
+            manager.restoreMovement(id, readMovement(in, manager));
+            break;
+        }
+        case APPLY_MOVEMENT: {
+            long id = in.readLong();
+            manager.restoreMovement(id, readMovement(in, manager));
+            manager.applyMovement(id);
+            break;
+        }
+        case CANCEL_MOVEMENT:
+            manager.cancelMovement(in.readLong());
+            break;
+        case REMOVE_MOVEMENT:
+            manager.restoreRemoval(in.readLong());
+            break;
+        default:
+            throw new IOException("unknown record type: " + type);
+        }
+    }
+
+    private static BigDecimal readOptionalValue(DataInputStream in)
+            throws IOException {
+        String value = in.readUTF();
+        return value.equals("")
+               ? null
+               : new BigDecimal(value);
+    }
+
+    private static Movement readMovement(DataInputStream in, Manager manager)
+            throws IOException {
+        Movement movement = new Movement();
+        String accountName = in.readUTF();
+        if (!accountName.equals("")) {
+            movement.setAccount(manager.getAccount(accountName));
+        }
+        movement.setSense(Sense.values()[in.readByte()]);
+        movement.setValue(new BigDecimal(in.readUTF()));
+        int count = in.readInt();
+        Budget[] budgets = new Budget[count];
+        BigDecimal[] values = new BigDecimal[count];
+        for (int index = 0; index < count; index++) {
+            budgets[index] = manager.getBudget(in.readUTF());
+            values[index] = new BigDecimal(in.readUTF());
+        }
+        movement.assignValuesToBudgets(budgets, values);
+        return movement;
+    }
+
+    /**
+     * Tell if a journal starts with the header of an encrypted journal,
+     * reading the start of this header if it does.
+     */
+    private static boolean isEncrypted(DataInputStream input, long length)
+            throws IOException {
+        if (length < ENCRYPTED_HEADER_SIZE) {
+            return false;
+        }
+        input.mark(4);
+        if (input.readInt() == ENCRYPTED) {
+            return true;
+        } else {
+            input.reset();
+            return false;
+        }
+    }
+
+    /**
+     * Read the rest of the header of an encrypted journal (see
+     * {@link #isEncrypted(DataInputStream, long)}) to derive its key.
+     *
+     * @return the key of the records, null if there is no password
+     */
+    private static SecretKey readKey(DataInputStream input, String password)
+            throws IOException {
+        byte[] salt = new byte[Crypto.SALT_SIZE];
+        input.readFully(salt);
+        int iterations = input.readInt();
+        return password == null
+               ? null
+               : getKey(password, salt, iterations);
+    }
+
+    /**
+     * Derive a key from a password (see
+     * {@link Crypto#getKey(String, byte[], int)}).
+     */
+    private static SecretKey getKey(String password, byte[] salt,
+                                    int iterations) throws IOException {
+        try {
+            return Crypto.getKey(password, salt, iterations);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Encrypt the content of a record if the records are encrypted: a new
+     * nonce is followed by the content encrypted.
+     */
+    private byte[] encode(byte[] content) throws IOException {
+        if (key == null) {
+            return content;
+        }
+        try {
+            byte[] nonce = Crypto.generateBytes(Crypto.NONCE_SIZE);
+            Cipher cipher = Crypto.getAuthenticatedCipher(Crypto.Mode.ENCRYPT,
+                    key, nonce);
+            byte[] bytes = new byte[Crypto.NONCE_SIZE
+                                    + cipher.getOutputSize(content.length)];
+            System.arraycopy(nonce, 0, bytes, 0, Crypto.NONCE_SIZE);
+            cipher.doFinal(content, 0, content.length, bytes,
+                    Crypto.NONCE_SIZE);
+            return bytes;
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Decrypt a record (see {@link #encode(byte[])}).
+     *
+     * @param key
+     *            the key of the records, null if they are not encrypted
+     * @return the content of the record
+     * @throws IOException
+     *             if the record has been changed or the key is not the one
+     *             of the records
+     */
+    private static byte[] decode(byte[] bytes, SecretKey key)
+            throws IOException {
+        if (key == null) {
+            return bytes;
+        }
+        try {
+            byte[] nonce = Arrays.copyOf(bytes, Crypto.NONCE_SIZE);
+            byte[] content = Crypto.getAuthenticatedCipher(
+                    Crypto.Mode.DECRYPT, key, nonce).doFinal(bytes,
+                    Crypto.NONCE_SIZE, bytes.length - Crypto.NONCE_SIZE);
+            if (content.length < MIN_RECORD_LENGTH) {
+                throw new IOException("invalid record length: "
+                                      + content.length);
+            }
+            return content;
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("the record cannot be decrypted", ex);
+        }
+    }
+
+    /**
+     *
+     * @param remaining
+     *            the number of bytes which can be read, the record included
+     * @return the content of the next record, null if there is no more
+     *         complete record or if its length is not valid (it is then
+     *         considered as partially written)
+     */
+    private static byte[] readRecord(DataInputStream input, long remaining)
+            throws IOException {
+        if (remaining < 4) {
+            return null;
+        }
+        try {
+            int length = input.readInt();
+            if (length < MIN_RECORD_LENGTH || length > remaining - 4) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            input.readFully(bytes);
+            return bytes;
+        } catch (EOFException ex) {
+            return null;
+        }
+    }
+}
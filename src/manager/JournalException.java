@@ -0,0 +1,13 @@
+package manager;
+
+@SuppressWarnings("serial")
+public class JournalException extends RuntimeException {
+
+    public JournalException(Throwable cause) {
+        super("the change cannot be written in the journal", cause);
+    }
+
+    public JournalException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
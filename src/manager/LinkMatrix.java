@@ -0,0 +1,192 @@
+package manager;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * A link matrix stores the links between accounts and budgets identified by
+ * their ordinal in a manager. Each account has a row of bits (one bit for each
+ * budget), so a link costs one bit. The values of the links are stored in a
+ * parallel row, which is created only when the account has a link with a
+ * value.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+class LinkMatrix {
+
+    /**
+     * The number of bits in a word of a row.
+     */
+    private static final int WORD_SIZE = 64;
+    /**
+     * An empty row, shared by all the accounts without links.
+     */
+    private static final long[] NO_BITS = new long[0];
+    /**
+     * The rows of bits, indexed by account ordinal. The bit of a budget
+     * ordinal is set if the account and the budget are linked.
+     */
+    private long[][] bits = new long[0][];
+    /**
+     * The rows of values, indexed by account ordinal then by budget ordinal. A
+     * row is null while the account has no link with a value.
+     */
+    private BigDecimal[][] values = new BigDecimal[0][];
+    /**
+     * The number of links in this matrix.
+     */
+    private int size = 0;
+
+    /**
+     *
+     * @return the number of links in this matrix
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @param account
+     *            the ordinal of an account
+     * @param budget
+     *            the ordinal of a budget
+     * @return true if the account and the budget are linked, false otherwise
+     */
+    public boolean isLinked(int account, int budget) {
+        if (account >= bits.length) {
+            return false;
+        }
+        long[] row = bits[account];
+        int word = budget / WORD_SIZE;
+        return word < row.length && (row[word] & (1L << budget)) != 0;
+    }
+
+    /**
+     * Link an account and a budget which are not yet linked.
+     *
+     * @param account
+     *            the ordinal of the account
+     * @param budget
+     *            the ordinal of the budget
+     * @param value
+     *            the value of the link (possibly null)
+     */
+    public void link(int account, int budget, BigDecimal value) {
+        ensureAccount(account);
+        long[] row = bits[account];
+        int word = budget / WORD_SIZE;
+        if (word >= row.length) {
+            row = Arrays.copyOf(row, word + 1);
+            bits[account] = row;
+        }
+        row[word] |= 1L << budget;
+        size++;
+        setValue(account, budget, value);
+    }
+
+    /**
+     * Unlink an account and a budget which are linked.
+     *
+     * @param account
+     *            the ordinal of the account
+     * @param budget
+     *            the ordinal of the budget
+     */
+    public void unlink(int account, int budget) {
+        bits[account][budget / WORD_SIZE] &= ~(1L << budget);
+        size--;
+        setValue(account, budget, null);
+    }
+
+    /**
+     *
+     * @param account
+     *            the ordinal of a linked account
+     * @param budget
+     *            the ordinal of a linked budget
+     * @return the value of the link, null if there is no value
+     */
+    public BigDecimal getValue(int account, int budget) {
+        BigDecimal[] row = values[account];
+        return row == null || budget >= row.length
+               ? null
+               : row[budget];
+    }
+
+    /**
+     *
+     * @param account
+     *            the ordinal of a linked account
+     * @param budget
+     *            the ordinal of a linked budget
+     * @param value
+     *            the new value of the link (possibly null)
+     */
+    public void setValue(int account, int budget, BigDecimal value) {
+        BigDecimal[] row = values[account];
+        if (row == null || budget >= row.length) {
+            if (value == null) {
+                return;
+            }
+            row = row == null
+                  ? new BigDecimal[budget + 1]
+                  : Arrays.copyOf(row, budget + 1);
+            values[account] = row;
+        }
+        row[budget] = value;
+    }
+
+    /**
+     * Give the next budget linked to an account, to browse the links of this
+     * account without creating any object.
+     *
+     * @param account
+     *            the ordinal of the account
+     * @param budget
+     *            the ordinal of the first budget to consider
+     * @return the ordinal of the first budget linked to the account from the
+     *         given one (included), -1 if there is no more linked budget
+     */
+    public int nextLinkedBudget(int account, int budget) {
+        if (account >= bits.length) {
+            return -1;
+        }
+        long[] row = bits[account];
+        int word = budget / WORD_SIZE;
+        if (word >= row.length) {
+            return -1;
+        }
+        long remaining = row[word] & (-1L << budget);
+        while (remaining == 0) {
+            word++;
+            if (word == row.length) {
+                return -1;
+            }
+            remaining = row[word];
+        }
+        return word * WORD_SIZE + Long.numberOfTrailingZeros(remaining);
+    }
+
+    /**
+     *
+     * @return the number of accounts which can have links in this matrix
+     */
+    public int getAccountCount() {
+        return bits.length;
+    }
+
+    /**
+     * Ensure the rows of the given account exist.
+     */
+    private void ensureAccount(int account) {
+        if (account >= bits.length) {
+            int length = Math.max(account + 1, bits.length * 2);
+            int oldLength = bits.length;
+            bits = Arrays.copyOf(bits, length);
+            Arrays.fill(bits, oldLength, length, NO_BITS);
+            values = Arrays.copyOf(values, length);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package manager;
+
+import java.math.BigDecimal;
+
+import accountancy.accounts.Account;
+import accountancy.budgets.Budget;
+
+/**
+ * A link visitor is called for each link of a manager (see
+ * {@link Manager#forEachLink(LinkVisitor)}).
+ * 
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ * 
+ * @param <E>
+ *            the exception the visitor can throw ({@link RuntimeException} if
+ *            it does not throw checked exceptions)
+ */
+public interface LinkVisitor<E extends Exception> {
+
+    /**
+     * 
+     * @param account
+     *            the account linked
+     * @param budget
+     *            the budget linked
+     * @param value
+     *            the value of the link, null if there is no value
+     */
+    public void visit(Account account, Budget budget, BigDecimal value)
+            throws E;
+}
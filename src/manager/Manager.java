@@ -1,37 +1,60 @@
 package manager;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.Externalizable;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
-import javax.naming.LinkException;
 
 import util.Crypto;
 import accountancy.AccountancyElement;
+import accountancy.Money;
 import accountancy.accounts.Account;
 import accountancy.budgets.Budget;
+import accountancy.movements.AssignmentVisitor;
 import accountancy.movements.Movement;
 import accountancy.movements.Movement.Sense;
 
@@ -67,17 +90,108 @@ public class Manager implements Externalizable {
                 }
             });
     /**
-     * The list of the different movements of this manager.
+     * The list of the different movements of this manager, by ID.
      */
-    private final Map<BigDecimal, Movement> movements =
-                                            new TreeMap<BigDecimal, Movement>();
+    private final MovementStore movements;
+    /**
+     * The index of the movements, to find them by account, budget, value,
+     * etc.
+     */
+    private final MovementIndex movementIndex;
+    /**
+     * The accounts of this manager indexed by ordinal. The ordinal of an
+     * account is given when it is added to the manager (0 for the first one,
+     * then 1, 2, etc.).
+     */
+    private final List<Account> accountsByOrdinal = new ArrayList<Account>();
+    /**
+     * The budgets of this manager indexed by ordinal. The ordinal of a budget
+     * is given when it is added to the manager (0 for the first one, then 1,
+     * 2, etc.).
+     */
+    private final List<Budget> budgetsByOrdinal = new ArrayList<Budget>();
+    /**
+     * The ordinals of the accounts indexed by name, kept in sync with
+     * {@link #accounts} to find an account without browsing all of them.
+     */
+    private final Map<String, Integer> accountOrdinals =
+                                       new HashMap<String, Integer>();
+    /**
+     * The ordinals of the budgets indexed by name, kept in sync with
+     * {@link #budgets} to find a budget without browsing all of them.
+     */
+    private final Map<String, Integer> budgetOrdinals =
+                                       new HashMap<String, Integer>();
+    /**
+     * The sorted names of the accounts, computed at the first need and
+     * forgotten (null) when a new account is added.
+     */
+    private String[] accountNames = null;
+    /**
+     * The sorted names of the budgets, computed at the first need and
+     * forgotten (null) when a new budget is added.
+     */
+    private String[] budgetNames = null;
 
+    /**
+     * Create a manager keeping its movements in memory.
+     */
+    public Manager() {
+        movements = new ArrayMovementStore();
+        movementIndex = new MovementIndex();
+    }
+
+    /**
+     * Create a manager keeping its movements on disk, in a B+tree indexed by
+     * ID (see {@link BTreeMovementStore}), for managers having more movements
+     * than the memory can hold. Only the pages of the B+tree recently used are
+     * kept in memory, so the memory used depends on the number of pages kept,
+     * not on the number of movements. For the same reason, the movements are
+     * not indexed: {@link #findMovements(MovementQuery)} browses all of them.
+     * The files are deleted when the manager is closed (see {@link #close()}).<br/>
+     * <br/>
+     * As the movements are read from the files when they are asked, a
+     * movement given by the manager is a copy: changing it does not change
+     * the manager, so a movement not applied is changed through
+     * {@link #updateMovement(long, Movement)}.
+     * 
+     * @param directory
+     *            the directory of the files, null for the default temporary
+     *            directory
+     * @param cachedPages
+     *            the number of pages (of
+     *            {@link BTreeMovementStore#PAGE_SIZE} bytes) kept in memory
+     * @exception IllegalArgumentException
+     *                if less than {@link BTreeMovementStore#MIN_CACHED_PAGES}
+     *                pages are kept
+     * @exception MovementStorageException
+     *                if the files cannot be created
+     */
+    public Manager(File directory, int cachedPages) {
+        try {
+            movements = new BTreeMovementStore(this, directory, cachedPages);
+        } catch (IOException ex) {
+            throw new MovementStorageException(ex);
+        }
+        movementIndex = new MovementIndex(false);
+    }
+
+    /**
+     * 
+     * @return a read-only view of the accounts of this manager, sorted by name
+     *         (use {@link #addAccount(Account)} to add a new one)
+     */
     public Set<Account> getAccounts() {
-        return accounts;
+        return Collections.unmodifiableSet(accounts);
     }
 
+    /**
+     * 
+     * @return a read-only view of the budgets of this manager, sorted by name
+     *         (use {@link #addBudget(Budget)} to add a new one)
+     */
     public Set<Budget> getBudgets() {
-        return budgets;
+        return Collections.unmodifiableSet(budgets);
     }
 
     /**
@@ -85,7 +199,10 @@ public class Manager implements Externalizable {
      * @return the list of the names of all the accounts
      */
     public String[] getAccountNames() {
-        return getElementNames(accounts);
+        if (accountNames == null) {
+            accountNames = getElementNames(accounts);
+        }
+        return accountNames.clone();
     }
 
     /**
@@ -93,7 +210,54 @@ public class Manager implements Externalizable {
      * @return the list of the names of all the budgets
      */
     public String[] getBudgetNames() {
-        return getElementNames(budgets);
+        if (budgetNames == null) {
+            budgetNames = getElementNames(budgets);
+        }
+        return budgetNames.clone();
+    }
+
+    /**
+     * Give a scale to all the values of this manager (accounts, budgets and
+     * movements), so they are managed in fixed-point (see {@link Money}). The
+     * elements and movements added later receive the same scale. The values
+     * which cannot be represented at this scale stay in {@link BigDecimal}.<br/>
+     * <br/>
+     * The {@link BigDecimal} values computed from fixed-point values have this
+     * scale (a value of 10 at scale 2 is given as 10.00). The scale is saved
+     * with the manager (see {@link #save(String, String)}).
+     * 
+     * @param newScale
+     *            the number of decimal digits of the units (like 2 for cents),
+     *            {@link Money#NO_SCALE} to use only {@link BigDecimal}
+     */
+    public void setScale(int newScale) {
+        if (newScale < Money.NO_SCALE) {
+            throw new IllegalArgumentException("invalid scale: " + newScale);
+        }
+        scale = newScale;
+        for (Account account : accounts) {
+            account.setScale(newScale);
+        }
+        for (Budget budget : budgets) {
+            budget.setScale(newScale);
+        }
+        if (movements.sharesMovements()) {
+            // the copies given by the other stores already have the scale
+            for (long id = movements.nextId(0); id >= 0;
+                 id = movements.nextId(id + 1)) {
+                movements.get(id).setScale(newScale);
+            }
+        }
+        elementsChanged();
+    }
+
+    /**
+     * 
+     * @return the scale of the fixed-point values of this manager,
+     *         {@link Money#NO_SCALE} if they are not used
+     */
+    public int getScale() {
+        return scale;
     }
 
     /**
@@ -102,9 +266,21 @@ public class Manager implements Externalizable {
      *                already in this manager
      */
     public void addAccount(Account newAccount) {
-        if (!accounts.add(newAccount)) {
+        String name = newAccount.getName();
+        if (accountOrdinals.containsKey(name)) {
             throw new AlreadyExistingAccountException();
         }
+        newAccount.setScale(scale);
+        accounts.add(newAccount);
+        accountOrdinals.put(name, accountsByOrdinal.size());
+        accountsByOrdinal.add(newAccount);
+        linkedBudgetNames.add(null);
+        accountNames = null;
+        elementsChanged();
+        if (journal != null) {
+            journal.accountAdded(++journalSequence, newAccount);
+            checkpointIfNeeded();
+        }
     }
 
     /**
@@ -113,9 +289,21 @@ public class Manager implements Externalizable {
      *                in this manager
      */
     public void addBudget(Budget newBudget) {
-        if (!budgets.add(newBudget)) {
+        String name = newBudget.getName();
+        if (budgetOrdinals.containsKey(name)) {
             throw new AlreadyExistingBudgetException();
         }
+        newBudget.setScale(scale);
+        budgets.add(newBudget);
+        budgetOrdinals.put(name, budgetsByOrdinal.size());
+        budgetsByOrdinal.add(newBudget);
+        linkedAccountNames.add(null);
+        budgetNames = null;
+        elementsChanged();
+        if (journal != null) {
+            journal.budgetAdded(++journalSequence, newBudget);
+            checkpointIfNeeded();
+        }
     }
 
     /**
@@ -123,7 +311,10 @@ public class Manager implements Externalizable {
      *         otherwise
      */
     public Account getAccount(String accountName) {
-        return getElement(accounts, accountName);
+        Integer ordinal = accountOrdinals.get(accountName);
+        return ordinal == null
+               ? null
+               : accountsByOrdinal.get(ordinal);
     }
 
     /**
@@ -131,54 +322,196 @@ public class Manager implements Externalizable {
      *         otherwise
      */
     public Budget getBudget(String budgetName) {
-        return getElement(budgets, budgetName);
+        Integer ordinal = budgetOrdinals.get(budgetName);
+        return ordinal == null
+               ? null
+               : budgetsByOrdinal.get(ordinal);
     }
 
     /**
-     * @return The element of the given list which has the given name, null
-     *         otherwise
+     * @param accountName
+     *            the name of an account of this manager
+     * @return the ordinal of the account
+     * @exception UnknownAccountException
+     *                if the given account is not known by the manager
      */
-    private <T extends AccountancyElement> T getElement(Set<T> list,
-                                                        String elementName) {
-        if (list == null) {
-            throw new NullPointerException("the list cannot be null");
-        }
-
-        for (Iterator<T> iterator = list.iterator(); iterator.hasNext();) {
-            T element = iterator.next();
-            if (element.getName().equals(elementName)) {
-                return element;
-            }
+    private int getAccountOrdinal(String accountName) {
+        Integer ordinal = accountOrdinals.get(accountName);
+        if (ordinal == null) {
+            throw new UnknownAccountException(accountName);
         }
-        return null;
+        return ordinal;
     }
 
     /**
-     * @return The names of the elements of the given list
+     * @param budgetName
+     *            the name of a budget of this manager
+     * @return the ordinal of the budget
+     * @exception UnknownBudgetException
+     *                if the given budget is not known by the manager
      */
-    private <T extends AccountancyElement> String[] getElementNames(Set<T> list) {
-        if (list == null) {
-            throw new NullPointerException("the list cannot be null");
+    private int getBudgetOrdinal(String budgetName) {
+        Integer ordinal = budgetOrdinals.get(budgetName);
+        if (ordinal == null) {
+            throw new UnknownBudgetException(budgetName);
         }
+        return ordinal;
+    }
 
-        List<String> names = new ArrayList<String>();
-        for (Iterator<T> iterator = list.iterator(); iterator.hasNext();) {
-            T element = iterator.next();
-            names.add(element.getName());
+    /**
+     * @return the names of the given elements, in the same order
+     */
+    private static String[] getElementNames(
+            Collection<? extends AccountancyElement> elements) {
+        String[] names = new String[elements.size()];
+        int index = 0;
+        for (AccountancyElement element : elements) {
+            names[index++] = element.getName();
         }
-        return names.toArray(new String[0]);
+        return names;
     }
     /**
      * The list of links between accounts and budgets. It is a set because it is
      * too complex to manage several links on the same account and budget and no
      * specific advantages. Prefer to change the links possibilities instead of
-     * make some strange linking.
+     * make some strange linking.<br/>
+     * <br/>
+     * The links are identified by the ordinals of their account and budget.
      */
-    private final Set<Link> links = new HashSet<Link>();
+    private final LinkMatrix links = new LinkMatrix();
+    /**
+     * The sorted names of the budgets linked to each account (indexed by
+     * ordinal, null if there is no linked budget). They are updated at each
+     * linking/unlinking, so the linked budgets of an account are known without
+     * browsing all the links.
+     */
+    private final List<String[]> linkedBudgetNames = new ArrayList<String[]>();
+    /**
+     * The sorted names of the accounts linked to each budget (indexed by
+     * ordinal, null if there is no linked account). They are updated at each
+     * linking/unlinking, so the linked accounts of a budget are known without
+     * browsing all the links.
+     */
+    private final List<String[]> linkedAccountNames = new ArrayList<String[]>();
     /**
      * The last ID generated in this manager.
      */
-    private BigDecimal lastGeneratedId = BigDecimal.ZERO;
+    private long lastGeneratedId = 0;
+    /**
+     * The scale used for the fixed-point values of the elements and movements
+     * of this manager, {@link Money#NO_SCALE} if they are not used.
+     */
+    private int scale = Money.NO_SCALE;
+    /**
+     * The extension added to the path of a saved manager to have the path of
+     * its journal.
+     */
+    public static final String JOURNAL_EXTENSION = ".journal";
+    /**
+     * The size of the buffers used to save and read the files.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * The journal where the changes of this manager are written, null if they
+     * are not.
+     */
+    private Journal journal = null;
+    /**
+     * The sequence number of the last change written in a journal. It is saved
+     * with the manager, so the changes already saved are not replayed.
+     */
+    private long journalSequence = 0;
+    /**
+     * The file path where the manager is saved at each checkpoint, null if no
+     * journal is open.
+     */
+    private String journalFilePath = null;
+    /**
+     * The password used to encrypt the checkpoints.
+     */
+    private String journalPassword = null;
+    /**
+     * The default number of records in the journal which triggers a
+     * checkpoint.
+     */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 100000;
+    /**
+     * The number of records in the journal which triggers a checkpoint, 0 to
+     * never do automatic checkpoints.
+     */
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    /**
+     * The number of records in the journal from which an automatic
+     * checkpoint is tried again after a failed one, 0 if the last checkpoint
+     * has not failed.
+     */
+    private int checkpointRetry = 0;
+    /**
+     * The compression level used to save this manager (see
+     * {@link Deflater#setLevel(int)}), {@link Deflater#NO_COMPRESSION} if the
+     * content is not compressed.
+     */
+    private int compressionLevel = Deflater.NO_COMPRESSION;
+    /**
+     * The snapshots of this manager being saved, which must be kept
+     * consistent while the manager changes.
+     */
+    private final List<Snapshot> snapshots = new CopyOnWriteArrayList<Snapshot>();
+    /**
+     * The extension added to the path of a saved manager to have the path of
+     * its deltas (see {@link #saveIncremental(String, String)}).
+     */
+    public static final String DELTA_EXTENSION = ".delta";
+    /**
+     * The generator of the stamps identifying the saved files.
+     */
+    private static final Random STAMPS = new SecureRandom();
+    /**
+     * The file where this manager has been saved or loaded from, which the
+     * changes are tracked against, null if they are not tracked.
+     */
+    private String baseFilePath = null;
+    /**
+     * The stamp of the base file, 0 if it has no stamp.
+     */
+    private long baseStamp = 0;
+    /**
+     * The length of the valid deltas written after the base file.
+     */
+    private long deltaLength = 0;
+    /**
+     * The IDs of the movements added or changed since the base file.
+     */
+    private final IdSet changedMovements = new IdSet();
+    /**
+     * The IDs of the movements removed since the base file.
+     */
+    private final IdSet removedMovements = new IdSet();
+    /**
+     * True if the accounts, budgets or links have changed since the base
+     * file.
+     */
+    private boolean elementsChanged = false;
+    /**
+     * The executor of the savings in background.
+     */
+    static final ExecutorService SAVER = Executors.
+            newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "manager saver");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    /**
+     * The order of the last snapshot written in each file (see
+     * {@link Snapshot#getOrder()}), so a snapshot does not replace a more
+     * recent one.
+     */
+    private static final Map<File, Long> WRITTEN_SNAPSHOTS =
+                                         new HashMap<File, Long>();
 
     /**
      * Same as {@link #link(java.lang.String, java.lang.String, java.math.BigDecimal) }
@@ -200,12 +533,19 @@ public class Manager implements Externalizable {
      *                if the link already exists
      */
     public void link(String accountName, String budgetName, BigDecimal value) {
-        Link link = generateLink(accountName, budgetName);
-        if (links.contains(link)) {
+        int account = getAccountOrdinal(accountName);
+        int budget = getBudgetOrdinal(budgetName);
+        if (links.isLinked(account, budget)) {
             throw new ExistingLinkException();
         }
-        link.value = value;
-        links.add(link);
+        links.link(account, budget, value);
+        addLinkedName(linkedBudgetNames, account, budgetName);
+        addLinkedName(linkedAccountNames, budget, accountName);
+        elementsChanged();
+        if (journal != null) {
+            journal.linked(++journalSequence, accountName, budgetName, value);
+            checkpointIfNeeded();
+        }
     }
 
     /**
@@ -215,38 +555,364 @@ public class Manager implements Externalizable {
      * @exception NotLinkedException if the account and budget are not linked
      */
     public void unlink(String accountName, String budgetName) {
-        Link link = generateLink(accountName, budgetName);
-        if (!links.contains(link)) {
-            throw new NoLinkException(accountName, budgetName);
+        int account = getAccountOrdinal(accountName);
+        int budget = getBudgetOrdinal(budgetName);
+        checkLinked(account, budget, accountName, budgetName);
+        links.unlink(account, budget);
+        removeLinkedName(linkedBudgetNames, account, budgetName);
+        removeLinkedName(linkedAccountNames, budget, accountName);
+        elementsChanged();
+        if (journal != null) {
+            journal.unlinked(++journalSequence, accountName, budgetName);
+            checkpointIfNeeded();
         }
-        links.remove(link);
+    }
+
+    /**
+     * Insert a name in the sorted names linked to an element.
+     * 
+     * @param linkedNames
+     *            the sorted names linked to each element
+     * @param element
+     *            the ordinal of the element which is linked to a new one
+     * @param name
+     *            the name of the new linked element
+     */
+    private static void addLinkedName(List<String[]> linkedNames, int element,
+                                      String name) {
+        String[] names = linkedNames.get(element);
+        if (names == null) {
+            names = new String[0];
+        }
+        int index = -Arrays.binarySearch(names, name) - 1;
+        String[] result = new String[names.length + 1];
+        System.arraycopy(names, 0, result, 0, index);
+        result[index] = name;
+        System.arraycopy(names, index, result, index + 1, names.length - index);
+        linkedNames.set(element, result);
+    }
+
+    /**
+     * Remove a name from the sorted names linked to an element.
+     * 
+     * @param linkedNames
+     *            the sorted names linked to each element
+     * @param element
+     *            the ordinal of the element which is unlinked from another one
+     * @param name
+     *            the name of the unlinked element
+     */
+    private static void removeLinkedName(List<String[]> linkedNames,
+                                         int element, String name) {
+        String[] names = linkedNames.get(element);
+        if (names.length == 1) {
+            linkedNames.set(element, null);
+        } else {
+            int index = Arrays.binarySearch(names, name);
+            String[] result = new String[names.length - 1];
+            System.arraycopy(names, 0, result, 0, index);
+            System.arraycopy(names, index + 1, result, index, result.length
+                                                              - index);
+            linkedNames.set(element, result);
+        }
+    }
+
+    /**
+     * Same as {@link #removeMovement(long)} with a {@link BigDecimal} ID.
+     */
+    public void removeMovement(BigDecimal id) {
+        removeMovement(toLongId(id));
     }
 
     /**
      * Remove the movement of the given ID.
      * @param id the ID of the movement
      */
-    public void removeMovement(BigDecimal id) {
+    public void removeMovement(long id) {
+        if (!movements.sharesMovements() && !snapshots.isEmpty()) {
+            // the snapshots read this movement from the store
+            Movement stored = movements.get(id);
+            if (stored != null) {
+                preserve(id, stored);
+            }
+        }
         Movement movement = movements.remove(id);
         if (movement == null) {
             throw new UnknownMovementException(id);
         }
+        movementIndex.removed(id, movement);
+        movementRemoved(id);
+        if (journal != null) {
+            journal.movementRemoved(++journalSequence, id);
+            checkpointIfNeeded();
+        }
     }
 
     /**
+     * Give the IDs of the movements. The view follows the changes of the
+     * manager: an iteration gives the IDs known when they are reached, without
+     * failing if the movements change meanwhile. To browse a consistent
+     * window of movements, prefer {@link #getMovementsPage(long, int)}.
      *
-     * @return the list of the IDs known by the manager
+     * @return the list of the IDs known by the manager, sorted (read-only
+     *         view)
      */
     public Set<BigDecimal> getMovementsIDs() {
-        return movements.keySet();
+        return new AbstractSet<BigDecimal>() {
+
+            @Override
+            public Iterator<BigDecimal> iterator() {
+                return new Iterator<BigDecimal>() {
+
+                    private long next = movements.nextId(0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return next >= 0;
+                    }
+
+                    @Override
+                    public BigDecimal next() {
+                        if (next < 0) {
+                            throw new NoSuchElementException();
+                        }
+                        long id = next;
+                        next = movements.nextId(id + 1);
+                        return BigDecimal.valueOf(id);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return movements.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (o instanceof BigDecimal) {
+                    BigDecimal id = (BigDecimal) o;
+                    try {
+                        return movements.get(id.longValueExact()) != null;
+                    } catch (ArithmeticException ex) {
+                        return false;
+                    }
+                } else {
+                    return false;
+                }
+            }
+        };
     }
 
     /**
+     * Give all the movements of this manager in a new set. For a lot of
+     * movements, prefer {@link #getMovementsPage(long, int)} or
+     * {@link #forEachMovement(MovementVisitor)} which do not copy all of them.
      *
-     * @return the list of the movements contained by the manager.
+     * @return the list of the movements contained by the manager, sorted by
+     *         ID
      */
     public Set<Movement> getMovements() {
-        return new HashSet<Movement>(movements.values());
+        Set<Movement> set = new LinkedHashSet<Movement>();
+        for (long id = movements.nextId(0); id >= 0;
+             id = movements.nextId(id + 1)) {
+            set.add(movements.get(id));
+        }
+        return set;
+    }
+
+    /**
+     * Find the movements fitting the given query. The applied movements are
+     * indexed, so only the ones which can fit are checked (with the movements
+     * not applied). If the manager has been loaded lazily (see
+     * {@link Loading#LAZY}), the movements not loaded yet are loaded first.
+     * 
+     * @param query
+     *            the criteria of the movements to find
+     * @return the IDs of the movements found, sorted
+     */
+    public long[] findMovements(MovementQuery query) {
+        // the index knows only the movements loaded
+        movements.loadAll();
+        return movementIndex.find(query, movements);
+    }
+
+    /**
+     * Call the visitor for each account of this manager, sorted by name.
+     * 
+     * @param visitor
+     *            the visitor to call
+     * @exception E
+     *                if the visitor throws it (then the browsing is stopped)
+     */
+    public <E extends Exception> void forEachAccount(
+            ElementVisitor<Account, E> visitor) throws E {
+        for (Account account : accounts) {
+            visitor.visit(account);
+        }
+    }
+
+    /**
+     * Call the visitor for each budget of this manager, sorted by name.
+     * 
+     * @param visitor
+     *            the visitor to call
+     * @exception E
+     *                if the visitor throws it (then the browsing is stopped)
+     */
+    public <E extends Exception> void forEachBudget(
+            ElementVisitor<Budget, E> visitor) throws E {
+        for (Budget budget : budgets) {
+            visitor.visit(budget);
+        }
+    }
+
+    /**
+     * Call the visitor for each link of this manager, grouped by account.
+     * 
+     * @param visitor
+     *            the visitor to call
+     * @exception E
+     *                if the visitor throws it (then the browsing is stopped)
+     */
+    public <E extends Exception> void forEachLink(LinkVisitor<E> visitor)
+            throws E {
+        for (int account = 0; account < links.getAccountCount(); account++) {
+            for (int budget = links.nextLinkedBudget(account, 0);
+                 budget >= 0;
+                 budget = links.nextLinkedBudget(account, budget + 1)) {
+                visitor.visit(accountsByOrdinal.get(account),
+                        budgetsByOrdinal.get(budget),
+                        links.getValue(account, budget));
+            }
+        }
+    }
+
+    /**
+     * Call the visitor for each movement of this manager, sorted by ID.
+     * Contrary to {@link #getMovements()}, no collection is created.
+     * 
+     * @param visitor
+     *            the visitor to call
+     * @exception E
+     *                if the visitor throws it (then the browsing is stopped)
+     */
+    public <E extends Exception> void forEachMovement(
+            MovementVisitor<E> visitor) throws E {
+        for (long id = movements.nextId(0); id >= 0;
+             id = movements.nextId(id + 1)) {
+            visitor.visit(id, movements.get(id));
+        }
+    }
+
+    /**
+     * Call a record visitor for each account, budget, link then movement of
+     * this manager, in the same order than a {@link SaveReader}. No
+     * collection is created, so the memory used does not depend on the size
+     * of the manager.
+     * 
+     * @param visitor
+     *            the visitor to call
+     * @exception E
+     *                if the visitor throws it (then the browsing is stopped)
+     */
+    public <E extends Exception> void forEachRecord(
+            final RecordVisitor<E> visitor) throws E {
+        forEachAccount(new ElementVisitor<Account, E>() {
+
+            @Override
+            public void visit(Account account) throws E {
+                visitor.visitAccount(account);
+            }
+        });
+        forEachBudget(new ElementVisitor<Budget, E>() {
+
+            @Override
+            public void visit(Budget budget) throws E {
+                visitor.visitBudget(budget);
+            }
+        });
+        forEachLink(new LinkVisitor<E>() {
+
+            @Override
+            public void visit(Account account, Budget budget, BigDecimal value)
+                    throws E {
+                visitor.visitLink(account, budget, value);
+            }
+        });
+        forEachMovement(new MovementVisitor<E>() {
+
+            @Override
+            public void visit(long id, Movement movement) throws E {
+                visitor.visitMovement(id, movement);
+            }
+        });
+    }
+
+    /**
+     * Give a page of movements, sorted by ID. Only the movements of the page
+     * are copied, so all the movements can be browsed page by page in
+     * constant memory:
+     * 
+     * <pre>
+     * MovementPage page = manager.getMovementsPage(0, 100);
+     * while (...) {
+     *     // use the page
+     *     if (!page.hasNext()) break;
+     *     page = manager.getMovementsPage(page.getNextId(), 100);
+     * }
+     * </pre>
+     * 
+     * @param startId
+     *            the ID of the first movement of the page (if there is no
+     *            movement with this ID, the page starts at the next one)
+     * @param pageSize
+     *            the maximum number of movements in the page
+     * @return the page of movements
+     */
+    public MovementPage getMovementsPage(long startId, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("invalid page size: "
+                                               + pageSize);
+        }
+        long[] ids = new long[Math.min(pageSize, movements.size())];
+        int size = 0;
+        long id = movements.nextId(startId);
+        while (id >= 0 && size < ids.length) {
+            ids[size++] = id;
+            id = movements.nextId(id + 1);
+        }
+        if (size < ids.length) {
+            ids = Arrays.copyOf(ids, size);
+        }
+        Movement[] page = new Movement[size];
+        for (int index = 0; index < size; index++) {
+            page[index] = movements.get(ids[index]);
+        }
+        return new MovementPage(ids, page, id);
+    }
+
+    /**
+     * Give the long version of a {@link BigDecimal} ID.
+     * 
+     * @param id
+     *            the ID of a movement
+     * @return the same ID as a long
+     * @exception UnknownMovementException
+     *                if the ID cannot be a long, so it cannot be known by the
+     *                manager
+     */
+    private static long toLongId(BigDecimal id) {
+        try {
+            return id.longValueExact();
+        } catch (ArithmeticException ex) {
+            throw new UnknownMovementException(id);
+        }
     }
 
     /**
@@ -265,80 +931,633 @@ public class Manager implements Externalizable {
         return getSaved(filePath, null);
     }
 
+    /**
+     * Same as {@link #openJournal(String, String)} with a null password.
+     */
+    public void openJournal(String filePath) {
+        openJournal(filePath, null);
+    }
+
+    /**
+     * Write the next changes of this manager in the journal of the given file
+     * (the file path followed by {@link #JOURNAL_EXTENSION}). Each change is
+     * appended to the journal when it is done, so it is saved without writing
+     * the whole manager. The changes done directly on the accounts, budgets or
+     * movements (not through the manager) are saved only with the next
+     * {@link #save(String, String)}.<br/>
+     * <br/>
+     * The manager must have been recovered with
+     * {@link #getSaved(String, String)} from the same file (or be a new
+     * manager if there is no file yet). The password encrypts the journal
+     * (see {@link Journal}) as well as the checkpoints (see
+     * {@link #checkpoint()}), so a journal already having records must have
+     * been written with the same password.
+     * 
+     * @param filePath
+     *            the file path where the manager is saved
+     * @param password
+     *            the password to encrypt the journal and the checkpoints,
+     *            null to not encrypt them
+     * @exception JournalException
+     *                if the journal cannot be opened, or if its records are
+     *                not encrypted with this password
+     */
+    public void openJournal(String filePath, String password) {
+        closeJournal();
+        try {
+            journal = new Journal(getJournalFile(filePath), password);
+        } catch (IOException ex) {
+            throw new JournalException(ex);
+        }
+        journalFilePath = filePath;
+        journalPassword = password;
+        checkpointRetry = 0;
+    }
+
+    /**
+     * Stop writing the changes of this manager in its journal.
+     */
+    public void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                Logger.getLogger(Manager.class.getName()).
+                        log(Level.SEVERE, null, ex);
+            }
+            journal = null;
+            journalFilePath = null;
+            journalPassword = null;
+        }
+    }
+
+    /**
+     * Release the resources of this manager: its journal is closed (see
+     * {@link #closeJournal()}) and the files of its movements are deleted if
+     * they are kept on disk (see {@link #Manager(File, int)}). The manager
+     * must not be used anymore.
+     */
+    public void close() {
+        closeJournal();
+        movements.close();
+    }
+
+    /**
+     * Save this manager to the file of its journal, which is then emptied. So
+     * the journal to replay when the manager is recovered stays short. A
+     * checkpoint is done automatically when the journal reaches
+     * {@link #getCheckpointInterval()} records. If an automatic checkpoint
+     * fails, the change which triggered it is done (and journaled) but the
+     * failure is reported, and the next automatic checkpoint is tried only
+     * when the journal reaches the next multiple of the interval.
+     * 
+     * @exception IllegalStateException
+     *                if no journal is open
+     * @exception JournalException
+     *                if the manager cannot be saved or the journal cannot be
+     *                emptied
+     */
+    public void checkpoint() {
+        if (journal == null) {
+            throw new IllegalStateException("no journal is open");
+        }
+        try {
+            saveFile(journalFilePath, journalPassword);
+        } catch (IOException ex) {
+            throw new JournalException("the checkpoint cannot be written", ex);
+        }
+        checkpointRetry = 0;
+    }
+
+    /**
+     * 
+     * @param changeCount
+     *            the number of records in the journal which triggers a
+     *            checkpoint, 0 to never do automatic checkpoints
+     */
+    public void setCheckpointInterval(int changeCount) {
+        if (changeCount < 0) {
+            throw new IllegalArgumentException("invalid interval: "
+                                               + changeCount);
+        }
+        checkpointInterval = changeCount;
+    }
+
+    /**
+     * 
+     * @return the number of records in the journal which triggers a
+     *         checkpoint, 0 if there is no automatic checkpoints
+     */
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Set the compression of the files where this manager is saved. The
+     * content is compressed before being encrypted, so it is smaller to write
+     * and to encrypt, but a compressed file cannot be loaded lazily (see
+     * {@link Loading#LAZY}).
+     * 
+     * @param level
+     *            the compression level, from {@link Deflater#BEST_SPEED} to
+     *            {@link Deflater#BEST_COMPRESSION}, or
+     *            {@link Deflater#NO_COMPRESSION} to not compress the files
+     */
+    public void setCompressionLevel(int level) {
+        if (level < Deflater.NO_COMPRESSION
+            || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("invalid level: " + level);
+        }
+        compressionLevel = level;
+    }
+
+    /**
+     * 
+     * @return the compression level of the files where this manager is saved,
+     *         {@link Deflater#NO_COMPRESSION} if they are not compressed
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Do a checkpoint if the journal has reached the checkpoint interval.
+     */
+    private void checkpointIfNeeded() {
+        int recordCount = journal.getRecordCount();
+        if (checkpointInterval > 0 && recordCount >= checkpointInterval
+            && recordCount >= checkpointRetry) {
+            try {
+                checkpoint();
+            } catch (JournalException ex) {
+                checkpointRetry = (recordCount / checkpointInterval + 1)
+                                  * checkpointInterval;
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Compact the journal in background, while the changes continue to be
+     * written. The movements added then removed without being applied are
+     * purged, their removal staying as a tombstone until the next checkpoint.
+     * 
+     * @return the compaction, which gives true if the journal has been
+     *         compacted, false if there was nothing to purge
+     * @exception IllegalStateException
+     *                if no journal is open
+     */
+    public Future<Boolean> compactJournal() {
+        if (journal == null) {
+            throw new IllegalStateException("no journal is open");
+        }
+        return journal.compactInBackground();
+    }
+
+    /**
+     * 
+     * @param filePath
+     *            the file path where a manager is saved
+     * @return the file of the journal of this manager
+     */
+    private static File getJournalFile(String filePath) {
+        return new File(filePath + JOURNAL_EXTENSION);
+    }
+
     /**
      * Save the content of this manager to the given file. If a password is
-     * given (not null) the file is encrypted.
+     * given (not null) the file is encrypted. The content is written in the
+     * binary format (see {@link BinaryFormat}), in a temporary file which
+     * replaces the given one only when it is complete, so the previous save
+     * is not lost if the writing fails. If a compression level is set (see
+     * {@link #setCompressionLevel(int)}), the content is compressed before
+     * being encrypted. If the journal of this file is open, it is emptied, the
+     * changes being now in the file. If a more recent save of the same file
+     * (done in background) has ended first, the file is kept as is.
      * @param filePath the file path where the manager must be saved
      * @param password the password to encrypt the file
      */
     public void save(String filePath, String password) {
-        FileOutputStream fos = null;
-        CipherOutputStream cos = null;
-        ObjectOutputStream oos = null;
         try {
-            fos = new FileOutputStream(filePath);
+            saveFile(filePath, password);
+        } catch (IOException ex) {
+            Logger.getLogger(Manager.class.getName()).
+                    log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Save this manager like {@link #save(String, String)}, but report the
+     * errors to the caller.
+     */
+    private void saveFile(String filePath, String password)
+            throws IOException {
+        Snapshot snapshot = takeSnapshot();
+        try {
+            long stamp = generateStamp();
+            long size = write(snapshot, filePath, password, compressionLevel,
+                    stamp);
+            if (size >= 0) {
+                setBase(filePath, stamp, 0);
+                getDeltaFile(filePath).delete();
+                if (journal != null
+                    && journal.getFile().equals(getJournalFile(filePath))) {
+                    journal.clear();
+                }
+            }
+        } finally {
+            releaseSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * Save this manager in background, like {@link #save(String, String)}.
+     * A snapshot of the manager is taken when this method is called, which
+     * costs only a copy of the references to the movements (or of their IDs
+     * for the managers keeping them on disk), and this snapshot is written by
+     * another thread while the manager continues to change. The changes made through the manager are not in the file, and
+     * the journal is not emptied: its records are more recent than the
+     * snapshot, so they are still replayed when the manager is recovered.<br/>
+     * <br/>
+     * Each saving writes its own temporary file, and a file is never replaced
+     * by a snapshot older than the one it contains: if a more recent save of
+     * the same file (like a checkpoint) ends before this one, this saving is
+     * dropped.
+     * 
+     * @param filePath
+     *            the file path where the manager must be saved
+     * @param password
+     *            the password to encrypt the file, null to not encrypt it
+     * @return the saving, which gives the size of the file written, -1 if it
+     *         has been dropped
+     */
+    public SaveTask saveInBackground(final String filePath,
+                                     final String password) {
+        final Snapshot snapshot = takeSnapshot();
+        final int level = compressionLevel;
+        if (filePath.equals(baseFilePath)) {
+            // the base file is replaced, so its deltas are not valid anymore
+            setBase(null, 0, 0);
+        }
+        SaveTask task = new SaveTask(new Callable<Long>() {
+
+            @Override
+            public Long call() throws IOException {
+                try {
+                    return write(snapshot, filePath, password, level,
+                            generateStamp());
+                } finally {
+                    releaseSnapshot(snapshot);
+                }
+            }
+        }, snapshot);
+        SAVER.execute(task);
+        return task;
+    }
+
+    /**
+     * Take a snapshot of this manager, which is kept consistent until it is
+     * released (see {@link #releaseSnapshot(Snapshot)}).
+     */
+    private Snapshot takeSnapshot() {
+        Snapshot snapshot = new Snapshot(this);
+        snapshots.add(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Stop keeping a snapshot consistent.
+     */
+    private void releaseSnapshot(Snapshot snapshot) {
+        snapshots.remove(snapshot);
+        snapshot.release();
+    }
+
+    /**
+     * Tell the snapshots in use that a movement is about to be changed.
+     */
+    private void preserve(long id, Movement movement) {
+        for (Snapshot snapshot : snapshots) {
+            snapshot.preserve(id, movement);
+        }
+    }
+
+    /**
+     * Write a snapshot in the binary format, in a temporary file (its own one,
+     * so several snapshots can be written at the same time) which replaces
+     * the given one only when it is complete. The replacements of the files
+     * are serialized, and a file is not replaced if it contains a more recent
+     * snapshot.
+     * 
+     * @return the size of the file written, -1 if the file contains a more
+     *         recent snapshot, so it has not been replaced
+     */
+    private static long write(Snapshot snapshot, String filePath,
+                              String password, int compressionLevel,
+                              long stamp) throws IOException {
+        File file = new File(filePath).getAbsoluteFile();
+        File temporaryFile = File.createTempFile(file.getName() + ".save",
+                ".tmp", file.getParentFile());
+        try {
+            writeFile(snapshot, temporaryFile, password, compressionLevel,
+                    stamp);
+            synchronized (WRITTEN_SNAPSHOTS) {
+                Long written = WRITTEN_SNAPSHOTS.get(file);
+                if (written != null && written > snapshot.getOrder()) {
+                    return -1;
+                }
+                long size = temporaryFile.length();
+                replaceFile(temporaryFile, file);
+                WRITTEN_SNAPSHOTS.put(file, snapshot.getOrder());
+                return size;
+            }
+        } finally {
+            // nothing to delete if it has replaced the file
+            temporaryFile.delete();
+        }
+    }
+
+    /**
+     * Write a snapshot in the binary format, in the given file.
+     */
+    private static void writeFile(Snapshot snapshot, File file,
+                                  String password, int compressionLevel,
+                                  long stamp) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        Deflater deflater = null;
+        try {
+            boolean deflated = compressionLevel != Deflater.NO_COMPRESSION;
+            BinaryFormat.Header header = BinaryFormat.Header.create(deflated,
+                    password != null, stamp);
+            header.write(fos);
+            OutputStream output = header.encrypt(fos, password);
+            if (deflated) {
+                deflater = new Deflater(compressionLevel);
+                output = new DeflaterOutputStream(output, deflater,
+                        BUFFER_SIZE);
+            }
+            OutputStream bos = new BufferedOutputStream(output, BUFFER_SIZE);
+            BinaryFormat.write(snapshot, bos, header.getLength());
+            bos.close();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+            fos.close();
+        }
+    }
+
+    /**
+     * Save the changes of this manager since it has been saved in (or loaded
+     * from) the given file, by appending them to the deltas of this file
+     * (its path followed by {@link #DELTA_EXTENSION}). So only the movements
+     * added, changed or removed are written, with the accounts, budgets and
+     * links if they have changed. The deltas are merged on the file when the
+     * manager is recovered (see {@link #getSaved(String, String, Loading)}).
+     * <br/>
+     * <br/>
+     * A full save (see {@link #save(String, String)}) is done instead if the
+     * changes are not tracked against this file, or if the deltas have become
+     * bigger than the file. The password must be the one of the file.
+     * 
+     * @param filePath
+     *            the file path where the manager has been saved
+     * @param password
+     *            the password to encrypt the file, null to not encrypt it
+     */
+    public void saveIncremental(String filePath, String password) {
+        if (!filePath.equals(baseFilePath)
+            || deltaLength > new File(filePath).length()) {
+            save(filePath, password);
+        } else if (changedMovements.size() > 0 || removedMovements.size() > 0
+                   || elementsChanged) {
+            try {
+                deltaLength = DeltaFile.append(getDeltaFile(filePath),
+                        deltaLength, baseStamp, new Snapshot(this,
+                                changedMovements), removedMovements,
+                        elementsChanged, password);
+                setBase(filePath, baseStamp, deltaLength);
+                if (journal != null
+                    && journal.getFile().equals(getJournalFile(filePath))) {
+                    journal.clear();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(Manager.class.getName()).
+                        log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param filePath
+     *            the path of a saved manager
+     * @return the file of its deltas
+     */
+    private static File getDeltaFile(String filePath) {
+        return new File(filePath + DELTA_EXTENSION);
+    }
+
+    /**
+     * 
+     * @return a new stamp for a saved file, never 0
+     */
+    private static long generateStamp() {
+        long stamp;
+        do {
+            stamp = STAMPS.nextLong();
+        } while (stamp == 0);
+        return stamp;
+    }
+
+    /**
+     * Track the changes of this manager against a saved file, from now.
+     * 
+     * @param filePath
+     *            the path of the file, null to not track the changes
+     * @param stamp
+     *            the stamp of the file
+     * @param deltaLength
+     *            the length of the valid deltas of the file
+     */
+    private void setBase(String filePath, long stamp, long deltaLength) {
+        this.baseFilePath = filePath;
+        this.baseStamp = stamp;
+        this.deltaLength = deltaLength;
+        changedMovements.clear();
+        removedMovements.clear();
+        elementsChanged = false;
+    }
+
+    /**
+     * Track a movement added or changed, if the changes are tracked.
+     */
+    private void movementChanged(long id) {
+        if (baseFilePath != null) {
+            changedMovements.add(id);
+        }
+    }
+
+    /**
+     * Track a movement removed, if the changes are tracked.
+     */
+    private void movementRemoved(long id) {
+        if (baseFilePath != null) {
+            changedMovements.remove(id);
+            removedMovements.add(id);
+        }
+    }
+
+    /**
+     * Track a change of the accounts, budgets or links, if the changes are
+     * tracked.
+     */
+    private void elementsChanged() {
+        if (baseFilePath != null) {
+            elementsChanged = true;
+        }
+    }
+
+    /**
+     * Replace a file by another one, atomically if the file system allows it.
+     * 
+     * @param source
+     *            the file to move
+     * @param target
+     *            the file to replace
+     * @throws IOException
+     *             if the file cannot be replaced
+     */
+    static void replaceFile(File source, File target)
+            throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * The ways to load the movements of a saved manager.
+     * 
+     * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+     * 
+     */
+    public enum Loading {
+
+        /**
+         * All the movements are loaded with the manager.
+         */
+        EAGER,
+        /**
+         * Only the accounts, budgets and links are loaded with the manager,
+         * each movement being loaded when it is used. It needs a file in the
+         * last binary format without encryption nor compression, otherwise
+         * the loading is eager. The file must not be changed while some movements are not
+         * loaded (a manager saved in the same file does not change the file
+         * read, which is replaced).
+         */
+        LAZY
+    };
+
+    /**
+     * Same as {@link #getSaved(String, String, Loading)} with an eager
+     * loading.
+     */
+    public static Manager getSaved(String filePath, String password) {
+        return getSaved(filePath, password, Loading.EAGER);
+    }
+
+    /**
+     * Recover the content of a manager from the given file. If a password is
+     * given (not null) it will be used to decrypt the file (so do not give one
+     * if the file is not encrypted). If the file has deltas (see
+     * {@link #saveIncremental(String, String)}), they are merged, then if it
+     * has a journal (see {@link #openJournal(String)}), the changes it
+     * contains are replayed.
+     * @param filePath the file path where the manager is saved
+     * @param password the password to decrypt the file
+     * @param loading the way to load the movements
+     * @return the manager recovered, null if there is an error
+     */
+    public static Manager getSaved(String filePath, String password,
+                                   Loading loading) {
+        File journalFile = getJournalFile(filePath);
+        Manager manager = null;
+        if (!new File(filePath).exists() && journalFile.exists()) {
+            // the manager has never been saved, only its journal exists
+            manager = new Manager();
+        } else {
+            manager = readSaved(filePath, password, loading);
+        }
+
+        if (manager != null && manager.baseStamp != 0) {
             try {
-                if (password != null) {
-                    cos = new CipherOutputStream(fos, Crypto.getCipher(
-                            Crypto.Mode.ENCRYPT,
-                            password));
-                    oos = new ObjectOutputStream(cos);
-                } else {
-                    oos = new ObjectOutputStream(fos);
-                }
-                oos.writeObject(this);
-                oos.flush();
-                oos.close();
-                if (password != null) {
-                    cos.close();
-                }
+                long length = DeltaFile.merge(getDeltaFile(filePath), manager,
+                        manager.baseStamp, password);
+                manager.setBase(filePath, manager.baseStamp, length);
             } catch (IOException ex) {
                 Logger.getLogger(Manager.class.getName()).
                         log(Level.SEVERE, null, ex);
+                manager = null;
             }
+        }
+
+        if (manager != null && journalFile.exists()) {
             try {
-                fos.close();
+                manager.journalSequence = Journal.replay(journalFile, manager,
+                        manager.journalSequence, password);
             } catch (IOException ex) {
                 Logger.getLogger(Manager.class.getName()).
                         log(Level.SEVERE, null, ex);
+                manager = null;
             }
-        } catch (FileNotFoundException ex) {
-            Logger.getLogger(Manager.class.getName()).log(Level.SEVERE, null, ex);
         }
+        return manager;
     }
 
     /**
-     * Recover the content of a manager from the given file. If a password is
-     * given (not null) it will be used to decrypt the file (so do not give one
-     * if the file is not encrypted).
+     * Read a manager from the given file, without its journal. The file can
+     * be in the binary format (see {@link BinaryFormat}) or in the legacy
+     * format (see {@link #readExternal(ObjectInput)}). A file in the binary
+     * format without encryption is read through its channel (see
+     * {@link MappedInput}), so it is decoded without stream buffers, and it is
+     * mapped in memory only when its movements are loaded lazily.
      * @param filePath the file path where the manager is saved
      * @param password the password to decrypt the file
+     * @param loading the way to load the movements
      * @return the manager recovered, null if there is an error
      */
-    public static Manager getSaved(String filePath, String password) {
+    private static Manager readSaved(String filePath, String password,
+                                     Loading loading) {
         FileInputStream fis = null;
-        CipherInputStream cis = null;
-        ObjectInputStream ois = null;
         Manager manager = null;
         try {
             fis = new FileInputStream(filePath);
             try {
-                if (password != null) {
-                    cis = new CipherInputStream(fis, Crypto.getCipher(
-                            Crypto.Mode.DECRYPT, password));
-                    ois = new ObjectInputStream(cis);
+                BufferedInputStream bis = new BufferedInputStream(fis,
+                        BUFFER_SIZE);
+                BinaryFormat.Header header = BinaryFormat.Header.read(bis);
+                if (header != null) {
+                    int version = header.getVersion();
+                    boolean sequential = header.isEncrypted(password)
+                                         || header.isDeflated();
+                    if (!sequential && loading == Loading.LAZY
+                        && version > BinaryFormat.VERSION_WITHOUT_INDEX) {
+                        manager = BinaryFormat.readLazily(new File(filePath),
+                                header.getLength(), version);
+                    } else if (!sequential) {
+                        manager = readDirectly(new File(filePath),
+                                header.getLength(), version);
+                    } else {
+                        manager = readBinary(bis, password, header);
+                    }
+                    manager.baseStamp = header.getStamp();
                 } else {
-                    ois = new ObjectInputStream(fis);
-                }
-                try {
-                    manager = (Manager) ois.readObject();
-                } catch (ClassNotFoundException ex) {
-                    Logger.getLogger(Manager.class.getName()).
-                            log(Level.SEVERE, null, ex);
-                }
-                ois.close();
-                if (cis != null) {
-                    cis.close();
+                    manager = readLegacy(bis, password);
                 }
             } catch (IOException ex) {
                 Logger.getLogger(Manager.class.getName()).
@@ -356,9 +1575,99 @@ public class Manager implements Externalizable {
         return manager;
     }
 
+    /**
+     * Read a manager in the binary format, after the header.
+     */
+    private static Manager readBinary(InputStream input, String password,
+                                      BinaryFormat.Header header)
+            throws IOException {
+        Inflater inflater = header.isDeflated()
+                            ? new Inflater()
+                            : null;
+        try {
+            return BinaryFormat.read(openContent(header.decrypt(input,
+                    password), inflater), header.getVersion());
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Open the content of a file in the binary format, once decrypted (see
+     * {@link BinaryFormat.Header#decrypt(InputStream, String)}), by
+     * decompressing it if an inflater is given.
+     */
+    static DataInputStream openContent(InputStream input, Inflater inflater) {
+        if (inflater != null) {
+            input = new InflaterInputStream(input, inflater, BUFFER_SIZE);
+        }
+        return new DataInputStream(new BufferedInputStream(input,
+                BUFFER_SIZE));
+    }
+
+    /**
+     * Read a manager in the binary format, not encrypted, through the channel
+     * of the file. The file is not mapped, so it can be replaced once read,
+     * even on the systems refusing to replace a mapped file.
+     * 
+     * @param file
+     *            the file where the manager is saved
+     * @param offset
+     *            the position of the content, after the header
+     * @param version
+     *            the version of the format
+     */
+    private static Manager readDirectly(File file, long offset, int version)
+            throws IOException {
+        MappedInput input = new MappedInput(file, offset,
+                MappedInput.DEFAULT_READ_CHUNK_SIZE, false);
+        try {
+            return BinaryFormat.read(input, version);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Read a manager in the legacy format, written with
+     * {@link #writeExternal(ObjectOutput)}.
+     */
+    @SuppressWarnings("deprecation")
+    static Manager readLegacy(InputStream input, String password)
+            throws IOException {
+        CipherInputStream cis = null;
+        ObjectInputStream ois = null;
+        Manager manager = null;
+        if (password != null) {
+            cis = new CipherInputStream(input, Crypto.getCipher(
+                    Crypto.Mode.DECRYPT, password));
+            ois = new ObjectInputStream(cis);
+        } else {
+            ois = new ObjectInputStream(input);
+        }
+        try {
+            manager = (Manager) ois.readObject();
+            try {
+                manager.journalSequence = ois.readLong();
+            } catch (EOFException ex) {
+                // saved before the journals, nothing to skip
+            }
+        } catch (ClassNotFoundException ex) {
+            Logger.getLogger(Manager.class.getName()).
+                    log(Level.SEVERE, null, ex);
+        }
+        ois.close();
+        if (cis != null) {
+            cis.close();
+        }
+        return manager;
+    }
+
     @Override
-    public void writeExternal(ObjectOutput out) throws IOException {
-        out.writeUTF(this.lastGeneratedId.toString());
+    public void writeExternal(final ObjectOutput out) throws IOException {
+        out.writeUTF(Long.toString(this.lastGeneratedId));
 
         out.writeInt(accounts.size());
         for (Account account : accounts) {
@@ -371,21 +1680,25 @@ public class Manager implements Externalizable {
         }
 
         out.writeInt(links.size());
-        for (Link link : links) {
-            out.writeUTF(link.account.getName());
-            out.writeUTF(link.budget.getName());
-            BigDecimal val = link.value;
-            out.writeUTF(val == null
-                         ? ""
-                         : val.toString());
-        }
+        forEachLink(new LinkVisitor<IOException>() {
+
+            @Override
+            public void visit(Account account, Budget budget, BigDecimal value)
+                    throws IOException {
+                out.writeUTF(account.getName());
+                out.writeUTF(budget.getName());
+                out.writeUTF(value == null
+                             ? ""
+                             : value.toString());
+            }
+        });
 
         out.writeInt(movements.size());
-        for (Map.Entry<BigDecimal, Movement> entry : movements.entrySet()) {
-            BigDecimal id = entry.getKey();
-            Movement movement = entry.getValue();
+        for (long id = movements.nextId(0); id >= 0;
+             id = movements.nextId(id + 1)) {
+            Movement movement = movements.get(id);
 
-            out.writeUTF(id.toString());
+            out.writeUTF(Long.toString(id));
             Account account = movement.getAccount();
             out.writeUTF(account == null
                          ? ""
@@ -394,11 +1707,16 @@ public class Manager implements Externalizable {
             out.writeUTF(movement.getValue().toString());
             out.writeBoolean(movement.isLocked());
 
-            out.writeInt(movement.getBudgetsAssigned().length);
-            for (Budget budget : movement.getBudgetsAssigned()) {
-                out.writeUTF(budget.getName());
-                out.writeUTF(movement.getValueForBudget(budget).toString());
-            }
+            out.writeInt(movement.getAssignmentsCount());
+            movement.forEachAssignment(new AssignmentVisitor<IOException>() {
+
+                @Override
+                public void visit(Budget budget, BigDecimal value)
+                        throws IOException {
+                    out.writeUTF(budget.getName());
+                    out.writeUTF(value.toString());
+                }
+            });
         }
 
         out.flush();
@@ -407,22 +1725,16 @@ public class Manager implements Externalizable {
     @Override
     public void readExternal(ObjectInput in) throws IOException,
             ClassNotFoundException {
-        this.lastGeneratedId = new BigDecimal(in.readUTF());
+        this.lastGeneratedId = new BigDecimal(in.readUTF()).longValueExact();
 
-        Map<String, Account> accountMap = new HashMap<String, Account>();
         int size = in.readInt();
         for (int i = 0; i < size; i++) {
-            Account account = (Account) in.readObject();
-            accountMap.put(account.getName(), account);
-            accounts.add(account);
+            addAccount((Account) in.readObject());
         }
 
-        Map<String, Budget> budgetMap = new HashMap<String, Budget>();
         size = in.readInt();
         for (int i = 0; i < size; i++) {
-            Budget budget = (Budget) in.readObject();
-            budgetMap.put(budget.getName(), budget);
-            budgets.add(budget);
+            addBudget((Budget) in.readObject());
         }
 
         size = in.readInt();
@@ -438,8 +1750,8 @@ public class Manager implements Externalizable {
 
         size = in.readInt();
         for (int i = 0; i < size; i++) {
-            BigDecimal id = new BigDecimal(in.readUTF());
-            Account account = accountMap.get(in.readUTF());
+            long id = new BigDecimal(in.readUTF()).longValueExact();
+            Account account = getAccount(in.readUTF());
             Sense sense = (Sense) in.readObject();
             BigDecimal value = new BigDecimal(in.readUTF());
             boolean locked = in.readBoolean();
@@ -451,7 +1763,7 @@ public class Manager implements Externalizable {
 
             int size2 = in.readInt();
             for (int j = 0; j < size2; j++) {
-                Budget budget = budgetMap.get(in.readUTF());
+                Budget budget = getBudget(in.readUTF());
                 BigDecimal value2 = new BigDecimal(in.readUTF());
 
                 movement.assignValueToBudget(budget, value2);
@@ -459,6 +1771,7 @@ public class Manager implements Externalizable {
 
             movement.setLocked(locked);
             movements.put(id, movement);
+            movementIndex.added(id, movement);
         }
     }
 
@@ -466,7 +1779,10 @@ public class Manager implements Externalizable {
      * A link allows an account to food a budget. If there is no value (null)
      * the budget can take what it needs (depending of its links with other
      * accounts and the possibilities of this one), otherwise this link is fixed
-     * to an amount of money, reserved for this budget.
+     * to an amount of money, reserved for this budget.<br/>
+     * <br/>
+     * The manager does not store these objects (see {@link LinkMatrix}), they
+     * only describe a link.
      * 
      * @author Matthieu Vergne <matthieu.vergne@gmail.com>
      * 
@@ -530,11 +1846,14 @@ public class Manager implements Externalizable {
         /**
          * Give a hashcode depending of account and budget, so a set of links
          * can recognize two equal links by their hashcode. This is especially
-         * necessary for {@link Set#contains(Object)}.
+         * necessary for {@link Set#contains(Object)}. The hashcodes of the
+         * account and the budget are mixed (not simply added) in order to
+         * avoid collisions between links sharing the same elements.
          */
         @Override
         public int hashCode() {
-            return account.hashCode() + budget.hashCode();
+            int hash = account.hashCode() * 0x9E3779B9 + budget.hashCode();
+            return hash ^ (hash >>> 16);
         }
 
         @Override
@@ -557,7 +1876,8 @@ public class Manager implements Externalizable {
      * @return true if there is already a link between them, false otherwise
      */
     public boolean isLinked(String accountName, String budgetName) {
-        return links.contains(generateLink(accountName, budgetName));
+        return links.isLinked(getAccountOrdinal(accountName),
+                getBudgetOrdinal(budgetName));
     }
 
     /**
@@ -571,57 +1891,31 @@ public class Manager implements Externalizable {
      *         manager manage it itself)
      */
     public BigDecimal getLinkValue(String accountName, String budgetName) {
-        Link link = getLink(accountName, budgetName);
-        return link.value;
+        int account = getAccountOrdinal(accountName);
+        int budget = getBudgetOrdinal(budgetName);
+        checkLinked(account, budget, accountName, budgetName);
+        return links.getValue(account, budget);
     }
 
     /**
-     * Give the existing link which correspond to the given account and budget.
+     * Check the given account and budget are linked.
      * 
+     * @param account
+     *            the ordinal of the account
+     * @param budget
+     *            the ordinal of the budget
      * @param accountName
-     *            the name of the account linked to the budget
+     *            the name of the account
      * @param budgetName
-     *            the name of the budget linked to the account
-     * @return the corresponding link known by the manager
-     * @exception LinkException
+     *            the name of the budget
+     * @exception NoLinkException
      *                if the link does not exist
      */
-    private Link getLink(String accountName, String budgetName) {
-        Link template = generateLink(accountName, budgetName);
-        for (Link link : links) {
-            if (link.equals(template)) {
-                return link;
-            }
-        }
-        throw new NoLinkException(accountName, budgetName);
-    }
-
-    /**
-     * Generate a link, without insert it in the manager. This method manage all
-     * the checking needed to create a new link.
-     * 
-     * @param accountName
-     *            the name of an account of this manager
-     * @param budgetName
-     *            the name of a budget of this manager
-     * @return a new link between the account and the budget
-     * @exception UnknownAccountException
-     *                if the given account is not known by the manager
-     * @exception UnknownBudgetException
-     *                if the given budget is not known by the manager
-     */
-    private Link generateLink(String accountName, String budgetName) {
-        Account account = getAccount(accountName);
-        if (account == null) {
-            throw new UnknownAccountException(accountName);
-        }
-
-        Budget budget = getBudget(budgetName);
-        if (budget == null) {
-            throw new UnknownBudgetException(budgetName);
+    private void checkLinked(int account, int budget, String accountName,
+                             String budgetName) {
+        if (!links.isLinked(account, budget)) {
+            throw new NoLinkException(accountName, budgetName);
         }
-
-        return new Link(account, budget);
     }
 
     /**
@@ -636,11 +1930,19 @@ public class Manager implements Externalizable {
      */
     public void changeLinkValue(String accountName, String budgetName,
                                 BigDecimal newValue) {
-        Link link = getLink(accountName, budgetName);
+        int account = getAccountOrdinal(accountName);
+        int budget = getBudgetOrdinal(budgetName);
+        checkLinked(account, budget, accountName, budgetName);
         // TODO check if there is a need to control value sign
         // basically a negative value should be forbidden, as a negative value
         // means the budget feed the account, what is a non-sense
-        link.value = newValue;
+        links.setValue(account, budget, newValue);
+        elementsChanged();
+        if (journal != null) {
+            journal.linkValueChanged(++journalSequence, accountName,
+                    budgetName, newValue);
+            checkpointIfNeeded();
+        }
     }
 
     /**
@@ -650,7 +1952,10 @@ public class Manager implements Externalizable {
      * @return the names of the accounts linked to the budget
      */
     public String[] getAccountsLinkedToBudget(String budgetName) {
-        return getElementsLinkedToElement(getBudget(budgetName));
+        Integer budget = budgetOrdinals.get(budgetName);
+        return getLinkedNames(budget == null
+                              ? null
+                              : linkedAccountNames.get(budget));
     }
 
     /**
@@ -660,31 +1965,30 @@ public class Manager implements Externalizable {
      * @return the names of the budgets linked to the account
      */
     public String[] getBudgetsLinkedToAccount(String accountName) {
-        return getElementsLinkedToElement(getAccount(accountName));
+        Integer account = accountOrdinals.get(accountName);
+        return getLinkedNames(account == null
+                              ? null
+                              : linkedBudgetNames.get(account));
     }
 
     /**
-     * Give the names of the elements (accounts or budgets) linked to the given
-     * element (respectively budget or account).
-     * 
-     * @param element
-     *            the element to check
-     * @return the names of the elements linked to the element in argument
+     * @param names
+     *            the sorted names of the elements linked to an element, null
+     *            if there is no names
+     * @return a copy of the names, an empty array if there is no names
      */
-    private <T extends AccountancyElement> String[] getElementsLinkedToElement(
-            T element) {
-        List<String> linkedNames = new ArrayList<String>();
-        for (Link link : links) {
-            if (link.linksTheElement(element)) {
-                AccountancyElement linkedElement = element instanceof Budget
-                                                   ? link.account
-                                                   : link.budget;
-                linkedNames.add(linkedElement.getName());
-            }
-        }
-        String[] array = linkedNames.toArray(new String[]{});
-        Arrays.sort(array);
-        return array;
+    private static String[] getLinkedNames(String[] names) {
+        return names == null
+               ? new String[0]
+               : names.clone();
+    }
+
+    /**
+     * Same as {@link #addMovementWithLongId(Movement)} but the ID is given as a
+     * {@link BigDecimal}.
+     */
+    public BigDecimal addMovement(Movement movement) {
+        return BigDecimal.valueOf(addMovementWithLongId(movement));
     }
 
     /**
@@ -696,12 +2000,211 @@ public class Manager implements Externalizable {
      *            the movement to add
      * @return the ID of the movement (unique in all the manager)
      */
-    public BigDecimal addMovement(Movement movement) {
-        BigDecimal id = generateNewId();
+    public long addMovementWithLongId(Movement movement) {
+        long id = insertMovement(movement);
+        if (journal != null) {
+            checkpointIfNeeded();
+        }
+        return id;
+    }
+
+    /**
+     * Add several movements at once, and apply them if asked. It is the same
+     * as calling {@link #addMovementWithLongId(Movement)} (then
+     * {@link #applyMovement(long)}) for each movement, but the records of the
+     * journal are written together and the checkpoint is considered only
+     * once, so importing a lot of movements costs much less.<br/>
+     * <br/>
+     * The movements are checked before any of them is added. If an account
+     * limit is exceeded while applying them, the movements before stay added
+     * and applied, the one exceeding the limit stays added but not applied
+     * and the next ones are not added.
+     * 
+     * @param newMovements
+     *            the movements to add
+     * @param apply
+     *            true to apply the movements, false to only add them
+     * @return the ID of the first movement, the next movements having the
+     *         next IDs
+     * @exception AlreadyAppliedMovementException
+     *                if a movement to apply is already applied
+     * @exception InvalidMovementException
+     *                if a movement to apply has no account or no value
+     */
+    public long addMovements(List<Movement> newMovements, boolean apply) {
+        if (apply) {
+            for (Movement movement : newMovements) {
+                if (movement.isLocked()) {
+                    throw new AlreadyAppliedMovementException();
+                } else if (movement.getAccount() == null
+                           || movement.getValue() == null) {
+                    throw new InvalidMovementException();
+                }
+            }
+        }
+        long firstId = lastGeneratedId + 1;
+        if (journal != null) {
+            journal.startBatch();
+        }
+        try {
+            for (Movement movement : newMovements) {
+                long id = insertMovement(movement);
+                if (apply) {
+                    lockMovement(id, movement);
+                }
+            }
+        } finally {
+            if (journal != null) {
+                journal.endBatch();
+            }
+        }
+        if (journal != null) {
+            checkpointIfNeeded();
+        }
+        return firstId;
+    }
+
+    /**
+     * Add a new movement to this manager, without checkpoint.
+     */
+    private long insertMovement(Movement movement) {
+        movement.setScale(scale);
+        long id = generateNewId();
         movements.put(id, movement);
+        movementIndex.added(id, movement);
+        movementChanged(id);
+        if (journal != null) {
+            journal.movementAdded(++journalSequence, id, movement);
+        }
         return id;
     }
 
+    /**
+     * Put a movement with a known ID in this manager, replacing the one
+     * having the same ID if there is. It is used to rebuild a manager from
+     * its journal.
+     * 
+     * @param id
+     *            the ID of the movement
+     * @param movement
+     *            the movement to put
+     */
+    void restoreMovement(long id, Movement movement) {
+        movement.setScale(scale);
+        Movement old = movements.get(id);
+        if (old != null) {
+            movementIndex.removed(id, old);
+        }
+        movements.put(id, movement);
+        movementIndex.added(id, movement);
+        movementChanged(id);
+        lastGeneratedId = Math.max(lastGeneratedId, id);
+    }
+
+    /**
+     * 
+     * @return the store of the movements of this manager, which must not be
+     *         changed
+     */
+    MovementStore getMovementStore() {
+        return movements;
+    }
+
+    /**
+     * 
+     * @return the accounts of this manager indexed by ordinal, which must not
+     *         be changed
+     */
+    List<Account> getAccountsByOrdinal() {
+        return accountsByOrdinal;
+    }
+
+    /**
+     * 
+     * @return the budgets of this manager indexed by ordinal, which must not
+     *         be changed
+     */
+    List<Budget> getBudgetsByOrdinal() {
+        return budgetsByOrdinal;
+    }
+
+    /**
+     * Give the movements of this manager which are not loaded yet (see
+     * {@link Loading#LAZY}).
+     * 
+     * @param loader
+     *            the loader of the movements
+     */
+    void setMovementLoader(MovementStore.Loader loader) {
+        movements.setLoader(loader);
+    }
+
+    /**
+     * Prepare a movement which has just been loaded (see
+     * {@link #setMovementLoader(MovementStore.Loader)}).
+     * 
+     * @param id
+     *            the ID of the movement
+     * @param movement
+     *            the movement loaded
+     */
+    void movementLoaded(long id, Movement movement) {
+        movement.setScale(scale);
+        movementIndex.added(id, movement);
+    }
+
+    /**
+     * Remove a movement from this manager, or only forget its ID if it is not
+     * known (its adding has been purged from the journal). It is used to
+     * rebuild a manager from its journal.
+     * 
+     * @param id
+     *            the ID of the movement
+     */
+    void restoreRemoval(long id) {
+        if (movements.get(id) == null) {
+            lastGeneratedId = Math.max(lastGeneratedId, id);
+        } else {
+            removeMovement(id);
+        }
+    }
+
+    /**
+     * 
+     * @return the last ID generated in this manager
+     */
+    long getLastGeneratedId() {
+        return lastGeneratedId;
+    }
+
+    /**
+     * 
+     * @param id
+     *            the last ID generated in this manager, to restore it when the
+     *            manager is read
+     */
+    void setLastGeneratedId(long id) {
+        lastGeneratedId = id;
+    }
+
+    /**
+     * 
+     * @return the sequence number of the last change written in a journal
+     */
+    long getJournalSequence() {
+        return journalSequence;
+    }
+
+    /**
+     * 
+     * @param sequence
+     *            the sequence number of the last change written in a journal,
+     *            to restore it when the manager is read
+     */
+    void setJournalSequence(long sequence) {
+        journalSequence = sequence;
+    }
+
     /**
      * Generate an ID not used in this manager. It allows to have a unique ID in
      * all the manager.<br/>
@@ -712,9 +2215,15 @@ public class Manager implements Externalizable {
      * 
      * @return the next free ID
      */
-    private BigDecimal generateNewId() {
-        lastGeneratedId = lastGeneratedId.add(BigDecimal.ONE);
-        return lastGeneratedId;
+    private long generateNewId() {
+        return ++lastGeneratedId;
+    }
+
+    /**
+     * Same as {@link #applyMovement(long)} with a {@link BigDecimal} ID.
+     */
+    public void applyMovement(BigDecimal id) {
+        applyMovement(toLongId(id));
     }
 
     /**
@@ -729,7 +2238,7 @@ public class Manager implements Externalizable {
      * @exception InvalidMovementException
      *                if the movement cannot be applied
      */
-    public void applyMovement(BigDecimal id) {
+    public void applyMovement(long id) {
         Movement movement = getMovement(id);
         if (movement.isLocked()) {
             throw new AlreadyAppliedMovementException();
@@ -737,23 +2246,82 @@ public class Manager implements Externalizable {
         if (movement.getAccount() == null || movement.getValue() == null) {
             throw new InvalidMovementException();
         } else {
-            movement.setLocked(true);
+            lockMovement(id, movement);
+            if (journal != null) {
+                checkpointIfNeeded();
+            }
+        }
+    }
 
-            Account account = movement.getAccount();
+    /**
+     * Apply a valid movement not applied yet, without checkpoint.
+     */
+    private void lockMovement(long id, Movement movement) {
+        applyEffects(movement, false);
+        preserve(id, movement);
+        movement.setLocked(true);
+        movements.put(id, movement);
+        movementIndex.applied(id, movement);
+        movementChanged(id);
+        elementsChanged();
+        if (journal != null) {
+            journal.movementApplied(++journalSequence, id, movement);
+        }
+    }
+
+    /**
+     * Apply the effects of a movement on its account and budgets.
+     * 
+     * @param movement
+     *            the movement to apply
+     * @param reverse
+     *            true to apply the opposite movement (to cancel it), false
+     *            otherwise
+     */
+    private void applyEffects(Movement movement, boolean reverse) {
+        final boolean output = (movement.getSense() == Sense.OUTPUT) != reverse;
+        Account account = movement.getAccount();
+        if (movement.isFixedPoint()) {
+            long unitsToAdd = movement.getUnits();
+            if (output) {
+                unitsToAdd = -unitsToAdd;
+            }
+            account.addUnits(unitsToAdd, movement.getScale());
+        } else {
             BigDecimal valueToAdd = movement.getValue();
-            if (movement.getSense() == Sense.OUTPUT) {
+            if (output) {
                 valueToAdd = valueToAdd.negate();
             }
             account.setValue(account.getValue().add(valueToAdd));
+        }
 
-            for (Budget budget : movement.getBudgetsAssigned()) {
-                valueToAdd = movement.getValueForBudget(budget);
-                if (movement.getSense() == Sense.OUTPUT) {
-                    valueToAdd = valueToAdd.negate();
+        final int movementScale = movement.getScale();
+        movement.forEachAssignment(new AssignmentVisitor<RuntimeException>() {
+
+            @Override
+            public void visit(Budget budget, BigDecimal value) {
+                long unitsToAdd = movementScale == Money.NO_SCALE
+                                  ? Money.NOT_REPRESENTABLE
+                                  : Money.toUnits(value, movementScale);
+                if (unitsToAdd != Money.NOT_REPRESENTABLE) {
+                    budget.addUnits(output
+                                    ? -unitsToAdd
+                                    : unitsToAdd, movementScale);
+                } else {
+                    BigDecimal valueToAdd = output
+                                            ? value.negate()
+                                            : value;
+                    budget.setValue(budget.getValue().add(valueToAdd));
                 }
-                budget.setValue(budget.getValue().add(valueToAdd));
             }
-        }
+        });
+    }
+
+    /**
+     * Same as {@link #getMovement(long)} with a {@link BigDecimal} ID.
+     */
+    public Movement getMovement(BigDecimal id) {
+        return getMovement(toLongId(id));
     }
 
     /**
@@ -764,7 +2332,7 @@ public class Manager implements Externalizable {
      * @exception UnknownMovementException
      *                if the movement is not known by the manager
      */
-    public Movement getMovement(BigDecimal id) {
+    public Movement getMovement(long id) {
         Movement movement = movements.get(id);
         if (movement == null) {
             throw new UnknownMovementException(id);
@@ -772,6 +2340,55 @@ public class Manager implements Externalizable {
         return movement;
     }
 
+    /**
+     * Same as {@link #updateMovement(long, Movement)} with a
+     * {@link BigDecimal} ID.
+     */
+    public void updateMovement(BigDecimal id, Movement movement) {
+        updateMovement(toLongId(id), movement);
+    }
+
+    /**
+     * Replace a movement not applied yet by its new version. It is needed for
+     * the managers keeping their movements on disk (see
+     * {@link #Manager(File, int)}), which give copies of their movements, and
+     * it records the change in the journal if there is one. The movement
+     * given can be the one of the manager, changed directly.
+     * 
+     * @param id
+     *            the ID of the movement to replace
+     * @param movement
+     *            the new version of the movement
+     * @exception UnknownMovementException
+     *                if the movement is not known by the manager
+     * @exception AlreadyAppliedMovementException
+     *                if the movement of the manager or the new version is
+     *                applied
+     */
+    public void updateMovement(long id, Movement movement) {
+        Movement old = getMovement(id);
+        if (old.isLocked() || movement.isLocked()) {
+            throw new AlreadyAppliedMovementException();
+        }
+        movement.setScale(scale);
+        preserve(id, old);
+        movementIndex.removed(id, old);
+        movements.put(id, movement);
+        movementIndex.added(id, movement);
+        movementChanged(id);
+        if (journal != null) {
+            journal.movementAdded(++journalSequence, id, movement);
+            checkpointIfNeeded();
+        }
+    }
+
+    /**
+     * Same as {@link #cancelMovement(long)} with a {@link BigDecimal} ID.
+     */
+    public void cancelMovement(BigDecimal id) {
+        cancelMovement(toLongId(id));
+    }
+
     /**
      * Cancel the applying of a movement. The result of a canceling is the same
      * as if you have never applied it : the manager knows it but the accounts
@@ -782,39 +2399,44 @@ public class Manager implements Externalizable {
      * @exception NotAppliedMovementException
      *                if the movement is not applied yet
      */
-    public void cancelMovement(BigDecimal id) {
+    public void cancelMovement(long id) {
         Movement movement = getMovement(id);
         if (!movement.isLocked()) {
             throw new NotAppliedMovementException();
         } else {
-            // we unlock the original movement, with that we must ensure its
-            // effects are canceled too
+            // we compensate the original movement effects applying them in
+            // the other sense, now it is the same as if the original movement
+            // was never applied (no opposite movement is stored, so there is
+            // no trace of it)
+            applyEffects(movement, true);
+
+            // we unlock the original movement, its effects being canceled
+            preserve(id, movement);
             movement.setLocked(false);
-
-            // we create the same movement but in the other sense
-            Movement antiMovement = movement.clone();
-            antiMovement.setSense(movement.getSense() == Sense.INPUT
-                                  ? Sense.OUTPUT
-                                  : Sense.INPUT);
-
-            // we compensate the original movement effects applying the opposite
-            // movement, now it is the same as if the original movement was
-            // never applied
-            id = addMovement(antiMovement);
-            applyMovement(id);
-
-            // we erase the opposite movement passing all the controls, so there
-            // is no trace of it
-            movements.remove(id);
+            movements.put(id, movement);
+            movementIndex.canceled(id, movement);
+            movementChanged(id);
+            elementsChanged();
+            if (journal != null) {
+                journal.movementCanceled(++journalSequence, id);
+                checkpointIfNeeded();
+            }
         }
     }
 
+    /**
+     * Same as {@link #isApplied(long)} with a {@link BigDecimal} ID.
+     */
+    public boolean isApplied(BigDecimal id) {
+        return isApplied(toLongId(id));
+    }
+
     /**
      * Tell if a movement of the manager is applied or not.
      * @param id the ID of the movement
      * @return true if it is applied, false otherwise
      */
-    public boolean isApplied(BigDecimal id) {
+    public boolean isApplied(long id) {
         return getMovement(id).isLocked();
     }
 }
@@ -0,0 +1,325 @@
+package manager;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A mapped input reads a file mapped in memory (see
+ * {@link FileChannel#map(FileChannel.MapMode, long, long)}), so the content is
+ * decoded directly from the mapped memory, without copying it in stream
+ * buffers. As a mapping cannot exceed 2 GB, a big file is mapped chunk by
+ * chunk, a chunk being mapped when the reading reaches it.<br/>
+ * <br/>
+ * A mapped file stays mapped until the mapping is garbage collected, even
+ * after {@link #close()}, and some systems (like Windows) refuse to replace or
+ * delete a mapped file. So the mapping is kept for the inputs used as long as
+ * their manager (see {@link BinaryFormat#readLazily(File, long, int)}), and an
+ * input read at once is rather created without mapping (see
+ * {@link #MappedInput(File, long, int, boolean)}): its chunks are read through
+ * the channel in heap buffers, which releases the file when it is closed.<br/>
+ * <br/>
+ * A mapped input can also read a part of a file already in memory (see
+ * {@link #readBuffer(int)}), to decode it in another thread.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+class MappedInput implements DataInput, Closeable {
+
+    /**
+     * The default size of the chunks mapped.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 30;
+    /**
+     * The default size of the chunks read without mapping, allocated in the
+     * heap.
+     */
+    public static final int DEFAULT_READ_CHUNK_SIZE = 1 << 22;
+    /**
+     * The file read.
+     */
+    private final RandomAccessFile file;
+    /**
+     * The channel used to map the file.
+     */
+    private final FileChannel channel;
+    /**
+     * The size of the file.
+     */
+    private final long size;
+    /**
+     * The size of the chunks mapped.
+     */
+    private final int chunkSize;
+    /**
+     * True if the chunks are mapped, false if they are read in heap buffers.
+     */
+    private final boolean mapped;
+    /**
+     * The chunk currently read.
+     */
+    private ByteBuffer chunk;
+    /**
+     * The position in the file of the next chunk to map.
+     */
+    private long nextChunk;
+
+    /**
+     * Same as {@link #MappedInput(File, long, int)} with
+     * {@link #DEFAULT_CHUNK_SIZE}.
+     */
+    public MappedInput(File file, long offset) throws IOException {
+        this(file, offset, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Same as {@link #MappedInput(File, long, int, boolean)} with mapped
+     * chunks.
+     */
+    public MappedInput(File file, long offset, int chunkSize)
+            throws IOException {
+        this(file, offset, chunkSize, true);
+    }
+
+    /**
+     *
+     * @param file
+     *            the file to read
+     * @param offset
+     *            the position in the file where the reading starts
+     * @param chunkSize
+     *            the size of the chunks mapped or read
+     * @param mapped
+     *            true to map the chunks, false to read them in heap buffers
+     * @throws IOException
+     *             if the file cannot be opened
+     */
+    public MappedInput(File file, long offset, int chunkSize, boolean mapped)
+            throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.size = channel.size();
+        this.chunkSize = chunkSize;
+        this.mapped = mapped;
+        this.chunk = ByteBuffer.allocate(0);
+        this.nextChunk = offset;
+    }
+
+    /**
+     * Read a buffer already in memory.
+     *
+     * @param buffer
+     *            the buffer to read, from its position to its limit
+     */
+    public MappedInput(ByteBuffer buffer) {
+        this.file = null;
+        this.channel = null;
+        this.size = buffer.remaining();
+        this.chunkSize = 0;
+        this.mapped = false;
+        this.chunk = buffer;
+        this.nextChunk = size;
+    }
+
+    /**
+     * Map or read the next chunk of the file. A read chunk is always a new
+     * buffer, because the buffers given by {@link #readBuffer(int)} can still
+     * be decoded in other threads.
+     *
+     * @exception EOFException
+     *                if the end of the file is reached
+     */
+    private void nextChunk() throws IOException {
+        if (nextChunk >= size) {
+            throw new EOFException();
+        }
+        long length = Math.min(chunkSize, size - nextChunk);
+        if (mapped) {
+            chunk = channel.map(FileChannel.MapMode.READ_ONLY, nextChunk,
+                    length);
+        } else {
+            ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, nextChunk + buffer.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+            chunk = buffer;
+        }
+        nextChunk += length;
+    }
+
+    /**
+     * Move the reading to another position of the file. If the position is
+     * not in the chunk currently mapped, a new chunk is mapped from this
+     * position at the next reading.
+     *
+     * @param position
+     *            the position in the file of the next byte to read
+     */
+    public void seek(long position) {
+        long chunkStart = nextChunk - chunk.limit();
+        if (position >= chunkStart && position < nextChunk) {
+            chunk.position((int) (position - chunkStart));
+        } else {
+            chunk = ByteBuffer.allocate(0);
+            nextChunk = position;
+        }
+    }
+
+    /**
+     *
+     * @return the size of the file
+     */
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        if (!chunk.hasRemaining()) {
+            nextChunk();
+        }
+        return chunk.get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        if (chunk.remaining() >= 2) {
+            return chunk.getShort();
+        }
+        return (short) ((readByte() << 8) | (readByte() & 0xFF));
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        if (chunk.remaining() >= 4) {
+            return chunk.getInt();
+        }
+        return (readShort() << 16) | (readShort() & 0xFFFF);
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        if (chunk.remaining() >= 8) {
+            return chunk.getLong();
+        }
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    @Override
+    public void readFully(byte[] bytes) throws IOException {
+        readFully(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public void readFully(byte[] bytes, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            if (!chunk.hasRemaining()) {
+                nextChunk();
+            }
+            int read = Math.min(length, chunk.remaining());
+            chunk.get(bytes, offset, read);
+            offset += read;
+            length -= read;
+        }
+    }
+
+    @Override
+    public int skipBytes(int count) throws IOException {
+        int skipped = 0;
+        while (skipped < count) {
+            if (!chunk.hasRemaining()) {
+                if (nextChunk >= size) {
+                    break;
+                }
+                nextChunk();
+            }
+            int skip = Math.min(count - skipped, chunk.remaining());
+            chunk.position(chunk.position() + skip);
+            skipped += skip;
+        }
+        return skipped;
+    }
+
+    /**
+     * Read some bytes in a buffer. If they are in the current chunk, the
+     * buffer is a part of the chunk, otherwise they are copied.
+     *
+     * @param length
+     *            the number of bytes to read
+     * @return the buffer containing the bytes
+     */
+    public ByteBuffer readBuffer(int length) throws IOException {
+        if (chunk.remaining() >= length) {
+            ByteBuffer buffer = chunk.slice();
+            buffer.limit(length);
+            chunk.position(chunk.position() + length);
+            return buffer;
+        } else {
+            byte[] bytes = new byte[length];
+            readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        }
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    /**
+     * Not supported, the lines are not used in the binary formats.
+     */
+    @Override
+    public String readLine() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        chunk = null;
+        if (file != null) {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package manager;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import accountancy.accounts.Account;
+import accountancy.budgets.Budget;
+import accountancy.movements.AssignmentVisitor;
+import accountancy.movements.Movement;
+
+/**
+ * A movement index keeps the IDs of the movements of a manager by account, by
+ * budget assigned and by value, so the movements fitting a query can be found
+ * without browsing all of them.<br/>
+ * <br/>
+ * Only the applied movements are indexed, because they are locked so they
+ * cannot change. The movements not applied are kept apart and checked
+ * directly at each query, because they can be changed without informing the
+ * manager (see {@link Manager#updateMovement(long, Movement)}), so an index of
+ * their content could be outdated. So the index must be informed of
+ * each movement added, removed, applied or canceled, and a movement must not
+ * be unlocked without being canceled by the manager.<br/>
+ * <br/>
+ * An index can also index nothing, for the movements stored on disk (see
+ * {@link BTreeMovementStore}): its memory does not grow with the number of
+ * movements, but each query browses all the movements.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+class MovementIndex {
+
+    /**
+     * The IDs of the applied movements, by account.
+     */
+    private final Map<Account, IdSet> byAccount = new HashMap<Account, IdSet>();
+    /**
+     * The IDs of the applied movements, by budget assigned.
+     */
+    private final Map<Budget, IdSet> byBudget = new HashMap<Budget, IdSet>();
+    /**
+     * The IDs of the applied movements, by value.
+     */
+    private final NavigableMap<BigDecimal, IdSet> byValue =
+                                                  new TreeMap<BigDecimal, IdSet>();
+    /**
+     * The IDs of the applied movements.
+     */
+    private final IdSet applied = new IdSet();
+    /**
+     * The IDs of the movements not applied.
+     */
+    private final IdSet pending = new IdSet();
+    /**
+     * False if the movements are not indexed.
+     */
+    private final boolean indexing;
+
+    /**
+     * Create an index of the movements.
+     */
+    public MovementIndex() {
+        this(true);
+    }
+
+    /**
+     *
+     * @param indexing
+     *            true to index the movements, false to browse them at each
+     *            query
+     */
+    public MovementIndex(boolean indexing) {
+        this.indexing = indexing;
+    }
+
+    /**
+     * Index a movement added to the manager.
+     */
+    public void added(long id, Movement movement) {
+        if (!indexing) {
+            return;
+        }
+        if (movement.isLocked()) {
+            index(id, movement);
+        } else {
+            pending.add(id);
+        }
+    }
+
+    /**
+     * Forget a movement removed from the manager.
+     */
+    public void removed(long id, Movement movement) {
+        if (!indexing) {
+            return;
+        }
+        if (movement.isLocked()) {
+            unindex(id, movement);
+        } else {
+            pending.remove(id);
+        }
+    }
+
+    /**
+     * Index a movement which has been applied.
+     */
+    public void applied(long id, Movement movement) {
+        if (!indexing) {
+            return;
+        }
+        pending.remove(id);
+        index(id, movement);
+    }
+
+    /**
+     * Forget the indexing of a movement which has been canceled.
+     */
+    public void canceled(long id, Movement movement) {
+        if (!indexing) {
+            return;
+        }
+        unindex(id, movement);
+        pending.add(id);
+    }
+
+    /**
+     * Find the IDs of the movements fitting a query. The applied movements are
+     * taken from the intersection of the indexes fitting the query, then
+     * checked, while the movements not applied are all checked.
+     *
+     * @param query
+     *            the query to fit
+     * @param store
+     *            the movements of the manager
+     * @return the IDs of the movements fitting the query, sorted
+     */
+    public long[] find(MovementQuery query, MovementStore store) {
+        IdSet result = new IdSet();
+        if (!indexing) {
+            for (long id = store.nextId(0); id >= 0; id = store.nextId(id + 1)) {
+                if (query.matches(store.get(id))) {
+                    result.add(id);
+                }
+            }
+            return toArray(result);
+        }
+        // both are found in increasing order, so they are merged at the end
+        IdSet pendingResult = new IdSet();
+        if (!Boolean.FALSE.equals(query.getApplied())) {
+            IdSet candidates = getAppliedCandidates(query);
+            for (int index = 0; index < candidates.size(); index++) {
+                long id = candidates.get(index);
+                if (query.matches(store.get(id))) {
+                    result.add(id);
+                }
+            }
+        }
+        if (!Boolean.TRUE.equals(query.getApplied())) {
+            for (int index = 0; index < pending.size(); index++) {
+                long id = pending.get(index);
+                if (query.matches(store.get(id))) {
+                    pendingResult.add(id);
+                }
+            }
+        }
+        return merge(result, pendingResult);
+    }
+
+    private static long[] toArray(IdSet set) {
+        return merge(set, new IdSet());
+    }
+
+    /**
+     * @return the IDs of two sets without common IDs, sorted
+     */
+    private static long[] merge(IdSet set1, IdSet set2) {
+        long[] ids = new long[set1.size() + set2.size()];
+        int index1 = 0;
+        int index2 = 0;
+        for (int index = 0; index < ids.length; index++) {
+            if (index2 == set2.size() || index1 < set1.size()
+                                         && set1.get(index1) < set2.get(index2)) {
+                ids[index] = set1.get(index1++);
+            } else {
+                ids[index] = set2.get(index2++);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     *
+     * @param query
+     *            the query to fit
+     * @return the intersection of the indexes fitting the query, which
+     *         contains all the applied movements fitting the query
+     */
+    private IdSet getAppliedCandidates(MovementQuery query) {
+        IdSet candidates = applied;
+        if (query.getAccount() != null) {
+            candidates = intersection(candidates,
+                    byAccount.get(query.getAccount()));
+        }
+        if (query.getBudget() != null) {
+            candidates = intersection(candidates,
+                    byBudget.get(query.getBudget()));
+        }
+        if (query.getMinValue() != null || query.getMaxValue() != null) {
+            NavigableMap<BigDecimal, IdSet> range = byValue;
+            if (query.getMinValue() != null) {
+                range = range.tailMap(query.getMinValue(), true);
+            }
+            if (query.getMaxValue() != null) {
+                range = range.headMap(query.getMaxValue(), true);
+            }
+            /*
+             * Gathering the range costs more than checking the candidates
+             * directly if it is bigger, so it is used only when smaller.
+             */
+            int rangeSize = 0;
+            for (IdSet ids : range.values()) {
+                rangeSize += ids.size();
+                if (rangeSize >= candidates.size()) {
+                    break;
+                }
+            }
+            if (rangeSize < candidates.size()) {
+                // a movement has a single value, so the IDs are all different
+                long[] rangeIds = new long[rangeSize];
+                int count = 0;
+                for (IdSet ids : range.values()) {
+                    for (int index = 0; index < ids.size(); index++) {
+                        rangeIds[count++] = ids.get(index);
+                    }
+                }
+                candidates = intersection(candidates, new IdSet(rangeIds,
+                        count));
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @return the IDs of both sets, an empty set if the second is null
+     *         (nothing indexed)
+     */
+    private IdSet intersection(IdSet set1, IdSet set2) {
+        if (set2 == null) {
+            return new IdSet();
+        }
+        // all the indexed IDs are applied
+        return set1 == applied
+               ? set2
+               : set1.intersection(set2);
+    }
+
+    /**
+     * Index an applied movement.
+     */
+    private void index(final long id, Movement movement) {
+        applied.add(id);
+        getIds(byAccount, movement.getAccount()).add(id);
+        getIds(byValue, movement.getValue()).add(id);
+        movement.forEachAssignment(new AssignmentVisitor<RuntimeException>() {
+
+            @Override
+            public void visit(Budget budget, BigDecimal value) {
+                getIds(byBudget, budget).add(id);
+            }
+        });
+    }
+
+    /**
+     * Forget the indexing of an applied movement.
+     */
+    private void unindex(final long id, Movement movement) {
+        applied.remove(id);
+        removeId(byAccount, movement.getAccount(), id);
+        removeId(byValue, movement.getValue(), id);
+        movement.forEachAssignment(new AssignmentVisitor<RuntimeException>() {
+
+            @Override
+            public void visit(Budget budget, BigDecimal value) {
+                removeId(byBudget, budget, id);
+            }
+        });
+    }
+
+    /**
+     * @return the IDs of the given key, created if there was no IDs yet
+     */
+    private static <K> IdSet getIds(Map<K, IdSet> map, K key) {
+        IdSet ids = map.get(key);
+        if (ids == null) {
+            ids = new IdSet();
+            map.put(key, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * Remove an ID of the given key, and the key if it has no more IDs.
+     */
+    private static <K> void removeId(Map<K, IdSet> map, K key, long id) {
+        IdSet ids = map.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.size() == 0) {
+                map.remove(key);
+            }
+        }
+    }
+}
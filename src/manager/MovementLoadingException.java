@@ -0,0 +1,9 @@
+package manager;
+
+@SuppressWarnings("serial")
+public class MovementLoadingException extends RuntimeException {
+
+    public MovementLoadingException(long id, Throwable cause) {
+        super("the movement " + id + " cannot be loaded", cause);
+    }
+}
@@ -0,0 +1,92 @@
+package manager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import accountancy.movements.Movement;
+
+/**
+ * A movement page is a read-only window on the movements of a manager, sorted
+ * by ID (see {@link Manager#getMovementsPage(long, int)}). The next page can be
+ * asked from {@link #getNextId()}, so all the movements can be browsed page by
+ * page.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public class MovementPage {
+
+    /**
+     * The IDs of the movements of this page, sorted.
+     */
+    private final long[] ids;
+    /**
+     * The movements of this page, in the same order than the IDs.
+     */
+    private final Movement[] movements;
+    /**
+     * The ID of the first movement of the next page, -1 if there is no next
+     * page.
+     */
+    private final long nextId;
+
+    MovementPage(long[] ids, Movement[] movements, long nextId) {
+        this.ids = ids;
+        this.movements = movements;
+        this.nextId = nextId;
+    }
+
+    /**
+     *
+     * @return the number of movements in this page
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     *
+     * @param index
+     *            the index of a movement in this page
+     * @return the ID of this movement
+     */
+    public long getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     *
+     * @param index
+     *            the index of a movement in this page
+     * @return the movement
+     */
+    public Movement getMovement(int index) {
+        return movements[index];
+    }
+
+    /**
+     *
+     * @return the movements of this page, sorted by ID (read-only)
+     */
+    public List<Movement> getMovements() {
+        return Collections.unmodifiableList(Arrays.asList(movements));
+    }
+
+    /**
+     *
+     * @return true if there is movements after this page
+     */
+    public boolean hasNext() {
+        return nextId >= 0;
+    }
+
+    /**
+     *
+     * @return the ID to give to get the next page, -1 if there is no next
+     *         page
+     */
+    public long getNextId() {
+        return nextId;
+    }
+}
@@ -0,0 +1,109 @@
+package manager;
+
+import java.math.BigDecimal;
+
+import accountancy.accounts.Account;
+import accountancy.budgets.Budget;
+import accountancy.movements.Movement;
+import accountancy.movements.Movement.Sense;
+
+/**
+ * A movement query describes the movements to search in a manager (see
+ * {@link Manager#findMovements(MovementQuery)}). Each criterion is optional
+ * (null means any), a movement is found if it fits all the criteria given.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public class MovementQuery {
+
+    /**
+     * The account of the movements.
+     */
+    private Account account = null;
+    /**
+     * A budget assigned in the movements.
+     */
+    private Budget budget = null;
+    /**
+     * The sense of the movements.
+     */
+    private Sense sense = null;
+    /**
+     * Tell if the movements are applied or not.
+     */
+    private Boolean applied = null;
+    /**
+     * The minimal value of the movements (included).
+     */
+    private BigDecimal minValue = null;
+    /**
+     * The maximal value of the movements (included).
+     */
+    private BigDecimal maxValue = null;
+
+    public Account getAccount() {
+        return account;
+    }
+
+    public void setAccount(Account account) {
+        this.account = account;
+    }
+
+    public Budget getBudget() {
+        return budget;
+    }
+
+    public void setBudget(Budget budget) {
+        this.budget = budget;
+    }
+
+    public Sense getSense() {
+        return sense;
+    }
+
+    public void setSense(Sense sense) {
+        this.sense = sense;
+    }
+
+    public Boolean getApplied() {
+        return applied;
+    }
+
+    public void setApplied(Boolean applied) {
+        this.applied = applied;
+    }
+
+    public BigDecimal getMinValue() {
+        return minValue;
+    }
+
+    public void setMinValue(BigDecimal minValue) {
+        this.minValue = minValue;
+    }
+
+    public BigDecimal getMaxValue() {
+        return maxValue;
+    }
+
+    public void setMaxValue(BigDecimal maxValue) {
+        this.maxValue = maxValue;
+    }
+
+    /**
+     *
+     * @param movement
+     *            the movement to check
+     * @return true if the movement fits all the criteria of this query
+     */
+    public boolean matches(Movement movement) {
+        return (account == null || account == movement.getAccount())
+               && (budget == null || movement.getValueForBudget(budget) != null)
+               && (sense == null || sense == movement.getSense())
+               && (applied == null || applied == movement.isLocked())
+               && (minValue == null
+                   || minValue.compareTo(movement.getValue()) <= 0)
+               && (maxValue == null
+                   || maxValue.compareTo(movement.getValue()) >= 0);
+    }
+}
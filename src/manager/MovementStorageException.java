@@ -0,0 +1,9 @@
+package manager;
+
+@SuppressWarnings("serial")
+public class MovementStorageException extends RuntimeException {
+
+    public MovementStorageException(Throwable cause) {
+        super("the movements cannot be stored on disk", cause);
+    }
+}
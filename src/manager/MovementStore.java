@@ -0,0 +1,125 @@
+package manager;
+
+import accountancy.movements.Movement;
+
+/**
+ * A movement store keeps the movements of a manager by ID. The movements can
+ * be kept in memory (see {@link ArrayMovementStore}) or on disk (see
+ * {@link BTreeMovementStore}).<br/>
+ * <br/>
+ * A store can also have movements not loaded yet, given by a {@link Loader}.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+interface MovementStore {
+
+    /**
+     * A loader gives the movements of a store which are not loaded yet.
+     *
+     * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+     *
+     */
+    interface Loader {
+
+        /**
+         *
+         * @return the number of movements this loader can load
+         */
+        public int size();
+
+        /**
+         *
+         * @param index
+         *            the index of a movement, the movements being sorted by ID
+         * @return the ID of the movement
+         */
+        public long getId(int index);
+
+        /**
+         *
+         * @param index
+         *            the index of a movement, the movements being sorted by ID
+         * @return the movement loaded
+         */
+        public Movement load(int index);
+
+        /**
+         * Release the resources of the loader, which is not used anymore.
+         */
+        public void close();
+    }
+
+    /**
+     * Give the movements not loaded yet. They must not have the same IDs than
+     * the movements already in this store.
+     *
+     * @param loader
+     *            the loader of the movements
+     */
+    public void setLoader(Loader loader);
+
+    /**
+     * Load all the movements which are not loaded yet.
+     */
+    public void loadAll();
+
+    /**
+     *
+     * @return the number of movements in this store
+     */
+    public int size();
+
+    /**
+     *
+     * @param id
+     *            the ID of a movement
+     * @return the movement which has this ID, null if there is not
+     */
+    public Movement get(long id);
+
+    /**
+     *
+     * @return true if the movements given by {@link #get(long)} are the ones
+     *         of this store, so changing them changes the store, false if they
+     *         are copies
+     */
+    public boolean sharesMovements();
+
+    /**
+     * Store a movement, replacing the one having the same ID if there is.
+     *
+     * @param id
+     *            the ID of the movement
+     * @param movement
+     *            the movement to store
+     * @exception IllegalArgumentException
+     *                if the ID cannot be stored
+     */
+    public void put(long id, Movement movement);
+
+    /**
+     * Remove a movement from this store.
+     *
+     * @param id
+     *            the ID of the movement to remove
+     * @return the movement removed, null if there was no movement with this ID
+     */
+    public Movement remove(long id);
+
+    /**
+     * Give the next ID used in this store, to browse the movements in the
+     * order of their IDs.
+     *
+     * @param id
+     *            the first ID to consider
+     * @return the first ID used from the given one (included), -1 if there is
+     *         no more ID
+     */
+    public long nextId(long id);
+
+    /**
+     * Release the resources of this store, which is not used anymore.
+     */
+    public void close();
+}
@@ -0,0 +1,25 @@
+package manager;
+
+import accountancy.movements.Movement;
+
+/**
+ * A movement visitor is called for each movement of a manager (see
+ * {@link Manager#forEachMovement(MovementVisitor)}).
+ * 
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ * 
+ * @param <E>
+ *            the exception the visitor can throw ({@link RuntimeException} if
+ *            it does not throw checked exceptions)
+ */
+public interface MovementVisitor<E extends Exception> {
+
+    /**
+     * 
+     * @param id
+     *            the ID of the movement
+     * @param movement
+     *            the movement visited
+     */
+    public void visit(long id, Movement movement) throws E;
+}
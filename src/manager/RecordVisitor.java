@@ -0,0 +1,57 @@
+package manager;
+
+import java.math.BigDecimal;
+
+import accountancy.accounts.Account;
+import accountancy.budgets.Budget;
+import accountancy.movements.Movement;
+
+/**
+ * A record visitor is called for each record of a saved manager, in the order
+ * they are read (see {@link SaveReader}): the accounts, then the budgets, the
+ * links and finally the movements, each sorted like in the manager.
+ * 
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ * 
+ * @param <E>
+ *            the exception the visitor can throw ({@link RuntimeException} if
+ *            it does not throw checked exceptions)
+ */
+public interface RecordVisitor<E extends Exception> {
+
+    /**
+     * 
+     * @param account
+     *            the account read
+     */
+    public void visitAccount(Account account) throws E;
+
+    /**
+     * 
+     * @param budget
+     *            the budget read
+     */
+    public void visitBudget(Budget budget) throws E;
+
+    /**
+     * 
+     * @param account
+     *            the account linked, already visited
+     * @param budget
+     *            the budget linked, already visited
+     * @param value
+     *            the value of the link, null if there is no value
+     */
+    public void visitLink(Account account, Budget budget, BigDecimal value)
+            throws E;
+
+    /**
+     * 
+     * @param id
+     *            the ID of the movement
+     * @param movement
+     *            the movement read, with its assignments (its account and
+     *            budgets are the ones visited)
+     */
+    public void visitMovement(long id, Movement movement) throws E;
+}
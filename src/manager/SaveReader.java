@@ -0,0 +1,84 @@
+package manager;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+
+/**
+ * A save reader reads a saved manager (see
+ * {@link Manager#save(String, String)}) record by record, without building
+ * the manager: each account, budget, link and movement is given to a
+ * {@link RecordVisitor} as soon as it is decoded. Only the accounts and
+ * budgets are kept in memory, so a big archive can be browsed (for a report
+ * or an export) with a small heap.<br/>
+ * <br/>
+ * Only the saved file is read: its deltas (see
+ * {@link Manager#saveIncremental(String, String)}) and its journal (see
+ * {@link Manager#openJournal(String)}) are ignored. A file in the legacy
+ * format cannot be streamed, so it is loaded in a manager which is then
+ * browsed.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public final class SaveReader {
+
+    /**
+     * The size of the buffer used to read the file.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private SaveReader() {
+    }
+
+    /**
+     * Read a saved manager record by record.
+     *
+     * @param filePath
+     *            the file path where the manager is saved
+     * @param password
+     *            the password to decrypt the file, null if it is not
+     *            encrypted
+     * @param visitor
+     *            the visitor to call for each record
+     * @throws IOException
+     *             if the file cannot be read
+     * @exception E
+     *                if the visitor throws it (then the reading is stopped)
+     */
+    public static <E extends Exception> void read(String filePath,
+                                                  String password,
+                                                  RecordVisitor<E> visitor)
+            throws IOException, E {
+        InputStream input = new FileInputStream(filePath);
+        try {
+            BufferedInputStream bis = new BufferedInputStream(input,
+                    BUFFER_SIZE);
+            BinaryFormat.Header header = BinaryFormat.Header.read(bis);
+            if (header == null) {
+                Manager manager = Manager.readLegacy(bis, password);
+                if (manager == null) {
+                    throw new IOException("the manager cannot be read");
+                }
+                manager.forEachRecord(visitor);
+            } else {
+                Inflater inflater = header.isDeflated()
+                                    ? new Inflater()
+                                    : null;
+                try {
+                    BinaryFormat.readRecords(Manager.openContent(header.
+                            decrypt(bis, password), inflater), header.
+                            getVersion(), visitor);
+                } finally {
+                    if (inflater != null) {
+                        inflater.end();
+                    }
+                }
+            }
+        } finally {
+            input.close();
+        }
+    }
+}
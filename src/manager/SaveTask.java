@@ -0,0 +1,42 @@
+package manager;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A save task is a saving of a manager done in background (see
+ * {@link Manager#saveInBackground(String, String)}). Its result is the size
+ * of the file written (-1 if a more recent save of the same file has ended
+ * first), and its progress can be followed while it is running.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public class SaveTask extends FutureTask<Long> {
+
+    /**
+     * The snapshot written.
+     */
+    private final Snapshot snapshot;
+
+    SaveTask(Callable<Long> saving, Snapshot snapshot) {
+        super(saving);
+        this.snapshot = snapshot;
+    }
+
+    /**
+     *
+     * @return the part of the movements already written, from 0 to 1 (1 when
+     *         the saving is done)
+     */
+    public double getProgress() {
+        if (isDone()) {
+            return 1;
+        } else if (snapshot.getMovementCount() == 0) {
+            return 0;
+        } else {
+            return (double) snapshot.getVisitedCount()
+                   / snapshot.getMovementCount();
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package manager;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import accountancy.accounts.Account;
+import accountancy.budgets.Budget;
+import accountancy.movements.Movement;
+
+/**
+ * A snapshot is a consistent view of a manager at a given time, used to save
+ * it while it continues to change. The values of the accounts, budgets and
+ * links are copied when the snapshot is taken, but the movements, much more
+ * numerous, are only referenced: a movement is copied only when the manager
+ * is about to change it (see {@link #preserve(long, Movement)}). So taking a
+ * snapshot costs only the copy of the references, and the manager continues
+ * to work at full speed while the snapshot is written.<br/>
+ * <br/>
+ * When the store of the manager gives copies of its movements (see
+ * {@link MovementStore#sharesMovements()}), like a store on disk, only the
+ * IDs are kept and each movement is read from the store when it is visited,
+ * so the snapshot does not load all the movements in memory.<br/>
+ * <br/>
+ * The accounts and budgets referenced are the ones of the manager, only their
+ * values are copied, so the movements of the snapshot still refer to them.
+ * Only the changes made through the manager are isolated from the snapshot: a
+ * movement or an element changed directly during the writing is written in an
+ * unknown state.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+class Snapshot {
+
+    /**
+     * The counter giving the order of the snapshots.
+     */
+    private static final AtomicLong ORDERS = new AtomicLong();
+    /**
+     * The order in which this snapshot has been taken, a greater order being
+     * given to a more recent snapshot.
+     */
+    private final long order = ORDERS.incrementAndGet();
+    /**
+     * The last ID generated in the manager.
+     */
+    private final long lastGeneratedId;
+    /**
+     * The sequence number of the last change written in the journal.
+     */
+    private final long journalSequence;
+    /**
+     * The scale of the manager.
+     */
+    private final int scale;
+    /**
+     * The accounts, sorted by name.
+     */
+    private final List<Account> accounts = new ArrayList<Account>();
+    /**
+     * The names of the accounts, in the same order.
+     */
+    private final List<String> accountNames = new ArrayList<String>();
+    /**
+     * The values of the accounts, in the same order.
+     */
+    private final List<BigDecimal> accountValues = new ArrayList<BigDecimal>();
+    /**
+     * The limits of the accounts, in the same order.
+     */
+    private final List<BigDecimal> accountLimits = new ArrayList<BigDecimal>();
+    /**
+     * The budgets, sorted by name.
+     */
+    private final List<Budget> budgets = new ArrayList<Budget>();
+    /**
+     * The names of the budgets, in the same order.
+     */
+    private final List<String> budgetNames = new ArrayList<String>();
+    /**
+     * The values of the budgets, in the same order.
+     */
+    private final List<BigDecimal> budgetValues = new ArrayList<BigDecimal>();
+    /**
+     * The accounts of the links, grouped by account.
+     */
+    private final List<Account> linkAccounts = new ArrayList<Account>();
+    /**
+     * The budgets of the links, in the same order.
+     */
+    private final List<Budget> linkBudgets = new ArrayList<Budget>();
+    /**
+     * The values of the links, in the same order.
+     */
+    private final List<BigDecimal> linkValues = new ArrayList<BigDecimal>();
+    /**
+     * The IDs of the movements, sorted.
+     */
+    private final long[] ids;
+    /**
+     * The movements, in the same order than the IDs, null if they are read
+     * from the {@link #store} when visited.
+     */
+    private final Movement[] movements;
+    /**
+     * The store of the movements, null if they are referenced in
+     * {@link #movements}.
+     */
+    private final MovementStore store;
+    /**
+     * The copies of the movements changed since the snapshot was taken.
+     */
+    private final Map<Long, Movement> preserved = new HashMap<Long, Movement>();
+    /**
+     * The number of movements visited or being visited (see
+     * {@link #forEachMovement}).
+     */
+    private volatile int visited = 0;
+    /**
+     * The index of the movement visited while it is not a copy, -1 if there
+     * is not.
+     */
+    private int visiting = -1;
+    /**
+     * True when the snapshot is not used anymore, so the movements changed
+     * are not preserved.
+     */
+    private boolean released = false;
+
+    /**
+     * Take a snapshot of a manager. All the movements are loaded, unless they
+     * are read from the store when visited.
+     *
+     * @param manager
+     *            the manager to take a snapshot of
+     */
+    public Snapshot(Manager manager) {
+        this(manager, manager.getMovementsIDs().size());
+        if (movements == null) {
+            int index = 0;
+            for (long id = store.nextId(0); id >= 0;
+                 id = store.nextId(id + 1)) {
+                ids[index++] = id;
+            }
+        } else {
+            manager.forEachMovement(new MovementVisitor<RuntimeException>() {
+
+                private int index = 0;
+
+                @Override
+                public void visit(long id, Movement movement) {
+                    ids[index] = id;
+                    movements[index] = movement;
+                    index++;
+                }
+            });
+        }
+    }
+
+    /**
+     * Take a snapshot of a manager with only some of its movements.
+     *
+     * @param manager
+     *            the manager to take a snapshot of
+     * @param movementIds
+     *            the IDs of the movements to take, which must be in the
+     *            manager
+     */
+    public Snapshot(Manager manager, IdSet movementIds) {
+        this(manager, movementIds.size());
+        for (int index = 0; index < movementIds.size(); index++) {
+            ids[index] = movementIds.get(index);
+            if (movements != null) {
+                movements[index] = manager.getMovement(ids[index]);
+            }
+        }
+    }
+
+    /**
+     * Take a snapshot of the elements of a manager, the movements being
+     * given by the caller.
+     */
+    private Snapshot(Manager manager, int movementCount) {
+        lastGeneratedId = manager.getLastGeneratedId();
+        journalSequence = manager.getJournalSequence();
+        scale = manager.getScale();
+        manager.forEachAccount(new ElementVisitor<Account, RuntimeException>() {
+
+            @Override
+            public void visit(Account account) {
+                accounts.add(account);
+                accountNames.add(account.getName());
+                accountValues.add(account.getValue());
+                accountLimits.add(account.getLimit());
+            }
+        });
+        manager.forEachBudget(new ElementVisitor<Budget, RuntimeException>() {
+
+            @Override
+            public void visit(Budget budget) {
+                budgets.add(budget);
+                budgetNames.add(budget.getName());
+                budgetValues.add(budget.getValue());
+            }
+        });
+        manager.forEachLink(new LinkVisitor<RuntimeException>() {
+
+            @Override
+            public void visit(Account account, Budget budget, BigDecimal value) {
+                linkAccounts.add(account);
+                linkBudgets.add(budget);
+                linkValues.add(value);
+            }
+        });
+
+        ids = new long[movementCount];
+        if (manager.getMovementStore().sharesMovements()) {
+            movements = new Movement[movementCount];
+            store = null;
+        } else {
+            movements = null;
+            store = manager.getMovementStore();
+        }
+    }
+
+    /**
+     * Keep the current state of a movement which is about to be changed by
+     * the manager, if it is in this snapshot, not visited yet and not already
+     * preserved. If the movement is being visited, wait until its visit ends.
+     *
+     * @param id
+     *            the ID of the movement
+     * @param movement
+     *            the movement, not changed yet
+     */
+    public synchronized void preserve(long id, Movement movement) {
+        if (released || preserved.containsKey(id)) {
+            return;
+        }
+        int index = Arrays.binarySearch(ids, id);
+        boolean interrupted = false;
+        while (index >= 0 && index == visiting) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (index >= visited) {
+            Movement copy = movement.clone();
+            copy.setLocked(movement.isLocked());
+            preserved.put(id, copy);
+        }
+    }
+
+    /**
+     * Stop preserving the movements changed, the snapshot being not used
+     * anymore.
+     */
+    public synchronized void release() {
+        released = true;
+        preserved.clear();
+    }
+
+    /**
+     *
+     * @return the order in which this snapshot has been taken, a greater
+     *         order being given to a more recent snapshot
+     */
+    public long getOrder() {
+        return order;
+    }
+
+    public long getLastGeneratedId() {
+        return lastGeneratedId;
+    }
+
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    public int getAccountCount() {
+        return accounts.size();
+    }
+
+    public Account getAccount(int index) {
+        return accounts.get(index);
+    }
+
+    public String getAccountName(int index) {
+        return accountNames.get(index);
+    }
+
+    public BigDecimal getAccountValue(int index) {
+        return accountValues.get(index);
+    }
+
+    public BigDecimal getAccountLimit(int index) {
+        return accountLimits.get(index);
+    }
+
+    public int getBudgetCount() {
+        return budgets.size();
+    }
+
+    public Budget getBudget(int index) {
+        return budgets.get(index);
+    }
+
+    public String getBudgetName(int index) {
+        return budgetNames.get(index);
+    }
+
+    public BigDecimal getBudgetValue(int index) {
+        return budgetValues.get(index);
+    }
+
+    public int getLinkCount() {
+        return linkAccounts.size();
+    }
+
+    public Account getLinkAccount(int index) {
+        return linkAccounts.get(index);
+    }
+
+    public Budget getLinkBudget(int index) {
+        return linkBudgets.get(index);
+    }
+
+    public BigDecimal getLinkValue(int index) {
+        return linkValues.get(index);
+    }
+
+    public int getMovementCount() {
+        return ids.length;
+    }
+
+    public long getMovementId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * Call the visitor for each movement of this snapshot, sorted by ID, in
+     * the state it had when the snapshot was taken. The manager cannot change
+     * a movement while it is visited, unless it is visited through a copy, but
+     * the visit does not prevent it to change the other movements.
+     *
+     * @param visitor
+     *            the visitor to call
+     * @exception E
+     *                if the visitor throws it (then the browsing is stopped)
+     */
+    public <E extends Exception> void forEachMovement(
+            MovementVisitor<E> visitor) throws E {
+        for (int index = 0; index < ids.length; index++) {
+            Movement movement;
+            synchronized (this) {
+                movement = preserved.remove(ids[index]);
+                if (movement == null) {
+                    visiting = index;
+                }
+                visited = index + 1;
+            }
+            try {
+                if (movement == null) {
+                    movement = movements == null
+                               ? store.get(ids[index])
+                               : movements[index];
+                }
+                visitor.visit(ids[index], movement);
+            } finally {
+                synchronized (this) {
+                    visiting = -1;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @return the number of movements visited (see
+     *         {@link #forEachMovement(MovementVisitor)}) since the snapshot
+     *         was taken
+     */
+    public int getVisitedCount() {
+        return visited;
+    }
+}
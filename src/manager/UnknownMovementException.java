@@ -8,4 +8,8 @@ public class UnknownMovementException extends RuntimeException {
     public UnknownMovementException(BigDecimal id) {
         super("the movement " + id + " does not exists in this manager");
     }
+
+    public UnknownMovementException(long id) {
+        super("the movement " + id + " does not exists in this manager");
+    }
 }
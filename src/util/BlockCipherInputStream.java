@@ -0,0 +1,190 @@
+package util;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * A block cipher input stream decrypts the data written by a
+ * {@link BlockCipherOutputStream}. The next blocks are read and decrypted in
+ * parallel while the current one is consumed. A block which cannot be
+ * authenticated (changed, moved or missing) stops the reading with a
+ * {@link CorruptedBlockException} telling which block is corrupted.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public class BlockCipherInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private final SecretKey key;
+    private final byte[] nonce;
+    private final int blockSize;
+    /**
+     * The block being consumed, null before the first one.
+     */
+    private byte[] block = null;
+    /**
+     * The number of bytes consumed in the current block.
+     */
+    private int position = 0;
+    /**
+     * The index of the next block to read.
+     */
+    private long index = 0;
+    /**
+     * True when the last block has been read.
+     */
+    private boolean lastRead = false;
+    /**
+     * The blocks being decrypted, in their order.
+     */
+    private final Deque<Future<byte[]>> decryptions = new ArrayDeque<Future<byte[]>>();
+
+    /**
+     * Start to read a stream of blocks encrypted with a key.
+     *
+     * @param input
+     *            the input of the blocks encrypted
+     * @param key
+     *            the key the blocks have been encrypted with
+     * @throws IOException
+     *             if the start of the stream cannot be read
+     * @throws CorruptedBlockException
+     *             if the size of the blocks is not between 1 and
+     *             {@link BlockCipherOutputStream#BLOCK_SIZE}
+     */
+    public BlockCipherInputStream(InputStream input, SecretKey key)
+            throws IOException {
+        this.in = new DataInputStream(input);
+        this.key = key;
+        this.nonce = new byte[Crypto.NONCE_SIZE];
+        in.readFully(nonce);
+        blockSize = in.readInt();
+        // not authenticated yet, so checked before allocating the blocks
+        if (blockSize <= 0 || blockSize > BlockCipherOutputStream.BLOCK_SIZE) {
+            throw new CorruptedBlockException(0, "invalid block size "
+                                                 + blockSize);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fillBlock()) {
+            return -1;
+        } else {
+            return block[position++] & 0xFF;
+        }
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        } else if (!fillBlock()) {
+            return -1;
+        } else {
+            int count = Math.min(length, block.length - position);
+            System.arraycopy(block, position, bytes, offset, count);
+            position += count;
+            return count;
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return block == null
+               ? 0
+               : block.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<byte[]> decryption : decryptions) {
+            decryption.cancel(false);
+        }
+        decryptions.clear();
+        in.close();
+    }
+
+    /**
+     * Make sure the current block has bytes to consume, by taking the next
+     * one if needed.
+     *
+     * @return false if there is no more bytes
+     */
+    private boolean fillBlock() throws IOException {
+        while (block == null || position == block.length) {
+            while (!lastRead && decryptions.size() < BlockCipherOutputStream.MAX_PENDING_BLOCKS) {
+                decryptBlock();
+            }
+            if (decryptions.isEmpty()) {
+                return false;
+            }
+            try {
+                block = decryptions.getFirst().get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                } else {
+                    throw new IOException(ex.getCause());
+                }
+            }
+            decryptions.removeFirst();
+            position = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Read the next block and start its decryption.
+     */
+    private void decryptBlock() throws IOException {
+        final long blockIndex = index;
+        final byte[] encrypted;
+        final boolean last;
+        try {
+            int size = in.readInt();
+            if (size < 0 || size > blockSize) {
+                throw new CorruptedBlockException(blockIndex, "invalid size "
+                                                              + size);
+            }
+            last = size < blockSize;
+            encrypted = new byte[size + Crypto.TAG_SIZE];
+            in.readFully(encrypted);
+        } catch (EOFException ex) {
+            throw new CorruptedBlockException(blockIndex, "truncated");
+        }
+        decryptions.add(Crypto.WORKERS.submit(new Callable<byte[]>() {
+
+            @Override
+            public byte[] call() throws Exception {
+                Cipher cipher = Crypto.getAuthenticatedCipher(
+                        Crypto.Mode.DECRYPT, key, BlockCipherOutputStream.
+                        getNonce(nonce, blockIndex));
+                cipher.updateAAD(BlockCipherOutputStream.getAssociatedData(
+                        blockIndex, last));
+                try {
+                    return cipher.doFinal(encrypted);
+                } catch (AEADBadTagException ex) {
+                    throw new CorruptedBlockException(blockIndex, ex);
+                }
+            }
+        }));
+        index++;
+        lastRead = last;
+    }
+}
@@ -0,0 +1,228 @@
+package util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * A block cipher output stream encrypts the data written in blocks of
+ * {@link #BLOCK_SIZE} bytes, each block being encrypted alone with an
+ * authenticated cipher (see
+ * {@link Crypto#getAuthenticatedCipher(Crypto.Mode, SecretKey, byte[])}). So
+ * the blocks are encrypted in parallel while the next ones are written, and
+ * read back in parallel too (see {@link BlockCipherInputStream}).<br/>
+ * <br/>
+ * The stream starts with a random nonce of {@link Crypto#NONCE_SIZE} bytes
+ * and the size of the blocks. Then each block is written as the size of its
+ * data followed by its data encrypted (with the authentication tag). The
+ * nonce of a block is the nonce of the stream with its last 8 bytes XORed
+ * with the index of the block, and the index is authenticated with the block
+ * (with whether it is the last block), so a block cannot be moved, removed or
+ * changed without being detected. The last block is the first one which is
+ * not full, possibly empty, so a stream truncated between two blocks is
+ * detected too.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public class BlockCipherOutputStream extends OutputStream {
+
+    /**
+     * The size of the data of a full block.
+     */
+    public static final int BLOCK_SIZE = 1 << 16;
+    /**
+     * The maximum number of blocks encrypted but not yet written, to not
+     * keep the whole data in memory if the writing is slower than the
+     * encryption.
+     */
+    static final int MAX_PENDING_BLOCKS = 4 * Runtime.getRuntime().
+            availableProcessors();
+    private final DataOutputStream out;
+    private final SecretKey key;
+    private final byte[] nonce;
+    /**
+     * The block being filled.
+     */
+    private byte[] block = new byte[BLOCK_SIZE];
+    /**
+     * The number of bytes in the block being filled.
+     */
+    private int position = 0;
+    /**
+     * The index of the block being filled.
+     */
+    private long index = 0;
+    /**
+     * The blocks being encrypted, in their order.
+     */
+    private final Deque<Future<byte[]>> encryptions = new ArrayDeque<Future<byte[]>>();
+    private boolean closed = false;
+
+    /**
+     * Start a stream of blocks encrypted with a key. The key can be used for
+     * several streams, each stream having its own nonce.
+     *
+     * @param output
+     *            the output of the blocks encrypted
+     * @param key
+     *            the key to encrypt the blocks with
+     * @throws IOException
+     *             if the start of the stream cannot be written
+     */
+    public BlockCipherOutputStream(OutputStream output, SecretKey key)
+            throws IOException {
+        this.out = new DataOutputStream(output);
+        this.key = key;
+        this.nonce = Crypto.generateBytes(Crypto.NONCE_SIZE);
+        out.write(nonce);
+        out.writeInt(BLOCK_SIZE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[position++] = (byte) b;
+        if (position == BLOCK_SIZE) {
+            encryptBlock(false);
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, BLOCK_SIZE - position);
+            System.arraycopy(bytes, offset, block, position, count);
+            position += count;
+            offset += count;
+            length -= count;
+            if (position == BLOCK_SIZE) {
+                encryptBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Write the blocks already encrypted. The block being filled is written
+     * only when it is full or when the stream is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!encryptions.isEmpty() && encryptions.getFirst().isDone()) {
+            writeBlock();
+        }
+        out.flush();
+    }
+
+    /**
+     * Write the last block, not full, and close the output.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                encryptBlock(true);
+                while (!encryptions.isEmpty()) {
+                    writeBlock();
+                }
+            } finally {
+                for (Future<byte[]> encryption : encryptions) {
+                    encryption.cancel(false);
+                }
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Start the encryption of the block being filled, then start to fill a
+     * new one.
+     */
+    private void encryptBlock(final boolean last) throws IOException {
+        final byte[] data = block;
+        final int size = position;
+        final long blockIndex = index;
+        encryptions.add(Crypto.WORKERS.submit(new Callable<byte[]>() {
+
+            @Override
+            public byte[] call() throws Exception {
+                Cipher cipher = Crypto.getAuthenticatedCipher(
+                        Crypto.Mode.ENCRYPT, key, getNonce(nonce, blockIndex));
+                cipher.updateAAD(getAssociatedData(blockIndex, last));
+                return cipher.doFinal(data, 0, size);
+            }
+        }));
+        index++;
+        position = 0;
+        block = last
+                ? null
+                : new byte[BLOCK_SIZE];
+        if (encryptions.size() >= MAX_PENDING_BLOCKS) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Wait for the first block being encrypted and write it.
+     */
+    private void writeBlock() throws IOException {
+        byte[] encrypted;
+        try {
+            encrypted = encryptions.getFirst().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+        encryptions.removeFirst();
+        out.writeInt(encrypted.length - Crypto.TAG_SIZE);
+        out.write(encrypted);
+    }
+
+    /**
+     * Give the nonce of a block.
+     *
+     * @param nonce
+     *            the nonce of the stream
+     * @param index
+     *            the index of the block
+     * @return the nonce of the block
+     */
+    static byte[] getNonce(byte[] nonce, long index) {
+        byte[] blockNonce = nonce.clone();
+        for (int i = 0; i < 8; i++) {
+            blockNonce[blockNonce.length - 1 - i] ^= (byte) (index >>> 8 * i);
+        }
+        return blockNonce;
+    }
+
+    /**
+     * Give the data authenticated with a block, but not written.
+     *
+     * @param index
+     *            the index of the block
+     * @param last
+     *            true if it is the last block of the stream
+     * @return the data to authenticate
+     */
+    static byte[] getAssociatedData(long index, boolean last) {
+        byte[] data = new byte[9];
+        for (int i = 0; i < 8; i++) {
+            data[7 - i] = (byte) (index >>> 8 * i);
+        }
+        data[8] = (byte) (last
+                          ? 1
+                          : 0);
+        return data;
+    }
+}
@@ -0,0 +1,38 @@
+package util;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when a block of encrypted data (see
+ * {@link BlockCipherInputStream}) has been changed, truncated or moved, so it
+ * cannot be authenticated.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+@SuppressWarnings("serial")
+public class CorruptedBlockException extends IOException {
+
+    /**
+     * The index of the corrupted block.
+     */
+    private final long block;
+
+    public CorruptedBlockException(long block, String message) {
+        super("block " + block + ": " + message);
+        this.block = block;
+    }
+
+    public CorruptedBlockException(long block, Throwable cause) {
+        super("block " + block + " cannot be authenticated", cause);
+        this.block = block;
+    }
+
+    /**
+     *
+     * @return the index of the corrupted block, starting at 0
+     */
+    public long getBlock() {
+        return block;
+    }
+}
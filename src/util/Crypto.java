@@ -1,16 +1,42 @@
 package util;
 
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
+ * The keys are derived from the passwords with PBKDF2 (see
+ * {@link #getKey(String, byte[], int)}), using a salt and a number of
+ * iterations which are stored with the encrypted data. As the derivation is
+ * slow on purpose, the last keys derived are cached for the session, and the
+ * salt of the session (see {@link #getSessionSalt()}) is used for all the
+ * data encrypted, so a password is derived only once. The ciphers are also
+ * reused, one per thread.<br/>
+ * <br/>
+ * Big data are encrypted in independent blocks (see
+ * {@link BlockCipherOutputStream}), so they are encrypted and decrypted in
+ * parallel and a corrupted block is detected.
  *
  * @author Matthieu Vergne <matthieu.vergne@gmail.com>
  */
@@ -21,7 +47,125 @@ public class Crypto {
         ENCRYPT, DECRYPT
     }
     public final static String algorithm = "AES";
+    /**
+     * The transformation of the ciphers given by
+     * {@link #getCipher(Mode, SecretKey, byte[])}.
+     */
+    public static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    /**
+     * The transformation of the ciphers given by
+     * {@link #getAuthenticatedCipher(Mode, SecretKey, byte[])}.
+     */
+    public static final String AUTHENTICATED_TRANSFORMATION = "AES/GCM/NoPadding";
+    /**
+     * The algorithm deriving the keys from the passwords.
+     */
+    public static final String KEY_DERIVATION = "PBKDF2WithHmacSHA256";
+    /**
+     * The size of the keys, in bits.
+     */
+    public static final int KEY_SIZE = 128;
+    /**
+     * The size of the salts, in bytes.
+     */
+    public static final int SALT_SIZE = 16;
+    /**
+     * The size of the initialization vectors, in bytes.
+     */
+    public static final int IV_SIZE = 16;
+    /**
+     * The size of the nonces of the authenticated ciphers, in bytes.
+     */
+    public static final int NONCE_SIZE = 12;
+    /**
+     * The size of the authentication tags, in bytes.
+     */
+    public static final int TAG_SIZE = 16;
+    /**
+     * The number of iterations of the key derivation for the new data.
+     */
+    public static final int DEFAULT_ITERATIONS = 65536;
+    /**
+     * The generator of the salts and initialization vectors.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+    /**
+     * The salt used for the data encrypted during this session.
+     */
+    private static final byte[] SESSION_SALT = generateBytes(SALT_SIZE);
+    /**
+     * The number of keys kept in the cache.
+     */
+    public static final int CACHED_KEYS = 16;
+    /**
+     * The keys already derived, by digest of their password, salt and
+     * iterations (see {@link #getKeyId(String, byte[], int)}), from the least
+     * recently used.
+     */
+    @SuppressWarnings("serial")
+    private static final Map<ByteBuffer, SecretKey> KEYS = Collections.
+            synchronizedMap(new LinkedHashMap<ByteBuffer, SecretKey>(16, 0.75f,
+                    true) {
 
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<ByteBuffer, SecretKey> eldest) {
+                    return size() > CACHED_KEYS;
+                }
+            });
+    /**
+     * The cipher of each thread.
+     */
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>() {
+
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    };
+    /**
+     * The authenticated cipher of each thread.
+     */
+    private static final ThreadLocal<Cipher> AUTHENTICATED_CIPHERS = new ThreadLocal<Cipher>() {
+
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(AUTHENTICATED_TRANSFORMATION);
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    };
+    /**
+     * The pool encrypting and decrypting the blocks (see
+     * {@link BlockCipherOutputStream} and {@link BlockCipherInputStream}).
+     */
+    static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "crypto worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Give a cipher with a key generated from a random generator seeded with
+     * the password. The key depends on the implementation of the generator,
+     * so it can change from a JVM to another: it is kept only to read the
+     * files encrypted this way.
+     *
+     * @deprecated use {@link #getCipher(Mode, SecretKey, byte[])} with a key
+     *             given by {@link #getKey(String, byte[], int)}
+     */
+    @Deprecated
     public static Cipher getCipher(Mode mode, String password) {
         Cipher cipher = null;
         try {
@@ -43,4 +187,132 @@ public class Crypto {
         }
         return cipher;
     }
+
+    /**
+     * Derive a key from a password. The key is computed only the first time
+     * for a given password, salt and number of iterations, as long as it
+     * stays among the {@link #CACHED_KEYS} last keys used.
+     *
+     * @param password
+     *            the password
+     * @param salt
+     *            the salt of the derivation
+     * @param iterations
+     *            the number of iterations of the derivation
+     * @return the key derived
+     * @throws GeneralSecurityException
+     *             if the key cannot be derived
+     */
+    public static SecretKey getKey(String password, byte[] salt,
+                                   int iterations)
+            throws GeneralSecurityException {
+        ByteBuffer id = getKeyId(password, salt, iterations);
+        SecretKey key = KEYS.get(id);
+        if (key == null) {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
+                    iterations, KEY_SIZE);
+            try {
+                byte[] bytes = SecretKeyFactory.getInstance(KEY_DERIVATION).
+                        generateSecret(spec).getEncoded();
+                key = new SecretKeySpec(bytes, algorithm);
+            } finally {
+                spec.clearPassword();
+            }
+            KEYS.put(id, key);
+        }
+        return key;
+    }
+
+    /**
+     * Identify a key in the cache by a SHA-256 digest, so the passwords are
+     * not kept in memory.
+     *
+     * @return the digest of the password, the salt and the iterations
+     */
+    private static ByteBuffer getKeyId(String password, byte[] salt,
+                                       int iterations)
+            throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] bytes = password.getBytes(Charset.forName("UTF-8"));
+        digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        digest.update(bytes);
+        digest.update(salt);
+        digest.update(ByteBuffer.allocate(4).putInt(iterations).array());
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    /**
+     * Give the cipher of the current thread, initialized with the given key.
+     * The same cipher is given at the next call in the same thread, so the
+     * cipher must not be used anymore after.
+     *
+     * @param mode
+     *            the mode of the cipher
+     * @param key
+     *            the key of the cipher
+     * @param iv
+     *            the initialization vector of the cipher ({@link #IV_SIZE}
+     *            bytes)
+     * @return the cipher initialized
+     * @throws GeneralSecurityException
+     *             if the cipher cannot be initialized
+     */
+    public static Cipher getCipher(Mode mode, SecretKey key, byte[] iv)
+            throws GeneralSecurityException {
+        Cipher cipher = CIPHERS.get();
+        cipher.init(mode == Mode.ENCRYPT
+                    ? Cipher.ENCRYPT_MODE
+                    : Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    /**
+     * Give the authenticated cipher of the current thread, initialized with
+     * the given key. The data encrypted with it end with an authentication
+     * tag of {@link #TAG_SIZE} bytes, so any change is detected when they
+     * are decrypted. The same cipher is given at the next call in the same
+     * thread, so the cipher must not be used anymore after.
+     *
+     * @param mode
+     *            the mode of the cipher
+     * @param key
+     *            the key of the cipher
+     * @param nonce
+     *            the nonce of the cipher ({@link #NONCE_SIZE} bytes), which
+     *            must not be used twice with the same key
+     * @return the cipher initialized
+     * @throws GeneralSecurityException
+     *             if the cipher cannot be initialized
+     */
+    public static Cipher getAuthenticatedCipher(Mode mode, SecretKey key,
+                                                byte[] nonce)
+            throws GeneralSecurityException {
+        Cipher cipher = AUTHENTICATED_CIPHERS.get();
+        cipher.init(mode == Mode.ENCRYPT
+                    ? Cipher.ENCRYPT_MODE
+                    : Cipher.DECRYPT_MODE, key, new GCMParameterSpec(
+                8 * TAG_SIZE, nonce));
+        return cipher;
+    }
+
+    /**
+     *
+     * @return the salt to use for the data encrypted during this session, so
+     *         a password is derived only once
+     */
+    public static byte[] getSessionSalt() {
+        return SESSION_SALT.clone();
+    }
+
+    /**
+     *
+     * @param size
+     *            the number of bytes
+     * @return random bytes, for a salt or an initialization vector
+     */
+    public static byte[] generateBytes(int size) {
+        byte[] bytes = new byte[size];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
 }
@@ -0,0 +1,54 @@
+package accountancy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+
+import org.junit.Test;
+
+public class MoneyTest {
+
+    @Test
+    public void conversionTest() {
+        assertEquals(12345, Money.toUnits(new BigDecimal("123.45"), 2));
+        assertEquals(12340, Money.toUnits(new BigDecimal("123.4"), 2));
+        assertEquals(12300, Money.toUnits(new BigDecimal("123.000"), 2));
+        assertEquals(-500, Money.toUnits(new BigDecimal("-5"), 2));
+        assertEquals(Money.NOT_REPRESENTABLE,
+                Money.toUnits(new BigDecimal("123.456"), 2));
+        assertEquals(Money.NOT_REPRESENTABLE,
+                Money.toUnits(new BigDecimal("1E+20"), 2));
+        assertEquals(new BigDecimal("123.45"), Money.toBigDecimal(12345, 2));
+    }
+
+    @Test
+    public void addTest() {
+        assertEquals(30, Money.add(10, 20));
+        assertEquals(-10, Money.add(10, -20));
+        assertEquals(Money.NOT_REPRESENTABLE, Money.add(Long.MAX_VALUE, 1));
+        assertEquals(Money.NOT_REPRESENTABLE, Money.add(-Long.MAX_VALUE, -2));
+    }
+
+    @Test
+    public void elementTest() {
+        AccountancyElement element = new AccountancyElement();
+        element.setValue(new BigDecimal("10.5"));
+        element.setScale(2);
+        assertEquals(true, element.isFixedPoint());
+        assertEquals(1050, element.getUnits());
+
+        element.addUnits(25, 2);
+        assertEquals(new BigDecimal("10.75"), element.getValue());
+
+        element.addUnits(1, 3);
+        assertEquals(false, element.isFixedPoint());
+        assertEquals(new BigDecimal("10.751"), element.getValue());
+
+        element.setValue(new BigDecimal(Long.MAX_VALUE).movePointLeft(2));
+        assertEquals(true, element.isFixedPoint());
+        element.addUnits(1, 2);
+        assertEquals(false, element.isFixedPoint());
+        assertEquals(new BigDecimal(Long.MAX_VALUE).add(BigDecimal.ONE).
+                movePointLeft(2), element.getValue());
+    }
+}
@@ -46,4 +46,25 @@ public class AccountTest {
 		account.setForcedValue(testValueNotApplied);
 		assertEquals(testValueNotApplied, account.getValue());
 	}
+
+	@Test
+	public void fixedPointLimitTest() {
+		Account account = new Account();
+		account.setScale(2);
+		account.setLimit(new BigDecimal("100.005"));
+		account.addUnits(10000, 2);
+		assertEquals(new BigDecimal("100.00"), account.getValue());
+
+		try {
+			account.addUnits(1, 2);
+			fail("no exception thrown");
+		} catch (AccountLimitException ex) {
+			assertEquals(new BigDecimal("100.00"), account.getValue());
+			assertTrue(ex.getMessage().contains("100.01"));
+		}
+
+		account.setLimit(Account.INFINITE_LIMIT);
+		account.addUnits(Long.MAX_VALUE / 2, 2);
+		assertTrue(account.isFixedPoint());
+	}
 }
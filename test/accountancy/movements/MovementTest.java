@@ -143,6 +143,108 @@ public class MovementTest {
         }
     }
     
+    @Test
+    public void frozenAssignmentsTest() {
+        Movement movement = new Movement();
+        movement.setValue(new BigDecimal("300"));
+        movement.setLocked(true);
+        assertArrayEquals(new Budget[0], movement.getBudgetsAssigned());
+        assertEquals(BigDecimal.ZERO, movement.getTotalValueAssigned());
+        movement.setLocked(false);
+
+        Budget b1 = new Budget();
+        b1.setName("1");
+        Budget b2 = new Budget();
+        b2.setName("2");
+        Budget b3 = new Budget();
+        b3.setName("3");
+        movement.assignValueToBudget(b3, new BigDecimal("30"));
+        movement.assignValueToBudget(b1, new BigDecimal("10"));
+        movement.setLocked(true);
+        assertArrayEquals(new Budget[]{b1, b3}, movement.getBudgetsAssigned());
+        assertArrayEquals(new String[]{"1", "3"},
+                movement.getNamesOfBudgetsAssigned());
+        assertEquals(new BigDecimal("10"), movement.getValueForBudget(b1));
+        assertNull(movement.getValueForBudget(b2));
+        assertEquals(new BigDecimal("30"), movement.getValueForBudget(b3));
+        assertEquals(new BigDecimal("40"), movement.getTotalValueAssigned());
+
+        movement.setLocked(false);
+        movement.assignValueToBudget(b2, new BigDecimal("20"));
+        assertArrayEquals(new Budget[]{b1, b2, b3},
+                movement.getBudgetsAssigned());
+        assertEquals(new BigDecimal("60"), movement.getTotalValueAssigned());
+    }
+
+    @Test
+    public void splitTest() {
+        Movement movement = new Movement();
+        movement.setValue(new BigDecimal("100.00"));
+        Budget[] budgets = new Budget[4];
+        for (int i = 0; i < budgets.length; i++) {
+            budgets[i] = new Budget();
+            budgets[i].setName("" + i);
+        }
+
+        movement.splitValueToBudgets(new Budget[]{budgets[0], budgets[1],
+                    budgets[2]}, new BigDecimal[]{BigDecimal.ONE,
+                    BigDecimal.ONE, BigDecimal.ONE});
+        assertEquals(new BigDecimal("33.34"),
+                movement.getValueForBudget(budgets[0]));
+        assertEquals(new BigDecimal("33.33"),
+                movement.getValueForBudget(budgets[1]));
+        assertEquals(new BigDecimal("33.33"),
+                movement.getValueForBudget(budgets[2]));
+        assertEquals(new BigDecimal("100.00"),
+                movement.getTotalValueAssigned());
+
+        movement.splitValueToBudgets(new Budget[]{budgets[0], budgets[1],
+                    budgets[2]}, new BigDecimal[]{new BigDecimal("0.1"),
+                    new BigDecimal("0.2"), BigDecimal.ZERO});
+        assertEquals(new BigDecimal("33.33"),
+                movement.getValueForBudget(budgets[0]));
+        assertEquals(new BigDecimal("66.67"),
+                movement.getValueForBudget(budgets[1]));
+        assertEquals(new BigDecimal("0.00"),
+                movement.getValueForBudget(budgets[2]));
+
+        try {
+            movement.assignValuesToBudgets(new Budget[]{budgets[2],
+                        budgets[3]}, new BigDecimal[]{BigDecimal.ONE,
+                        BigDecimal.ONE});
+            fail("no exception thrown");
+        } catch (MovementExceededValueException ex) {
+        }
+        assertEquals(new BigDecimal("0.00"),
+                movement.getValueForBudget(budgets[2]));
+        assertNull(movement.getValueForBudget(budgets[3]));
+        assertEquals(0, new BigDecimal("100").compareTo(
+                movement.getTotalValueAssigned()));
+
+        movement.unassignBudget(budgets[1]);
+        movement.assignValuesToBudgets(new Budget[]{budgets[2], budgets[3]},
+                new BigDecimal[]{BigDecimal.ONE, BigDecimal.TEN});
+        assertEquals(new BigDecimal("44.33"), movement.getTotalValueAssigned());
+
+        // a null budget or value does not change the assignments
+        Budget[][] invalidBudgets = {{budgets[1], null},
+            {budgets[1], budgets[2]}};
+        BigDecimal[][] invalidValues = {{BigDecimal.ONE, BigDecimal.ONE},
+            {BigDecimal.ONE, null}};
+        for (int i = 0; i < invalidBudgets.length; i++) {
+            try {
+                movement.assignValuesToBudgets(invalidBudgets[i],
+                        invalidValues[i]);
+                fail("no exception thrown");
+            } catch (NullPointerException ex) {
+            }
+            assertNull(movement.getValueForBudget(budgets[1]));
+            assertEquals(BigDecimal.ONE, movement.getValueForBudget(budgets[2]));
+            assertEquals(new BigDecimal("44.33"),
+                    movement.getTotalValueAssigned());
+        }
+    }
+
     @Test
     public void cloneTest() {
         Movement movement = new MovementExample();
@@ -0,0 +1,89 @@
+package exchange;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import accountancy.accounts.Account;
+import accountancy.budgets.Budget;
+import manager.Manager;
+
+/**
+ * Measure the throughput of {@link CsvImporter} on a generated bank statement.
+ * The number of lines can be given as argument (2 000 000 by default).
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public class CsvImportBenchmark {
+
+    private static final String[] ACCOUNTS = { "bank", "savings", "cash",
+            "card" };
+    private static final String[] BUDGETS = { "food", "rent", "transport",
+            "leisure", "health", "taxes" };
+
+    public static void main(String[] args) throws IOException {
+        int lineCount = args.length > 0
+                        ? Integer.parseInt(args[0])
+                        : 2000000;
+        Charset charset = Charset.forName("UTF-8");
+        File file = File.createTempFile("statement", ".csv");
+        file.deleteOnExit();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), charset));
+        try {
+            writer.write("date;account;label;amount;budget;part;budget;part\n");
+            for (int i = 0; i < lineCount; i++) {
+                int cents = (i * 7919) % 100000 - 50000;
+                String amount = (cents < 0
+                                 ? "-"
+                                 : "") + Math.abs(cents) / 100 + ","
+                                + Math.abs(cents) % 100 / 10
+                                + Math.abs(cents) % 10;
+                writer.write("2014-01-01;" + ACCOUNTS[i % ACCOUNTS.length]
+                             + ";\"payment " + i + "; ref\";" + amount + ";"
+                             + BUDGETS[i % BUDGETS.length] + ";;"
+                             + (i % 3 == 0
+                                ? BUDGETS[(i + 1) % BUDGETS.length] + ";0"
+                                : ";")
+                             + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+
+        for (int run = 1; run <= 3; run++) {
+            Manager manager = new Manager();
+            for (String name : ACCOUNTS) {
+                Account account = new Account();
+                account.setName(name);
+                manager.addAccount(account);
+            }
+            for (String name : BUDGETS) {
+                Budget budget = new Budget();
+                budget.setName(name);
+                manager.addBudget(budget);
+            }
+            CsvImporter importer = new CsvImporter(manager);
+            importer.setSeparator(';');
+            importer.setDecimalSeparator(',');
+            importer.setHeaderLines(1);
+            importer.setAccountColumn(1);
+            importer.setValueColumn(3);
+            importer.addBudgetColumns(4, 5);
+            importer.addBudgetColumns(6, 7);
+
+            long start = System.nanoTime();
+            long count = importer.importFile(file.getPath(), charset);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("run %d: %d lines (%d MB) in %.2f s, %.1f "
+                              + "millions of lines per minute%n", run,
+                    count, file.length() >> 20, seconds, count / seconds
+                                                          * 60 / 1e6);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package exchange;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import accountancy.accounts.Account;
+import accountancy.budgets.Budget;
+import accountancy.movements.Movement;
+import accountancy.movements.Movement.Sense;
+import manager.Manager;
+import manager.UnknownAccountException;
+import manager.UnknownBudgetException;
+
+public class CsvImporterTest {
+
+    private static Manager createManager() {
+        Manager manager = new Manager();
+        for (String name : new String[] { "bank", "cash", "Dupont; \"Jean\"" }) {
+            Account account = new Account();
+            account.setName(name);
+            manager.addAccount(account);
+        }
+        for (String name : new String[] { "food", "rent" }) {
+            Budget budget = new Budget();
+            budget.setName(name);
+            manager.addBudget(budget);
+        }
+        return manager;
+    }
+
+    @Test
+    public void importTest() throws IOException {
+        Manager manager = createManager();
+        CsvImporter importer = new CsvImporter(manager);
+        importer.setSeparator(';');
+        importer.setDecimalSeparator(',');
+        importer.setHeaderLines(1);
+        importer.setAccountColumn(0);
+        importer.setValueColumn(1);
+        importer.addBudgetColumns(2, 3);
+        importer.addBudgetColumns(4, 5);
+        String csv = "account;value;budget;part;budget;part\r\n"
+                     + "bank;1000,50;;;;\r\n"
+                     + "bank;-120,5;food;100;rent;20,50\r\n"
+                     + "\r\n"
+                     + "cash;-30;food;;;\r\n"
+                     + "\"Dupont; \"\"Jean\"\"\";12345678901234567890,1;;;;\r\n"
+                     + "cash;+7";
+        assertEquals(5, importer.importFrom(new StringReader(csv)));
+
+        assertEquals(new BigDecimal("880.00"), manager.getAccount("bank").
+                getValue());
+        assertEquals(new BigDecimal("-23"), manager.getAccount("cash").
+                getValue());
+        assertEquals(new BigDecimal("12345678901234567890.1"), manager.
+                getAccount("Dupont; \"Jean\"").getValue());
+        assertEquals(new BigDecimal("-130"), manager.getBudget("food").
+                getValue());
+        assertEquals(new BigDecimal("-20.50"), manager.getBudget("rent").
+                getValue());
+        assertEquals(5, manager.getMovementsIDs().size());
+        Movement movement = manager.getMovement(2);
+        assertTrue(movement.isLocked());
+        assertEquals(Sense.OUTPUT, movement.getSense());
+        assertEquals(new BigDecimal("120.5"), movement.getValue());
+        assertEquals(new BigDecimal("100"), movement.getValueForBudget(
+                manager.getBudget("food")));
+    }
+
+    @Test
+    public void senseTest() throws IOException {
+        Manager manager = createManager();
+        CsvImporter importer = new CsvImporter(manager);
+        importer.setAccount("bank");
+        importer.setSenseColumn(0, "C", "D");
+        importer.setValueColumn(1);
+        importer.setApplied(false);
+        assertEquals(2, importer.importFrom(new StringReader(
+                "C,100\nD,40.25\n")));
+        assertEquals(Sense.INPUT, manager.getMovement(1).getSense());
+        assertEquals(Sense.OUTPUT, manager.getMovement(2).getSense());
+        assertEquals(new BigDecimal("40.25"), manager.getMovement(2).
+                getValue());
+        assertFalse(manager.isApplied(1));
+        assertEquals(BigDecimal.ZERO, manager.getAccount("bank").getValue());
+
+        try {
+            importer.importFrom(new StringReader("C,1\nX,2\n"));
+            fail("no exception thrown");
+        } catch (InvalidLineException e) {
+            assertEquals(2, e.getLine());
+        }
+        try {
+            importer.setAccount("unknown");
+            fail("no exception thrown");
+        } catch (UnknownAccountException e) {
+        }
+    }
+
+    @Test
+    public void batchTest() throws IOException {
+        String path = "csvImporterTest.sav";
+        Manager manager = new Manager();
+        manager.openJournal(path);
+        Account account = new Account();
+        account.setName("bank");
+        manager.addAccount(account);
+        Budget budget = new Budget();
+        budget.setName("food");
+        manager.addBudget(budget);
+
+        StringBuilder csv = new StringBuilder();
+        BigDecimal total = BigDecimal.ZERO;
+        for (int i = 0; i < 10000; i++) {
+            BigDecimal value = BigDecimal.valueOf(i % 1000 - 500, 2);
+            total = total.add(value);
+            csv.append("bank,").append(value).append(",food\n");
+        }
+        File file = new File("csvImporterTest.csv");
+        Files.write(file.toPath(), csv.toString().getBytes("UTF-8"));
+        CsvImporter importer = new CsvImporter(manager);
+        importer.setAccountColumn(0);
+        importer.setValueColumn(1);
+        importer.addBudgetColumns(2, 3);
+        importer.setBatchSize(300);
+        assertEquals(10000, importer.importFile(file.getPath(), Charset.
+                forName("UTF-8")));
+        assertEquals(total, account.getValue());
+        assertEquals(total, budget.getValue());
+        manager.closeJournal();
+
+        // the batches are journaled like single changes
+        Manager recovered = Manager.getSaved(path);
+        assertEquals(total, recovered.getAccount("bank").getValue());
+        assertEquals(total, recovered.getBudget("food").getValue());
+        assertTrue(Arrays.equals(manager.getMovementsIDs().toArray(),
+                recovered.getMovementsIDs().toArray()));
+        assertTrue(recovered.isApplied(10000));
+        file.delete();
+        new File(path).delete();
+        for (File journal : new File(".").listFiles()) {
+            if (journal.getName().startsWith(path)) {
+                journal.delete();
+            }
+        }
+    }
+
+    @Test
+    public void invalidLineTest() throws IOException {
+        Manager manager = createManager();
+        manager.getAccount("cash").setLimit(new BigDecimal("100"));
+        CsvImporter importer = new CsvImporter(manager);
+        importer.setAccountColumn(0);
+        importer.setValueColumn(1);
+        importer.addBudgetColumns(2, 3);
+        importer.setBatchSize(2);
+
+        // the error is reported after the previous batches are added
+        try {
+            importer.importFrom(new StringReader("bank,1\nbank,2\nbank,3\n"
+                                                 + "unknown,4\n"));
+            fail("no exception thrown");
+        } catch (InvalidLineException e) {
+            assertEquals(4, e.getLine());
+            assertTrue(e.getCause() instanceof UnknownAccountException);
+        }
+        assertEquals(new BigDecimal("3"), manager.getAccount("bank").
+                getValue());
+
+        try {
+            importer.importFrom(new StringReader("bank,1\nbank,1,unknown\n"));
+            fail("no exception thrown");
+        } catch (InvalidLineException e) {
+            assertEquals(2, e.getLine());
+            assertTrue(e.getCause() instanceof UnknownBudgetException);
+        }
+
+        try {
+            importer.importFrom(new StringReader("bank,1\nbank,1.2.3\n"));
+            fail("no exception thrown");
+        } catch (InvalidLineException e) {
+            assertEquals(2, e.getLine());
+            assertTrue(e.getCause() instanceof NumberFormatException);
+        }
+
+        // the line exceeding the limit is found in its batch
+        try {
+            importer.importFrom(new StringReader("cash,60\ncash,30\n"
+                                                 + "cash,20\ncash,1\n"));
+            fail("no exception thrown");
+        } catch (InvalidLineException e) {
+            assertEquals(3, e.getLine());
+        }
+        assertEquals(new BigDecimal("90"), manager.getAccount("cash").
+                getValue());
+    }
+}
@@ -0,0 +1,193 @@
+package exchange;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import accountancy.accounts.Account;
+import accountancy.budgets.Budget;
+import accountancy.movements.Movement;
+import accountancy.movements.Movement.Sense;
+import manager.Manager;
+
+public class ExporterTest {
+
+    private static Manager createManager() {
+        Manager manager = new Manager();
+        Account bank = new Account();
+        bank.setName("bank");
+        bank.setLimit(new BigDecimal("1000"));
+        manager.addAccount(bank);
+        Account dupont = new Account();
+        dupont.setName("Dupont, \"Jean\"");
+        manager.addAccount(dupont);
+        Budget food = new Budget();
+        food.setName("food");
+        manager.addBudget(food);
+        Budget rent = new Budget();
+        rent.setName("rent\nflat");
+        manager.addBudget(rent);
+        manager.link("bank", "food");
+        manager.link("bank", "rent\nflat", new BigDecimal("30"));
+
+        Movement movement = new Movement();
+        movement.setAccount(bank);
+        movement.setValue(new BigDecimal("120.50"));
+        manager.applyMovement(manager.addMovementWithLongId(movement));
+
+        movement = new Movement();
+        movement.setAccount(bank);
+        movement.setSense(Sense.OUTPUT);
+        movement.setValue(new BigDecimal("50"));
+        movement.assignValueToBudget(food, new BigDecimal("20"));
+        movement.assignValueToBudget(rent, new BigDecimal("30"));
+        manager.applyMovement(manager.addMovementWithLongId(movement));
+
+        movement = new Movement();
+        movement.setAccount(dupont);
+        movement.setValue(new BigDecimal("-0.05"));
+        manager.addMovementWithLongId(movement);
+        return manager;
+    }
+
+    private static final String CSV = "account,\"Dupont, \"\"Jean\"\"\",0,\n"
+                                      + "account,bank,70.50,1000\n"
+                                      + "budget,food,-20\n"
+                                      + "budget,\"rent\nflat\",-30\n"
+                                      + "link,bank,food,\n"
+                                      + "link,bank,\"rent\nflat\",30\n"
+                                      + "movement,1,bank,INPUT,120.50,true\n"
+                                      + "movement,2,bank,OUTPUT,50,true,food,20,\"rent\nflat\",30\n"
+                                      + "movement,3,\"Dupont, \"\"Jean\"\"\",INPUT,-0.05,false\n";
+
+    private static final String JSON = "{\n"
+                                       + "\"accounts\":[\n"
+                                       + "{\"name\":\"Dupont, \\\"Jean\\\"\",\"value\":0,\"limit\":null},\n"
+                                       + "{\"name\":\"bank\",\"value\":70.50,\"limit\":1000}],\n"
+                                       + "\"budgets\":[\n"
+                                       + "{\"name\":\"food\",\"value\":-20},\n"
+                                       + "{\"name\":\"rent\\nflat\",\"value\":-30}],\n"
+                                       + "\"links\":[\n"
+                                       + "{\"account\":\"bank\",\"budget\":\"food\",\"value\":null},\n"
+                                       + "{\"account\":\"bank\",\"budget\":\"rent\\nflat\",\"value\":30}],\n"
+                                       + "\"movements\":[\n"
+                                       + "{\"id\":1,\"account\":\"bank\",\"sense\":\"INPUT\",\"value\":120.50,\"applied\":true,\"assignments\":[]},\n"
+                                       + "{\"id\":2,\"account\":\"bank\",\"sense\":\"OUTPUT\",\"value\":50,\"applied\":true,\"assignments\":[{\"budget\":\"food\",\"value\":20},{\"budget\":\"rent\\nflat\",\"value\":30}]},\n"
+                                       + "{\"id\":3,\"account\":\"Dupont, \\\"Jean\\\"\",\"sense\":\"INPUT\",\"value\":-0.05,\"applied\":false,\"assignments\":[]}]\n"
+                                       + "}\n";
+
+    @Test
+    public void csvTest() throws IOException {
+        StringWriter writer = new StringWriter();
+        CsvExporter exporter = new CsvExporter(writer);
+        assertEquals(3, exporter.export(createManager()));
+        assertEquals(CSV, writer.toString());
+
+        writer = new StringWriter();
+        exporter = new CsvExporter(writer, ';');
+        assertEquals(0, exporter.export(new Manager()));
+        assertEquals("", writer.toString());
+        Manager manager = new Manager();
+        Account account = new Account();
+        account.setName("a;b");
+        manager.addAccount(account);
+        assertEquals(0, exporter.export(manager));
+        assertEquals("account;\"a;b\";0;\n", writer.toString());
+    }
+
+    @Test
+    public void jsonTest() throws IOException {
+        StringWriter writer = new StringWriter();
+        JsonExporter exporter = new JsonExporter(writer);
+        assertEquals(3, exporter.export(createManager()));
+        assertEquals(JSON, writer.toString());
+
+        writer = new StringWriter();
+        exporter = new JsonExporter(writer);
+        exporter.export(new Manager());
+        assertEquals("{\n\"accounts\":[],\n\"budgets\":[],\n\"links\":[],\n"
+                     + "\"movements\":[]\n}\n", writer.toString());
+
+        writer = new StringWriter();
+        exporter = new JsonExporter(writer);
+        Manager manager = new Manager();
+        Budget budget = new Budget();
+        budget.setName("tab\there \u0001");
+        manager.addBudget(budget);
+        exporter.export(manager);
+        assertEquals("{\n\"accounts\":[],\n\"budgets\":[\n"
+                     + "{\"name\":\"tab\\there \\u0001\",\"value\":0}],\n"
+                     + "\"links\":[],\n\"movements\":[]\n}\n",
+                writer.toString());
+
+        try {
+            exporter.start();
+            exporter.writeBudget(budget);
+            exporter.writeAccount(new Account());
+            fail("no exception thrown");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void fileTest() throws IOException {
+        Manager manager = createManager();
+        String path = "exporterTest.sav";
+        try {
+            manager.save(path);
+            StringWriter writer = new StringWriter();
+            assertEquals(3, new CsvExporter(writer).export(path, null));
+            assertEquals(CSV, writer.toString());
+
+            manager.setCompressionLevel(Deflater.BEST_SPEED);
+            manager.save(path, "password");
+            writer = new StringWriter();
+            assertEquals(3, new JsonExporter(writer).export(path, "password"));
+            assertEquals(JSON, writer.toString());
+        } finally {
+            new File(path).delete();
+        }
+    }
+
+    @Test
+    public void backgroundTest() throws InterruptedException,
+            ExecutionException {
+        Manager manager = createManager();
+        StringWriter writer = new StringWriter();
+        Future<Long> export = new CsvExporter(writer).
+                exportInBackground(manager);
+        assertEquals(3L, (long) export.get());
+        assertEquals(CSV, writer.toString());
+
+        String path = "exporterTest.sav";
+        try {
+            manager.save(path, "password");
+            writer = new StringWriter();
+            export = new JsonExporter(writer).exportInBackground(path,
+                    "password");
+            assertEquals(3L, (long) export.get());
+            assertEquals(JSON, writer.toString());
+
+            export = new JsonExporter(new StringWriter()).exportInBackground(
+                    path, "wrong");
+            try {
+                export.get();
+                fail("no exception thrown");
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof IOException)) {
+                    throw e;
+                }
+            }
+        } finally {
+            new File(path).delete();
+        }
+    }
+}
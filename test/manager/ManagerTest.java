@@ -3,11 +3,33 @@ package manager;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.Deflater;
+import javax.crypto.SecretKey;
 
 import manager.Manager.Link;
 
@@ -15,8 +37,12 @@ import org.junit.Test;
 
 import accountancy.accounts.Account;
 import accountancy.budgets.Budget;
+import accountancy.movements.AssignmentVisitor;
 import accountancy.movements.Movement;
 import accountancy.movements.Movement.Sense;
+import util.BlockCipherOutputStream;
+import util.CorruptedBlockException;
+import util.Crypto;
 
 public class ManagerTest {
 
@@ -47,6 +73,19 @@ public class ManagerTest {
         assertEquals(a2, manager.getAccount("2"));
         assertEquals(a3, manager.getAccount("3"));
         assertNull(manager.getAccount("4"));
+
+        String[] names = manager.getAccountNames();
+        assertArrayEquals(new String[]{"1", "2", "3"}, names);
+        names[0] = "4";
+        assertArrayEquals(new String[]{"1", "2", "3"},
+                manager.getAccountNames());
+
+        Account a0 = new Account();
+        a0.setName("0");
+        manager.addAccount(a0);
+        assertEquals(a0, manager.getAccount("0"));
+        assertArrayEquals(new String[]{"0", "1", "2", "3"},
+                manager.getAccountNames());
     }
 
     @Test
@@ -76,6 +115,15 @@ public class ManagerTest {
         assertEquals(b2, manager.getBudget("2"));
         assertEquals(b3, manager.getBudget("3"));
         assertNull(manager.getBudget("4"));
+
+        assertArrayEquals(new String[]{"1", "2", "3"},
+                manager.getBudgetNames());
+        Budget b0 = new Budget();
+        b0.setName("0");
+        manager.addBudget(b0);
+        assertEquals(b0, manager.getBudget("0"));
+        assertArrayEquals(new String[]{"0", "1", "2", "3"},
+                manager.getBudgetNames());
     }
 
     @Test
@@ -121,6 +169,7 @@ public class ManagerTest {
         assertFalse(l5.equals(l3));
         assertFalse(l5.equals(l4));
         assertTrue(l5.equals(l5));
+        assertEquals(l1.hashCode(), l2.hashCode());
     }
 
     @Test
@@ -186,6 +235,49 @@ public class ManagerTest {
                 manager.getBudgetsLinkedToAccount(a2));
         assertArrayEquals(new String[]{b2},
                 manager.getBudgetsLinkedToAccount(a3));
+        manager.unlink(a2, b1);
+        assertFalse(manager.isLinked(a2, b1));
+        assertArrayEquals(new String[]{a1},
+                manager.getAccountsLinkedToBudget(b1));
+        assertArrayEquals(new String[]{b2},
+                manager.getBudgetsLinkedToAccount(a2));
+        manager.unlink(a1, b1);
+        assertArrayEquals(new String[]{},
+                manager.getAccountsLinkedToBudget(b1));
+        assertArrayEquals(new String[]{},
+                manager.getBudgetsLinkedToAccount(a1));
+    }
+
+    @Test
+    public void manyLinksTest() {
+        Manager manager = new Manager3by2();
+        int budgetCount = 200;
+        for (int i = 3; i <= budgetCount; i++) {
+            Budget budget = new Budget();
+            budget.setName("" + i);
+            manager.addBudget(budget);
+        }
+
+        for (int i = 1; i <= budgetCount; i += 3) {
+            manager.link("2", "" + i, new BigDecimal(i));
+        }
+        for (int i = 1; i <= budgetCount; i++) {
+            assertEquals(i % 3 == 1, manager.isLinked("2", "" + i));
+            assertFalse(manager.isLinked("1", "" + i));
+            if (i % 3 == 1) {
+                assertEquals(new BigDecimal(i), manager.getLinkValue("2", ""
+                                                                          + i));
+                assertArrayEquals(new String[]{"2"},
+                        manager.getAccountsLinkedToBudget("" + i));
+            }
+        }
+        assertEquals(67, manager.getBudgetsLinkedToAccount("2").length);
+
+        manager.unlink("2", "100");
+        assertFalse(manager.isLinked("2", "100"));
+        assertEquals(66, manager.getBudgetsLinkedToAccount("2").length);
+        manager.link("2", "100");
+        assertNull(manager.getLinkValue("2", "100"));
     }
 
     @Test
@@ -280,6 +372,371 @@ public class ManagerTest {
         assertArrayEquals(movementsIds, manager.getMovementsIDs().toArray());
     }
 
+    @Test
+    public void longIdsTest() {
+        Manager manager = new Manager3by2();
+        Account account = manager.getAccount("1");
+
+        long[] ids = new long[3000];
+        for (int i = 0; i < ids.length; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setValue(BigDecimal.ONE);
+            ids[i] = manager.addMovementWithLongId(movement);
+        }
+        for (int i = 1; i < ids.length; i++) {
+            assertTrue(ids[i - 1] < ids[i]);
+        }
+
+        manager.applyMovement(ids[10]);
+        assertTrue(manager.isApplied(ids[10]));
+        assertTrue(manager.isApplied(BigDecimal.valueOf(ids[10])));
+        assertEquals(new BigDecimal("1"), account.getValue());
+        assertEquals(manager.getMovement(ids[10]),
+                manager.getMovement(BigDecimal.valueOf(ids[10])));
+
+        for (int i = 0; i < 2000; i++) {
+            manager.removeMovement(ids[i]);
+        }
+        assertEquals(1000, manager.getMovementsIDs().size());
+        assertEquals(BigDecimal.valueOf(ids[2000]), manager.getMovementsIDs().
+                iterator().next());
+        assertFalse(manager.getMovementsIDs().contains(BigDecimal.valueOf(
+                ids[0])));
+        assertTrue(manager.getMovementsIDs().contains(BigDecimal.valueOf(
+                ids[2000])));
+
+        try {
+            manager.getMovement(ids[0]);
+            fail("no exception thrown");
+        } catch (UnknownMovementException e) {
+        }
+        try {
+            manager.getMovement(new BigDecimal("1.5"));
+            fail("no exception thrown");
+        } catch (UnknownMovementException e) {
+        }
+    }
+
+    @Test
+    public void fixedPointTest() {
+        Manager manager = new Manager3by2();
+        Account a1 = manager.getAccount("1");
+        Budget b1 = manager.getBudget("1");
+        a1.setValue(new BigDecimal("100"));
+        manager.setScale(2);
+        assertTrue(a1.isFixedPoint());
+
+        Movement movement = new Movement();
+        movement.setAccount(a1);
+        movement.setValue(new BigDecimal("10.25"));
+        movement.setSense(Sense.OUTPUT);
+        movement.assignValueToBudget(b1, new BigDecimal("5"));
+        long id = manager.addMovementWithLongId(movement);
+        assertTrue(movement.isFixedPoint());
+
+        manager.applyMovement(id);
+        assertEquals(new BigDecimal("89.75"), a1.getValue());
+        assertEquals(0, new BigDecimal("-5").compareTo(b1.getValue()));
+        assertEquals(-500, b1.getUnits());
+
+        manager.cancelMovement(id);
+        assertEquals(new BigDecimal("100.00"), a1.getValue());
+        assertEquals(0, BigDecimal.ZERO.compareTo(b1.getValue()));
+        assertEquals(0, b1.getUnits());
+
+        movement.setValue(new BigDecimal("0.001"));
+        movement.setSense(Sense.INPUT);
+        movement.unassignBudget(b1);
+        assertFalse(movement.isFixedPoint());
+        manager.applyMovement(id);
+        assertEquals(new BigDecimal("100.001"), a1.getValue());
+        assertFalse(a1.isFixedPoint());
+    }
+
+    @Test
+    public void visitorsTest() {
+        Manager manager = new Manager3by2();
+        manager.link("1", "1");
+        manager.link("2", "2", BigDecimal.TEN);
+        manager.link("3", "2");
+        Movement movement = new Movement();
+        movement.setAccount(manager.getAccount("1"));
+        movement.setValue(BigDecimal.TEN);
+        movement.assignValueToBudget(manager.getBudget("2"), BigDecimal.ONE);
+        movement.assignValueToBudget(manager.getBudget("1"), BigDecimal.ONE);
+        final long id1 = manager.addMovementWithLongId(movement);
+        final long id2 = manager.addMovementWithLongId(new Movement());
+
+        final StringBuilder builder = new StringBuilder();
+        manager.forEachAccount(new ElementVisitor<Account, RuntimeException>() {
+
+            @Override
+            public void visit(Account account) {
+                builder.append(account.getName());
+            }
+        });
+        manager.forEachBudget(new ElementVisitor<Budget, RuntimeException>() {
+
+            @Override
+            public void visit(Budget budget) {
+                builder.append(budget.getName());
+            }
+        });
+        assertEquals("12312", builder.toString());
+
+        builder.setLength(0);
+        manager.forEachLink(new LinkVisitor<RuntimeException>() {
+
+            @Override
+            public void visit(Account account, Budget budget, BigDecimal value) {
+                builder.append(account.getName()).append(budget.getName()).
+                        append(value).append(" ");
+            }
+        });
+        assertEquals("11null 2210 32null ", builder.toString());
+
+        builder.setLength(0);
+        manager.forEachMovement(new MovementVisitor<RuntimeException>() {
+
+            @Override
+            public void visit(long id, Movement movement) {
+                builder.append(id).append(":");
+                movement.forEachAssignment(
+                        new AssignmentVisitor<RuntimeException>() {
+
+                            @Override
+                            public void visit(Budget budget, BigDecimal value) {
+                                builder.append(budget.getName());
+                            }
+                        });
+                builder.append(" ");
+            }
+        });
+        assertEquals(id1 + ":12 " + id2 + ": ", builder.toString());
+    }
+
+    @Test
+    public void findMovementsTest() {
+        Manager manager = new Manager3by2();
+        Account a1 = manager.getAccount("1");
+        Account a2 = manager.getAccount("2");
+        Budget b1 = manager.getBudget("1");
+
+        long[] ids = new long[10];
+        for (int i = 0; i < ids.length; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(i % 2 == 0
+                                ? a1
+                                : a2);
+            movement.setValue(new BigDecimal(i * 10));
+            movement.setSense(i < 5
+                              ? Sense.INPUT
+                              : Sense.OUTPUT);
+            if (i % 3 == 0) {
+                movement.assignValueToBudget(b1, new BigDecimal(i));
+            }
+            ids[i] = manager.addMovementWithLongId(movement);
+            if (i < 7) {
+                manager.applyMovement(ids[i]);
+            }
+        }
+
+        MovementQuery query = new MovementQuery();
+        assertEquals(10, manager.findMovements(query).length);
+
+        query.setAccount(a1);
+        assertArrayEquals(new long[]{ids[0], ids[2], ids[4], ids[6], ids[8]},
+                manager.findMovements(query));
+
+        query.setApplied(true);
+        assertArrayEquals(new long[]{ids[0], ids[2], ids[4], ids[6]},
+                manager.findMovements(query));
+
+        query.setMinValue(new BigDecimal("20"));
+        query.setMaxValue(new BigDecimal("40"));
+        assertArrayEquals(new long[]{ids[2], ids[4]},
+                manager.findMovements(query));
+
+        query = new MovementQuery();
+        query.setBudget(b1);
+        assertArrayEquals(new long[]{ids[0], ids[3], ids[6], ids[9]},
+                manager.findMovements(query));
+        query.setSense(Sense.OUTPUT);
+        assertArrayEquals(new long[]{ids[6], ids[9]},
+                manager.findMovements(query));
+
+        manager.cancelMovement(ids[6]);
+        query.setApplied(false);
+        assertArrayEquals(new long[]{ids[6], ids[9]},
+                manager.findMovements(query));
+        manager.removeMovement(ids[9]);
+        assertArrayEquals(new long[]{ids[6]}, manager.findMovements(query));
+        query.setApplied(true);
+        assertArrayEquals(new long[]{}, manager.findMovements(query));
+        query.setApplied(null);
+        query.setSense(null);
+        assertArrayEquals(new long[]{ids[0], ids[3], ids[6]},
+                manager.findMovements(query));
+
+        // all the criteria at once, with applied and pending results mixed
+        ids = new long[300];
+        for (int i = 0; i < ids.length; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(i % 2 == 0
+                                ? a1
+                                : a2);
+            movement.setValue(new BigDecimal(i % 50));
+            if (i % 3 == 0) {
+                movement.assignValueToBudget(b1, new BigDecimal(i % 50));
+            }
+            ids[i] = manager.addMovementWithLongId(movement);
+            if (i % 5 != 0) {
+                manager.applyMovement(ids[i]);
+            }
+        }
+        query = new MovementQuery();
+        query.setAccount(a1);
+        query.setBudget(b1);
+        query.setMinValue(new BigDecimal("10"));
+        query.setMaxValue(new BigDecimal("20"));
+        List<Long> expected = new ArrayList<Long>();
+        for (int i = 0; i < ids.length; i++) {
+            if (i % 6 == 0 && i % 50 >= 10 && i % 50 <= 20) {
+                expected.add(ids[i]);
+            }
+        }
+        long[] found = manager.findMovements(query);
+        assertEquals(expected.size(), found.length);
+        for (int i = 0; i < found.length; i++) {
+            assertEquals((long) expected.get(i), found[i]);
+        }
+    }
+
+    @Test
+    public void addMovementsTest() {
+        Manager manager = new Manager();
+        Account account = new Account();
+        account.setName("account");
+        manager.addAccount(account);
+        List<Movement> batch = new ArrayList<Movement>();
+        for (int i = 0; i < 3; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setValue(BigDecimal.ONE);
+            batch.add(movement);
+        }
+
+        // an invalid movement is reported before adding any of them
+        @SuppressWarnings("serial")
+        Movement invalid = new Movement() {
+
+            @Override
+            public BigDecimal getValue() {
+                return null;
+            }
+        };
+        invalid.setAccount(account);
+        batch.add(invalid);
+        try {
+            manager.addMovements(batch, true);
+            fail("no exception thrown");
+        } catch (InvalidMovementException e) {
+        }
+        assertEquals(0, manager.getMovementsIDs().size());
+        assertEquals(BigDecimal.ZERO, account.getValue());
+
+        batch.remove(invalid);
+        batch.get(2).setValue(BigDecimal.TEN);
+        long first = manager.addMovements(batch, true);
+        assertEquals(3, manager.getMovementsIDs().size());
+        assertTrue(manager.isApplied(first + 2));
+        assertEquals(new BigDecimal(12), account.getValue());
+    }
+
+    @Test
+    public void idSetTest() {
+        // the IDs removed are marked, then dropped when browsed
+        Random random = new Random(0);
+        IdSet set = new IdSet();
+        TreeSet<Long> expected = new TreeSet<Long>();
+        for (int i = 0; i < 100000; i++) {
+            long id = random.nextInt(1000);
+            int operation = random.nextInt(10);
+            if (operation < 4) {
+                set.add(id);
+                expected.add(id);
+            } else if (operation < 8) {
+                set.remove(id);
+                expected.remove(id);
+            } else if (operation == 8) {
+                assertEquals(expected.contains(id), set.contains(id));
+            } else {
+                int index = 0;
+                for (long expectedId : expected) {
+                    assertEquals(expectedId, set.get(index++));
+                }
+            }
+            assertEquals(expected.size(), set.size());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void bulkApplyTest() {
+        // applying in the order of the IDs does not shift the index
+        Manager manager = new Manager();
+        Account account = new Account();
+        account.setName("account");
+        manager.addAccount(account);
+        long[] ids = new long[400000];
+        for (int i = 0; i < ids.length; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setValue(BigDecimal.ONE);
+            ids[i] = manager.addMovementWithLongId(movement);
+        }
+        for (long id : ids) {
+            manager.applyMovement(id);
+        }
+        assertEquals(new BigDecimal(ids.length), account.getValue());
+        MovementQuery query = new MovementQuery();
+        query.setApplied(false);
+        assertEquals(0, manager.findMovements(query).length);
+        query.setApplied(true);
+        assertEquals(ids.length, manager.findMovements(query).length);
+    }
+
+    @Test
+    public void movementsPageTest() {
+        Manager manager = new Manager();
+        long[] ids = new long[25];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = manager.addMovementWithLongId(new Movement());
+        }
+        manager.removeMovement(ids[3]);
+
+        MovementPage page = manager.getMovementsPage(0, 10);
+        assertEquals(10, page.size());
+        assertEquals(ids[0], page.getId(0));
+        assertEquals(ids[10], page.getId(9));
+        assertEquals(manager.getMovement(ids[10]), page.getMovement(9));
+        assertTrue(page.hasNext());
+
+        page = manager.getMovementsPage(page.getNextId(), 10);
+        assertEquals(ids[11], page.getId(0));
+        assertEquals(10, page.getMovements().size());
+        try {
+            page.getMovements().clear();
+            fail("no exception thrown");
+        } catch (UnsupportedOperationException ex) {
+        }
+
+        page = manager.getMovementsPage(page.getNextId(), 10);
+        assertEquals(4, page.size());
+        assertEquals(ids[24], page.getId(3));
+        assertFalse(page.hasNext());
+    }
+
     @Test
     public void savingTest() {
         /*
@@ -411,6 +868,1380 @@ public class ManagerTest {
         }
     }
 
+    @Test
+    public void journalTest() throws IOException {
+        String path = "journalTest.sav";
+        File file = new File(path);
+        File journalFile = new File(path + Manager.JOURNAL_EXTENSION);
+        file.delete();
+        journalFile.delete();
+
+        Manager manager = new Manager();
+        manager.openJournal(path);
+
+        Account a1 = new Account();
+        a1.setName("1");
+        a1.setValue(new BigDecimal("200"));
+        manager.addAccount(a1);
+        Account a2 = new Account();
+        a2.setName("2");
+        a2.setLimit(new BigDecimal("500"));
+        manager.addAccount(a2);
+        Budget b1 = new Budget();
+        b1.setName("1");
+        manager.addBudget(b1);
+
+        manager.link("1", "1");
+        manager.changeLinkValue("1", "1", new BigDecimal("10"));
+        manager.link("2", "1");
+        manager.unlink("2", "1");
+
+        Movement m1 = new Movement();
+        m1.setAccount(a1);
+        long id1 = manager.addMovementWithLongId(m1);
+        m1.setValue(new BigDecimal("50"));
+        m1.assignValueToBudget(b1, new BigDecimal("20"));
+        manager.applyMovement(id1);
+
+        Movement m2 = new Movement();
+        m2.setAccount(a2);
+        m2.setValue(new BigDecimal("30"));
+        long id2 = manager.addMovementWithLongId(m2);
+        manager.applyMovement(id2);
+        manager.cancelMovement(id2);
+
+        long id3 = manager.addMovementWithLongId(new Movement());
+        manager.removeMovement(id3);
+
+        // only the journal exists
+        assertFalse(file.exists());
+        Manager recovered = Manager.getSaved(path);
+        assertArrayEquals(new String[] { "1", "2" },
+                recovered.getAccountNames());
+        assertEquals(new BigDecimal("250"), recovered.getAccount("1").
+                getValue());
+        assertEquals(BigDecimal.ZERO, recovered.getAccount("2").getValue());
+        assertEquals(new BigDecimal("500"), recovered.getAccount("2").
+                getLimit());
+        assertEquals(new BigDecimal("20"), recovered.getBudget("1").getValue());
+        assertEquals(new BigDecimal("10"), recovered.getLinkValue("1", "1"));
+        assertFalse(recovered.isLinked("2", "1"));
+        assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                getMovementsIDs().toArray());
+        assertTrue(recovered.isApplied(id1));
+        assertFalse(recovered.isApplied(id2));
+        assertEquals(new BigDecimal("20"), recovered.getMovement(id1).
+                getValueForBudget(recovered.getBudget("1")));
+
+        // the snapshot empties the journal, the next changes are journaled
+        byte[] oldJournal = Files.readAllBytes(journalFile.toPath());
+        manager.save(path);
+        assertEquals(0, journalFile.length());
+        manager.applyMovement(id2);
+        recovered = Manager.getSaved(path);
+        assertEquals(new BigDecimal("30"), recovered.getAccount("2").getValue());
+        assertTrue(recovered.isApplied(id2));
+        assertEquals(id3 + 1, recovered.addMovementWithLongId(new Movement()));
+
+        // the changes already in the snapshot are not replayed
+        manager.closeJournal();
+        Files.write(journalFile.toPath(), oldJournal,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        recovered = Manager.getSaved(path);
+        assertEquals(new BigDecimal("250"), recovered.getAccount("1").
+                getValue());
+        assertEquals(new BigDecimal("20"), recovered.getBudget("1").getValue());
+
+        // a length which does not fit in the file ends the valid records
+        for (byte[] tail : new byte[][] { { 0x7F, -1, -1, -1, 0 },
+                { -1, -1, -1, -1, 0 }, { 0, 0, 0, 1, 0 }, { 0, 0 } }) {
+            Files.write(journalFile.toPath(), oldJournal,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            Files.write(journalFile.toPath(), tail, StandardOpenOption.APPEND);
+            recovered = Manager.getSaved(path);
+            assertEquals(new BigDecimal("250"), recovered.getAccount("1").
+                    getValue());
+            manager.openJournal(path);
+            manager.closeJournal();
+            assertEquals(oldJournal.length, journalFile.length());
+        }
+
+        file.delete();
+        journalFile.delete();
+    }
+
+    @Test
+    public void encryptedJournalTest() throws Exception {
+        String path = "encryptedJournalTest.sav";
+        File file = new File(path);
+        File journalFile = new File(path + Manager.JOURNAL_EXTENSION);
+        file.delete();
+        journalFile.delete();
+
+        Manager manager = new Manager();
+        manager.openJournal(path, "password");
+        Account account = new Account();
+        account.setName("secret account");
+        manager.addAccount(account);
+        Movement movement = new Movement();
+        movement.setAccount(account);
+        movement.setValue(new BigDecimal("42"));
+        manager.applyMovement(manager.addMovementWithLongId(movement));
+        for (int i = 0; i < 3; i++) {
+            manager.removeMovement(manager.addMovementWithLongId(
+                    new Movement()));
+        }
+        long kept = manager.addMovementWithLongId(new Movement());
+
+        // the records are not readable without the password
+        byte[] bytes = Files.readAllBytes(journalFile.toPath());
+        assertFalse(new String(bytes, "ISO-8859-1").contains("secret"));
+        assertNull(Manager.getSaved(path));
+        Manager recovered = Manager.getSaved(path, "password");
+        assertEquals(new BigDecimal("42"), recovered.getAccount(
+                "secret account").getValue());
+        assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                getMovementsIDs().toArray());
+
+        // the compaction keeps the records encrypted
+        assertTrue(manager.compactJournal().get());
+        recovered = Manager.getSaved(path, "password");
+        assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                getMovementsIDs().toArray());
+        assertEquals(kept + 1, recovered.addMovementWithLongId(new Movement()));
+
+        // the journal is reopened only with the same encryption
+        manager.closeJournal();
+        try {
+            manager.openJournal(path);
+            fail("no exception thrown");
+        } catch (JournalException e) {
+        }
+        try {
+            manager.openJournal(path, "wrong");
+            fail("no exception thrown");
+        } catch (JournalException e) {
+        }
+        manager.openJournal(path, "password");
+        manager.cancelMovement(1);
+        recovered = Manager.getSaved(path, "password");
+        assertEquals(BigDecimal.ZERO, recovered.getAccount("secret account").
+                getValue());
+
+        // a record changed is detected
+        manager.closeJournal();
+        bytes = Files.readAllBytes(journalFile.toPath());
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(journalFile.toPath(), bytes,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        assertNull(Manager.getSaved(path, "password"));
+
+        // the checkpoint keeps only the header
+        journalFile.delete();
+        manager.openJournal(path, "password");
+        long header = journalFile.length();
+        manager.addMovementWithLongId(new Movement());
+        assertTrue(journalFile.length() > header);
+        manager.checkpoint();
+        assertEquals(header, journalFile.length());
+        manager.closeJournal();
+        recovered = Manager.getSaved(path, "password");
+        assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                getMovementsIDs().toArray());
+
+        file.delete();
+        journalFile.delete();
+    }
+
+    @Test
+    public void checkpointTest() throws Exception {
+        String path = "checkpointTest.sav";
+        File file = new File(path);
+        File journalFile = new File(path + Manager.JOURNAL_EXTENSION);
+        file.delete();
+        journalFile.delete();
+
+        Manager manager = new Manager();
+        Account account = new Account();
+        account.setName("1");
+        manager.addAccount(account);
+        manager.openJournal(path);
+        manager.setCheckpointInterval(10);
+        assertEquals(10, manager.getCheckpointInterval());
+
+        // the 10th record triggers a checkpoint
+        Movement movement = new Movement();
+        movement.setAccount(manager.getAccount("1"));
+        movement.setValue(new BigDecimal("5"));
+        long applied = manager.addMovementWithLongId(movement);
+        manager.applyMovement(applied);
+        for (int i = 0; i < 7; i++) {
+            manager.addMovementWithLongId(new Movement());
+        }
+        assertTrue(journalFile.length() > 0);
+        assertFalse(file.exists());
+        manager.addMovementWithLongId(new Movement());
+        assertTrue(file.exists());
+        assertEquals(0, journalFile.length());
+
+        // the movements added then removed are purged by the compaction
+        manager.setCheckpointInterval(0);
+        long last = 0;
+        for (int i = 0; i < 5; i++) {
+            last = manager.addMovementWithLongId(new Movement());
+            manager.removeMovement(last);
+        }
+        long kept = manager.addMovementWithLongId(new Movement());
+        long length = journalFile.length();
+        assertTrue(manager.compactJournal().get());
+        assertTrue(journalFile.length() < length);
+        assertFalse(manager.compactJournal().get());
+
+        Manager recovered = Manager.getSaved(path);
+        assertEquals(new BigDecimal("5"), recovered.getAccount("1").getValue());
+        assertTrue(recovered.isApplied(applied));
+        assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                getMovementsIDs().toArray());
+        assertEquals(kept + 1, recovered.addMovementWithLongId(new Movement()));
+
+        // the checkpoint empties the journal
+        manager.checkpoint();
+        assertEquals(0, journalFile.length());
+        recovered = Manager.getSaved(path);
+        assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                getMovementsIDs().toArray());
+
+        manager.closeJournal();
+        try {
+            manager.checkpoint();
+            fail("no exception thrown");
+        } catch (IllegalStateException e) {
+        }
+        file.delete();
+        journalFile.delete();
+    }
+
+    @Test
+    public void failedCheckpointTest() throws IOException {
+        String path = "failedCheckpointTest.sav";
+        File file = new File(path);
+        File journalFile = new File(path + Manager.JOURNAL_EXTENSION);
+        journalFile.delete();
+
+        // a non-empty directory cannot be replaced by the saved file
+        file.mkdir();
+        File blocker = new File(file, "blocker");
+        blocker.createNewFile();
+        Manager manager = new Manager();
+        manager.openJournal(path);
+        manager.setCheckpointInterval(3);
+        int failures = 0;
+        for (int i = 1; i <= 8; i++) {
+            try {
+                manager.addMovementWithLongId(new Movement());
+            } catch (JournalException e) {
+                failures++;
+                assertTrue(i == 3 || i == 6);
+                if (i == 6) {
+                    blocker.delete();
+                    file.delete();
+                }
+            }
+        }
+        assertEquals(2, failures);
+        assertFalse(file.exists());
+        assertEquals(8, manager.getMovementsIDs().size());
+
+        // the retry succeeds at the next multiple of the interval
+        manager.addMovementWithLongId(new Movement());
+        assertTrue(file.isFile());
+        assertEquals(0, journalFile.length());
+        manager.closeJournal();
+        assertEquals(9, Manager.getSaved(path).getMovementsIDs().size());
+        file.delete();
+        journalFile.delete();
+    }
+
+    @Test
+    public void binaryFormatTest() throws IOException {
+        Manager manager = new Manager();
+        manager.setScale(2);
+        Account account = new Account();
+        account.setName("account");
+        account.setValue(new BigDecimal("1000"));
+        account.setLimit(new BigDecimal("123456789012345678901234567890"));
+        manager.addAccount(account);
+        Budget budget = new Budget();
+        budget.setName("budget");
+        budget.setValue(new BigDecimal("-0.5"));
+        manager.addBudget(budget);
+        manager.link("account", "budget", new BigDecimal("12.34"));
+        for (int i = 0; i < 100; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setSense(i % 2 == 0
+                              ? Sense.INPUT
+                              : Sense.OUTPUT);
+            movement.setValue(new BigDecimal(i + ".25"));
+            movement.assignValueToBudget(budget, new BigDecimal("0.25"));
+            long id = manager.addMovementWithLongId(movement);
+            if (i % 3 == 0) {
+                manager.applyMovement(id);
+            }
+        }
+        manager.removeMovement(50);
+
+        String path = "binaryFormatTest.sav";
+        manager.save(path);
+        byte[] bytes = Files.readAllBytes(new File(path).toPath());
+        assertArrayEquals(new byte[] { 'A', 'M', 'G', 'R', 8, 0 },
+                Arrays.copyOf(bytes, 6));
+        Manager recovered = Manager.getSaved(path);
+        assertEquals(2, recovered.getScale());
+        assertEquals(account.getValue(), recovered.getAccount("account").
+                getValue());
+        assertEquals(account.getLimit(), recovered.getAccount("account").
+                getLimit());
+        assertEquals(budget.getValue(), recovered.getBudget("budget").
+                getValue());
+        assertEquals(new BigDecimal("12.34"), recovered.getLinkValue(
+                "account", "budget"));
+        assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                getMovementsIDs().toArray());
+        for (BigDecimal id : manager.getMovementsIDs()) {
+            Movement movement1 = manager.getMovement(id);
+            Movement movement2 = recovered.getMovement(id);
+            assertEquals("account", movement2.getAccount().getName());
+            assertEquals(movement1.getSense(), movement2.getSense());
+            assertEquals(movement1.getValue(), movement2.getValue());
+            assertEquals(movement1.isLocked(), movement2.isLocked());
+            assertEquals(new BigDecimal("0.25"), movement2.getValueForBudget(
+                    recovered.getBudget("budget")));
+        }
+        assertEquals(101, recovered.addMovementWithLongId(new Movement()));
+
+        // the legacy format is still read, and is bigger
+        ObjectOutputStream oos = new ObjectOutputStream(
+                new FileOutputStream(path));
+        oos.writeObject(manager);
+        oos.close();
+        assertTrue(bytes.length < new File(path).length());
+        recovered = Manager.getSaved(path);
+        assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                getMovementsIDs().toArray());
+        assertEquals(account.getLimit(), recovered.getAccount("account").
+                getLimit());
+        new File(path).delete();
+    }
+
+    @Test
+    public void mappedLoadingTest() throws IOException {
+        Manager manager = new Manager();
+        Account account = new Account();
+        account.setName("account with a long name");
+        manager.addAccount(account);
+        for (int i = 0; i < 50; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setValue(new BigDecimal("123456789012345678901234567890."
+                                             + i));
+            manager.addMovementWithLongId(movement);
+        }
+
+        String path = "mappedLoadingTest.sav";
+        manager.save(path);
+        File file = new File(path);
+        Manager recovered = Manager.getSaved(path);
+        assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                getMovementsIDs().toArray());
+
+        // small chunks, so the values are split between chunks
+        for (int chunkSize = 1; chunkSize < 20; chunkSize++) {
+            MappedInput input = new MappedInput(file, 14, chunkSize / 2 + 1,
+                    chunkSize % 2 == 0);
+            try {
+                recovered = BinaryFormat.read(input, BinaryFormat.VERSION);
+            } finally {
+                input.close();
+            }
+            assertArrayEquals(manager.getAccountNames(), recovered.
+                    getAccountNames());
+            for (BigDecimal id : manager.getMovementsIDs()) {
+                assertEquals(manager.getMovement(id).getValue(), recovered.
+                        getMovement(id).getValue());
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void lazyLoadingTest() {
+        Manager manager = new Manager();
+        Account account = new Account();
+        account.setName("account");
+        manager.addAccount(account);
+        Budget budget = new Budget();
+        budget.setName("budget");
+        manager.addBudget(budget);
+        for (int i = 0; i < 3000; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setValue(new BigDecimal(i % 100));
+            movement.assignValueToBudget(budget, new BigDecimal(i % 10));
+            long id = manager.addMovementWithLongId(movement);
+            if (i % 2 == 0) {
+                manager.applyMovement(id);
+            }
+        }
+        manager.removeMovement(10);
+
+        String path = "lazyLoadingTest.sav";
+        manager.save(path);
+        Manager recovered = Manager.getSaved(path, null, Manager.Loading.LAZY);
+        assertEquals(account.getValue(), recovered.getAccount("account").
+                getValue());
+        assertEquals(budget.getValue(), recovered.getBudget("budget").
+                getValue());
+        assertEquals(2999, recovered.getMovementsIDs().size());
+
+        // the movements are loaded when they are used
+        Movement movement = recovered.getMovement(1500);
+        assertEquals(manager.getMovement(1500).getValue(), movement.getValue());
+        assertTrue(movement.isLocked() == manager.isApplied(1500));
+        assertEquals(new BigDecimal(1499 % 10), movement.getValueForBudget(
+                recovered.getBudget("budget")));
+        assertTrue(movement == recovered.getMovement(1500));
+        MovementPage page = recovered.getMovementsPage(5, 10);
+        assertEquals(16, page.getNextId());
+        recovered.removeMovement(20);
+        recovered.cancelMovement(21);
+        assertEquals(3001, recovered.addMovementWithLongId(new Movement()));
+        manager.removeMovement(20);
+        manager.cancelMovement(21);
+        manager.addMovementWithLongId(new Movement());
+        assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                getMovementsIDs().toArray());
+
+        // the queries load all the movements
+        MovementQuery query = new MovementQuery();
+        query.setBudget(budget);
+        query.setApplied(true);
+        query.setMinValue(new BigDecimal("50"));
+        MovementQuery recoveredQuery = new MovementQuery();
+        recoveredQuery.setBudget(recovered.getBudget("budget"));
+        recoveredQuery.setApplied(true);
+        recoveredQuery.setMinValue(new BigDecimal("50"));
+        assertArrayEquals(manager.findMovements(query), recovered.
+                findMovements(recoveredQuery));
+
+        // a manager loaded lazily can be saved in its own file
+        recovered = Manager.getSaved(path, null, Manager.Loading.LAZY);
+        recovered.save(path);
+        recovered = Manager.getSaved(path, null, Manager.Loading.LAZY);
+        assertEquals(manager.getMovement(2999).getValue(), recovered.
+                getMovement(2999).getValue());
+        new File(path).delete();
+    }
+
+    @Test
+    public void chunkedLoadingTest() throws IOException {
+        Manager manager = new Manager();
+        Account account = new Account();
+        account.setName("account");
+        manager.addAccount(account);
+        Budget budget = new Budget();
+        budget.setName("budget");
+        manager.addBudget(budget);
+        // several chunks, the last one being incomplete
+        for (int i = 0; i < 10000; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setValue(new BigDecimal(i % 1000));
+            movement.assignValueToBudget(budget, new BigDecimal(i % 10));
+            long id = manager.addMovementWithLongId(movement);
+            if (i % 2 == 0) {
+                manager.applyMovement(id);
+            }
+        }
+        for (long id = 4090; id < 4100; id++) {
+            manager.removeMovement(id);
+        }
+
+        String path = "chunkedLoadingTest.sav";
+        manager.save(path);
+        for (boolean mapped : new boolean[] { true, false }) {
+            Manager recovered;
+            if (mapped) {
+                recovered = Manager.getSaved(path);
+            } else {
+                // the chunks are copied from the stream
+                DataInputStream input = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(path)));
+                try {
+                    input.skipBytes(14);
+                    recovered = BinaryFormat.read(input, BinaryFormat.VERSION);
+                } finally {
+                    input.close();
+                }
+            }
+            assertEquals(account.getValue(), recovered.getAccount("account").
+                    getValue());
+            assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                    getMovementsIDs().toArray());
+            for (BigDecimal id : manager.getMovementsIDs()) {
+                Movement movement1 = manager.getMovement(id);
+                Movement movement2 = recovered.getMovement(id);
+                assertEquals(movement1.getValue(), movement2.getValue());
+                assertEquals(movement1.isLocked(), movement2.isLocked());
+                assertTrue(movement2.getAccount() == recovered.getAccount(
+                        "account"));
+                assertEquals(movement1.getValueForBudget(budget), movement2.
+                        getValueForBudget(recovered.getBudget("budget")));
+            }
+            assertEquals(10001, recovered.addMovementWithLongId(
+                    new Movement()));
+        }
+
+        Manager recovered = Manager.getSaved(path, null, Manager.Loading.LAZY);
+        assertEquals(manager.getMovement(9000).getValue(), recovered.
+                getMovement(9000).getValue());
+        assertEquals(manager.getMovement(4100).getValue(), recovered.
+                getMovement(4100).getValue());
+        assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                getMovementsIDs().toArray());
+        new File(path).delete();
+    }
+
+    @Test
+    public void compressionTest() throws IOException {
+        Manager manager = new Manager();
+        Account account = new Account();
+        account.setName("account");
+        manager.addAccount(account);
+        Budget budget = new Budget();
+        budget.setName("budget");
+        manager.addBudget(budget);
+        manager.link("account", "budget");
+        for (int i = 0; i < 5000; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setValue(new BigDecimal("10.50"));
+            movement.assignValueToBudget(budget, new BigDecimal("10.50"));
+            manager.addMovementWithLongId(movement);
+        }
+        assertEquals(Deflater.NO_COMPRESSION, manager.getCompressionLevel());
+        try {
+            manager.setCompressionLevel(10);
+            fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+
+        String path = "compressionTest.sav";
+        manager.save(path);
+        long size = new File(path).length();
+
+        manager.setCompressionLevel(Deflater.BEST_COMPRESSION);
+        manager.save(path);
+        byte[] bytes = Files.readAllBytes(new File(path).toPath());
+        assertArrayEquals(new byte[] { 'A', 'M', 'G', 'R', 8,
+                BinaryFormat.DEFLATED }, Arrays.copyOf(bytes, 6));
+        assertTrue(bytes.length * 3 < size);
+
+        // a compressed file is loaded eagerly, even if a lazy loading is asked
+        for (Manager.Loading loading : Manager.Loading.values()) {
+            Manager recovered = Manager.getSaved(path, null, loading);
+            assertEquals(account.getValue(), recovered.getAccount("account").
+                    getValue());
+            assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                    getMovementsIDs().toArray());
+            assertEquals(new BigDecimal("10.50"), recovered.getMovement(4999).
+                    getValueForBudget(recovered.getBudget("budget")));
+        }
+        new File(path).delete();
+    }
+
+    @Test
+    public void backgroundSavingTest() throws Exception {
+        checkBackgroundSaving(new Manager());
+        // the snapshot reads the movements from the disk while they change
+        Manager disk = new Manager(null, BTreeMovementStore.MIN_CACHED_PAGES);
+        checkBackgroundSaving(disk);
+        disk.close();
+    }
+
+    private void checkBackgroundSaving(Manager manager) throws Exception {
+        Account account = new Account();
+        account.setName("account");
+        manager.addAccount(account);
+        Budget budget = new Budget();
+        budget.setName("budget");
+        manager.addBudget(budget);
+        for (int i = 0; i < 20000; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setValue(new BigDecimal(i % 100));
+            movement.assignValueToBudget(budget, new BigDecimal(i % 10));
+            long id = manager.addMovementWithLongId(movement);
+            if (i % 2 == 0) {
+                manager.applyMovement(id);
+            }
+        }
+        BigDecimal accountValue = account.getValue();
+        BigDecimal budgetValue = budget.getValue();
+
+        // the changes made during the saving are not saved
+        String path = "backgroundSavingTest.sav";
+        SaveTask task = manager.saveInBackground(path, null);
+        for (long id = 1; id <= 20000; id++) {
+            if (manager.isApplied(id)) {
+                manager.cancelMovement(id);
+            } else {
+                manager.applyMovement(id);
+            }
+        }
+        manager.removeMovement(3);
+        manager.addMovementWithLongId(new Movement());
+        Account other = new Account();
+        other.setName("other");
+        manager.addAccount(other);
+
+        long size = task.get();
+        assertTrue(task.isDone());
+        assertEquals(1.0, task.getProgress(), 0);
+        assertEquals(new File(path).length(), size);
+        Manager recovered = Manager.getSaved(path);
+        assertArrayEquals(new String[] { "account" }, recovered.
+                getAccountNames());
+        assertEquals(accountValue, recovered.getAccount("account").getValue());
+        assertEquals(budgetValue, recovered.getBudget("budget").getValue());
+        assertEquals(20000, recovered.getMovementsIDs().size());
+        for (long id = 1; id <= 20000; id++) {
+            assertEquals(id % 2 == 1, recovered.isApplied(id));
+            assertEquals(new BigDecimal((id - 1) % 10), recovered.
+                    getMovement(id).getValueForBudget(recovered.
+                            getBudget("budget")));
+        }
+
+        // the manager is not changed by the saving
+        assertEquals(manager.isApplied(1), !recovered.isApplied(1));
+        manager.save(path);
+        recovered = Manager.getSaved(path);
+        assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                getMovementsIDs().toArray());
+        assertEquals(account.getValue(), recovered.getAccount("account").
+                getValue());
+        new File(path).delete();
+    }
+
+    /**
+     * Save a manager keeping its movements on disk, with more movements than
+     * its heap can hold (see {@link #diskSavingTest()}).
+     */
+    public static void main(String[] args) {
+        Manager manager = new Manager(null,
+                BTreeMovementStore.MIN_CACHED_PAGES);
+        Account account = new Account();
+        account.setName("account");
+        manager.addAccount(account);
+        for (int i = 0; i < 300000; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setValue(new BigDecimal(i));
+            manager.applyMovement(manager.addMovementWithLongId(movement));
+        }
+        manager.save(args[0]);
+        manager.close();
+    }
+
+    @Test
+    public void diskSavingTest() throws Exception {
+        // the snapshot does not load the movements in the heap
+        String path = "diskSavingTest.sav";
+        Process process = new ProcessBuilder(System.getProperty("java.home")
+                                             + File.separator + "bin"
+                                             + File.separator + "java",
+                "-Xmx16m", "-cp", System.getProperty("java.class.path"),
+                ManagerTest.class.getName(), path).redirectErrorStream(true).
+                start();
+        InputStream output = process.getInputStream();
+        while (output.read() >= 0) {
+            // consume the output, so the process is not blocked
+        }
+        assertEquals(0, process.waitFor());
+        Manager recovered = Manager.getSaved(path, null,
+                Manager.Loading.LAZY);
+        assertEquals(300000, recovered.getMovementsIDs().size());
+        assertEquals(new BigDecimal(299999), recovered.getMovement(300000).
+                getValue());
+        new File(path).delete();
+    }
+
+    @Test
+    public void snapshotVisitTest() throws Exception {
+        Manager manager = new Manager();
+        for (int i = 0; i < 3; i++) {
+            Movement movement = new Movement();
+            movement.setValue(new BigDecimal(i));
+            manager.addMovementWithLongId(movement);
+        }
+        final Snapshot snapshot = new Snapshot(manager);
+        final CountDownLatch firstVisited = new CountDownLatch(1);
+        final CountDownLatch visitReleased = new CountDownLatch(1);
+        final List<BigDecimal> values = Collections.synchronizedList(
+                new ArrayList<BigDecimal>());
+        Thread visit = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                snapshot.forEachMovement(new MovementVisitor<RuntimeException>() {
+
+                    @Override
+                    public void visit(long id, Movement movement) {
+                        if (id == 1) {
+                            firstVisited.countDown();
+                            try {
+                                visitReleased.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        values.add(movement.getValue());
+                    }
+                });
+            }
+        });
+        visit.start();
+        firstVisited.await();
+
+        // the other movements can be changed during the visit
+        Movement movement = manager.getMovement(2);
+        snapshot.preserve(2, movement);
+        movement.setValue(new BigDecimal(10));
+        assertEquals(1, snapshot.getVisitedCount());
+        visitReleased.countDown();
+        visit.join();
+        assertEquals(Arrays.asList(new BigDecimal(0), new BigDecimal(1),
+                new BigDecimal(2)), values);
+
+        // the movements visited are not preserved anymore
+        movement = manager.getMovement(1);
+        snapshot.preserve(1, movement);
+        movement.setValue(new BigDecimal(20));
+        values.clear();
+        snapshot.forEachMovement(new MovementVisitor<RuntimeException>() {
+
+            @Override
+            public void visit(long id, Movement movement) {
+                values.add(movement.getValue());
+            }
+        });
+        assertEquals(Arrays.asList(new BigDecimal(20), new BigDecimal(10),
+                new BigDecimal(2)), values);
+    }
+
+    @Test
+    public void checkpointDuringBackgroundSavingTest() throws Exception {
+        String path = "checkpointDuringBackgroundSavingTest.sav";
+        File file = new File(path);
+        File journalFile = new File(path + Manager.JOURNAL_EXTENSION);
+        Manager manager = new Manager();
+        Account account = new Account();
+        account.setName("account");
+        manager.addAccount(account);
+        manager.openJournal(path);
+        for (int i = 0; i < 1000; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setValue(new BigDecimal(i));
+            manager.addMovementWithLongId(movement);
+        }
+
+        // the background saving ends after the checkpoint
+        final CountDownLatch saverBlocked = new CountDownLatch(1);
+        Manager.SAVER.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    saverBlocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        SaveTask task = manager.saveInBackground(path, null);
+        long last = manager.addMovementWithLongId(new Movement());
+        manager.applyMovement(1);
+        manager.checkpoint();
+        assertEquals(0, journalFile.length());
+        long size = file.length();
+        saverBlocked.countDown();
+
+        // the older snapshot does not replace the checkpoint
+        assertEquals(-1L, (long) task.get());
+        assertEquals(size, file.length());
+        Manager recovered = Manager.getSaved(path);
+        assertEquals(1001, recovered.getMovementsIDs().size());
+        assertTrue(recovered.isApplied(1));
+        assertEquals(last + 1, recovered.addMovementWithLongId(
+                new Movement()));
+        for (String name : file.getAbsoluteFile().getParentFile().list()) {
+            assertFalse(name.startsWith(file.getName()) && name.endsWith(".tmp"));
+        }
+
+        // a more recent background saving replaces the file
+        task = manager.saveInBackground(path, null);
+        manager.addMovementWithLongId(new Movement());
+        assertEquals(file.length(), (long) task.get());
+        manager.closeJournal();
+        file.delete();
+        journalFile.delete();
+    }
+
+    @Test
+    public void incrementalSavingTest() throws IOException {
+        Manager manager = new Manager();
+        Account account = new Account();
+        account.setName("account");
+        manager.addAccount(account);
+        Budget budget = new Budget();
+        budget.setName("budget");
+        manager.addBudget(budget);
+        manager.link("account", "budget");
+        for (int i = 0; i < 1000; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setValue(new BigDecimal(i));
+            movement.assignValueToBudget(budget, new BigDecimal(i % 10));
+            manager.addMovementWithLongId(movement);
+        }
+        String path = "incrementalSavingTest.sav";
+        File file = new File(path);
+        File deltaFile = new File(path + Manager.DELTA_EXTENSION);
+
+        // without previous save, the save is full
+        manager.saveIncremental(path, null);
+        assertTrue(file.exists());
+        assertFalse(deltaFile.exists());
+        byte[] base = Files.readAllBytes(file.toPath());
+
+        // only the changes are written, the base file is not changed
+        manager.applyMovement(10);
+        manager.applyMovement(20);
+        manager.removeMovement(30);
+        manager.saveIncremental(path, null);
+        assertTrue(deltaFile.length() * 10 < file.length());
+        Account other = new Account();
+        other.setName("other");
+        manager.addAccount(other);
+        manager.link("other", "budget", new BigDecimal("5"));
+        manager.changeLinkValue("account", "budget", new BigDecimal("3"));
+        manager.cancelMovement(20);
+        Movement movement = new Movement();
+        movement.setAccount(other);
+        movement.setValue(new BigDecimal("7"));
+        long id = manager.addMovementWithLongId(movement);
+        manager.applyMovement(id);
+        manager.saveIncremental(path, null);
+        long deltaLength = deltaFile.length();
+        manager.saveIncremental(path, null);
+        assertEquals(deltaLength, deltaFile.length());
+        assertArrayEquals(base, Files.readAllBytes(file.toPath()));
+
+        // the deltas are merged on the base file
+        for (Manager.Loading loading : Manager.Loading.values()) {
+            Manager recovered = Manager.getSaved(path, null, loading);
+            assertArrayEquals(manager.getAccountNames(), recovered.
+                    getAccountNames());
+            assertEquals(account.getValue(), recovered.getAccount("account").
+                    getValue());
+            assertEquals(other.getValue(), recovered.getAccount("other").
+                    getValue());
+            assertEquals(budget.getValue(), recovered.getBudget("budget").
+                    getValue());
+            assertEquals(new BigDecimal("3"), recovered.getLinkValue(
+                    "account", "budget"));
+            assertEquals(new BigDecimal("5"), recovered.getLinkValue("other",
+                    "budget"));
+            assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                    getMovementsIDs().toArray());
+            assertTrue(recovered.isApplied(10));
+            assertFalse(recovered.isApplied(20));
+            assertTrue(recovered.isApplied(id));
+            assertTrue(recovered.getMovement(id).getAccount() == recovered.
+                    getAccount("other"));
+            assertEquals(id + 1, recovered.addMovementWithLongId(
+                    new Movement()));
+        }
+
+        // a manager recovered continues to append deltas
+        Manager recovered = Manager.getSaved(path);
+        recovered.applyMovement(40);
+        recovered.saveIncremental(path, null);
+        assertTrue(deltaLength < deltaFile.length());
+        recovered = Manager.getSaved(path);
+        assertTrue(recovered.isApplied(40));
+
+        // the deltas of a previous save are ignored
+        byte[] deltas = Files.readAllBytes(deltaFile.toPath());
+        manager.save(path);
+        assertFalse(deltaFile.exists());
+        Files.write(deltaFile.toPath(), deltas);
+        recovered = Manager.getSaved(path);
+        assertFalse(recovered.isApplied(40));
+        assertArrayEquals(manager.getMovementsIDs().toArray(), recovered.
+                getMovementsIDs().toArray());
+
+        // an interrupted delta is ignored, then replaced
+        recovered.applyMovement(50);
+        recovered.saveIncremental(path, null);
+        deltas = Files.readAllBytes(deltaFile.toPath());
+        Files.write(deltaFile.toPath(), Arrays.copyOf(deltas,
+                deltas.length - 1));
+        recovered = Manager.getSaved(path);
+        assertFalse(recovered.isApplied(50));
+        recovered.applyMovement(60);
+        recovered.saveIncremental(path, null);
+        recovered = Manager.getSaved(path);
+        assertFalse(recovered.isApplied(50));
+        assertTrue(recovered.isApplied(60));
+        file.delete();
+        deltaFile.delete();
+    }
+
+    @Test
+    public void recordReadingTest() throws IOException {
+        final Manager manager = new Manager();
+        Account account = new Account();
+        account.setName("account");
+        account.setLimit(new BigDecimal("1000000"));
+        manager.addAccount(account);
+        Budget budget = new Budget();
+        budget.setName("budget");
+        manager.addBudget(budget);
+        manager.link("account", "budget", new BigDecimal("2"));
+        for (int i = 0; i < 10000; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setValue(new BigDecimal(i % 100));
+            movement.assignValueToBudget(budget, new BigDecimal(i % 10));
+            long id = manager.addMovementWithLongId(movement);
+            if (i % 2 == 0) {
+                manager.applyMovement(id);
+            }
+        }
+        manager.removeMovement(5000);
+
+        String path = "recordReadingTest.sav";
+        for (int format = 0; format < 3; format++) {
+            if (format == 0) {
+                manager.save(path);
+            } else if (format == 1) {
+                manager.setCompressionLevel(Deflater.BEST_SPEED);
+                manager.save(path);
+            } else {
+                ObjectOutputStream oos = new ObjectOutputStream(
+                        new FileOutputStream(path));
+                oos.writeObject(manager);
+                oos.close();
+            }
+
+            final List<String> records = new ArrayList<String>();
+            SaveReader.read(path, null, new RecordVisitor<RuntimeException>() {
+
+                private long previousId = 0;
+
+                @Override
+                public void visitAccount(Account account) {
+                    records.add("account " + account.getName() + " "
+                                + account.getValue() + " "
+                                + account.getLimit());
+                }
+
+                @Override
+                public void visitBudget(Budget budget) {
+                    records.add("budget " + budget.getName() + " "
+                                + budget.getValue());
+                }
+
+                @Override
+                public void visitLink(Account account, Budget budget,
+                                      BigDecimal value) {
+                    records.add("link " + account.getName() + " "
+                                + budget.getName() + " " + value);
+                }
+
+                @Override
+                public void visitMovement(long id, Movement movement) {
+                    assertTrue(id > previousId);
+                    previousId = id;
+                    Movement expected = manager.getMovement(id);
+                    assertEquals(expected.getValue(), movement.getValue());
+                    assertEquals(expected.isLocked(), movement.isLocked());
+                    assertEquals("account", movement.getAccount().getName());
+                    assertEquals(expected.getTotalValueAssigned(), movement.
+                            getTotalValueAssigned());
+                    records.add("movement");
+                }
+            });
+            assertEquals("account account " + account.getValue() + " 1000000",
+                    records.get(0));
+            assertEquals("budget budget " + budget.getValue(), records.get(1));
+            assertEquals("link account budget 2", records.get(2));
+            assertEquals(3 + 9999, records.size());
+        }
+
+        // the visitor can stop the reading
+        try {
+            SaveReader.read(path, null, new RecordVisitor<IOException>() {
+
+                @Override
+                public void visitAccount(Account account) {
+                }
+
+                @Override
+                public void visitBudget(Budget budget) throws IOException {
+                    throw new IOException("stop");
+                }
+
+                @Override
+                public void visitLink(Account account, Budget budget,
+                                      BigDecimal value) {
+                    fail("link read after the stop");
+                }
+
+                @Override
+                public void visitMovement(long id, Movement movement) {
+                    fail("movement read after the stop");
+                }
+            });
+            fail("no exception thrown");
+        } catch (IOException e) {
+            assertEquals("stop", e.getMessage());
+        }
+        new File(path).delete();
+    }
+
+    @Test
+    public void encryptionTest() throws Exception {
+        // a key is derived only once for a password and a salt
+        byte[] salt = Crypto.getSessionSalt();
+        assertSame(Crypto.getKey("password", salt, 1000), Crypto.getKey(
+                "password", salt, 1000));
+        assertNotSame(Crypto.getKey("password", salt, 1000), Crypto.getKey(
+                "other", salt, 1000));
+        // only the last keys are kept
+        SecretKey key = Crypto.getKey("password", salt, 1000);
+        for (int i = 0; i < Crypto.CACHED_KEYS; i++) {
+            Crypto.getKey("password" + i, salt, 1);
+        }
+        assertNotSame(key, Crypto.getKey("password", salt, 1000));
+        assertEquals(key, Crypto.getKey("password", salt, 1000));
+
+        Manager manager = new Manager();
+        Account account = new Account();
+        account.setName("account");
+        manager.addAccount(account);
+        Budget budget = new Budget();
+        budget.setName("budget");
+        manager.addBudget(budget);
+        manager.link("account", "budget");
+        for (int i = 0; i < 20000; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setValue(new BigDecimal(i % 100));
+            movement.assignValueToBudget(budget, new BigDecimal(i % 10));
+            manager.addMovementWithLongId(movement);
+        }
+
+        final long[] count = { 0 };
+        RecordVisitor<RuntimeException> counter = new RecordVisitor<RuntimeException>() {
+
+            @Override
+            public void visitAccount(Account account) {
+            }
+
+            @Override
+            public void visitBudget(Budget budget) {
+            }
+
+            @Override
+            public void visitLink(Account account, Budget budget,
+                                  BigDecimal value) {
+            }
+
+            @Override
+            public void visitMovement(long id, Movement movement) {
+                count[0]++;
+            }
+        };
+
+        String path = "encryptionTest.sav";
+        File deltaFile = new File(path + Manager.DELTA_EXTENSION);
+        for (int level : new int[] { Deflater.NO_COMPRESSION,
+                Deflater.BEST_SPEED }) {
+            manager.setCompressionLevel(level);
+            manager.save(path, "password");
+            byte[] bytes = Files.readAllBytes(new File(path).toPath());
+            byte flags = (byte) (level == Deflater.NO_COMPRESSION
+                                 ? BinaryFormat.ENCRYPTED
+                                 : BinaryFormat.ENCRYPTED
+                                   | BinaryFormat.DEFLATED);
+            assertArrayEquals(new byte[] { 'A', 'M', 'G', 'R', 8, flags },
+                    Arrays.copyOf(bytes, 6));
+            assertFalse(new String(bytes, "ISO-8859-1").contains("account"));
+
+            // an encrypted file is loaded eagerly, even if a lazy loading is
+            // asked
+            for (Manager.Loading loading : Manager.Loading.values()) {
+                Manager recovered = Manager.getSaved(path, "password",
+                        loading);
+                assertArrayEquals(manager.getMovementsIDs().toArray(),
+                        recovered.getMovementsIDs().toArray());
+                assertEquals(new BigDecimal("9"), recovered.getMovement(5000).
+                        getValueForBudget(recovered.getBudget("budget")));
+            }
+
+            // the deltas are encrypted too
+            manager.applyMovement(10);
+            manager.saveIncremental(path, "password");
+            assertTrue(deltaFile.exists());
+            assertFalse(new String(Files.readAllBytes(deltaFile.toPath()),
+                    "ISO-8859-1").contains("account"));
+            Manager recovered = Manager.getSaved(path, "password",
+                    Manager.Loading.EAGER);
+            assertTrue(recovered.isApplied(10));
+            assertEquals(account.getValue(), recovered.getAccount("account").
+                    getValue());
+            manager.cancelMovement(10);
+
+            count[0] = 0;
+            SaveReader.read(path, "password", counter);
+            assertEquals(20000, count[0]);
+        }
+
+        // a changed, missing or wrongly decrypted block is reported
+        manager.setCompressionLevel(Deflater.NO_COMPRESSION);
+        manager.save(path, "password");
+        byte[] bytes = Files.readAllBytes(new File(path).toPath());
+        int start = 6 + 8 + Crypto.SALT_SIZE + 4 + Crypto.NONCE_SIZE + 4;
+        int blockLength = 4 + BlockCipherOutputStream.BLOCK_SIZE
+                          + Crypto.TAG_SIZE;
+        assertTrue(bytes.length > start + 2 * blockLength);
+        byte[] changed = bytes.clone();
+        changed[start + blockLength + 100]++;
+        byte[] truncated = Arrays.copyOf(bytes, start + blockLength);
+        for (byte[] corrupted : new byte[][] { changed, truncated }) {
+            Files.write(new File(path).toPath(), corrupted);
+            try {
+                SaveReader.read(path, "password", counter);
+                fail("no exception thrown");
+            } catch (CorruptedBlockException e) {
+                assertEquals(1, e.getBlock());
+            }
+            assertNull(Manager.getSaved(path, "password",
+                    Manager.Loading.EAGER));
+        }
+        byte[] oversized = bytes.clone();
+        ByteBuffer.wrap(oversized).putInt(start - 4, Integer.MAX_VALUE);
+        Files.write(new File(path).toPath(), oversized);
+        try {
+            SaveReader.read(path, "password", counter);
+            fail("no exception thrown");
+        } catch (CorruptedBlockException e) {
+            assertEquals(0, e.getBlock());
+        }
+        Files.write(new File(path).toPath(), bytes);
+        try {
+            SaveReader.read(path, "other", counter);
+            fail("no exception thrown");
+        } catch (CorruptedBlockException e) {
+            assertEquals(0, e.getBlock());
+        }
+        new File(path).delete();
+        deltaFile.delete();
+    }
+
+    @Test
+    public void diskStorageTest() throws IOException {
+        File directory = Files.createTempDirectory("diskStorageTest").toFile();
+        try {
+            new Manager(directory, BTreeMovementStore.MIN_CACHED_PAGES - 1);
+            fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+        Manager memory = new Manager();
+        Manager disk = new Manager(directory,
+                BTreeMovementStore.MIN_CACHED_PAGES);
+        assertEquals(2, directory.list().length);
+        for (Manager manager : new Manager[] { memory, disk }) {
+            for (String name : new String[] { "a", "b" }) {
+                Account account = new Account();
+                account.setName(name);
+                manager.addAccount(account);
+                Budget budget = new Budget();
+                budget.setName(name);
+                manager.addBudget(budget);
+            }
+            for (int i = 0; i < 20000; i++) {
+                Movement movement = new Movement();
+                movement.setAccount(manager.getAccount(i % 2 == 0
+                                                       ? "a"
+                                                       : "b"));
+                movement.setValue(BigDecimal.valueOf(i + 1, 2));
+                if (i % 3 == 0) {
+                    movement.setSense(Sense.OUTPUT);
+                }
+                if (i % 5 == 0) {
+                    movement.assignValueToBudget(manager.getBudget("a"),
+                            BigDecimal.valueOf(i + 1, 2));
+                }
+                long id = manager.addMovementWithLongId(movement);
+                if (i % 2 == 0) {
+                    manager.applyMovement(id);
+                }
+            }
+            for (long id = 5001; id <= 8000; id++) {
+                manager.removeMovement(id);
+            }
+            for (long id = 1; id <= 1000; id += 4) {
+                manager.cancelMovement(id);
+            }
+            Movement changed = manager.getMovement(2);
+            changed.setValue(new BigDecimal("123.45"));
+            manager.updateMovement(2, changed);
+            manager.setScale(2);
+        }
+        assertEquals(17000, disk.getMovementsIDs().size());
+        assertEquals(new ArrayList<BigDecimal>(memory.getMovementsIDs()),
+                new ArrayList<BigDecimal>(disk.getMovementsIDs()));
+        for (BigDecimal id : memory.getMovementsIDs()) {
+            Movement expected = memory.getMovement(id);
+            Movement actual = disk.getMovement(id);
+            assertEquals(expected.getValue(), actual.getValue());
+            assertEquals(expected.getSense(), actual.getSense());
+            assertEquals(expected.isLocked(), actual.isLocked());
+            assertEquals(expected.getAccount().getName(), actual.getAccount().
+                    getName());
+            assertSame(disk.getAccount(expected.getAccount().getName()),
+                    actual.getAccount());
+            assertArrayEquals(expected.getNamesOfBudgetsAssigned(), actual.
+                    getNamesOfBudgetsAssigned());
+            assertEquals(expected.getUnits(), actual.getUnits());
+        }
+        for (String name : new String[] { "a", "b" }) {
+            assertEquals(memory.getAccount(name).getValue(), disk.
+                    getAccount(name).getValue());
+            assertEquals(memory.getBudget(name).getValue(), disk.
+                    getBudget(name).getValue());
+        }
+        long[] found = null;
+        for (Manager manager : new Manager[] { memory, disk }) {
+            MovementQuery query = new MovementQuery();
+            query.setBudget(manager.getBudget("a"));
+            query.setApplied(true);
+            if (found == null) {
+                found = manager.findMovements(query);
+                assertTrue(found.length > 0);
+            } else {
+                assertArrayEquals(found, manager.findMovements(query));
+            }
+        }
+
+        String path = "diskStorageTest.sav";
+        disk.save(path);
+        assertEquals(17000, Manager.getSaved(path).getMovementsIDs().size());
+        new File(path).delete();
+
+        // IDs put in any order
+        Manager shuffled = new Manager(directory,
+                BTreeMovementStore.MIN_CACHED_PAGES);
+        Account account = new Account();
+        account.setName("a");
+        shuffled.addAccount(account);
+        List<Long> ids = new ArrayList<Long>();
+        for (long id = 1; id <= 10000; id++) {
+            ids.add(id * 3);
+        }
+        Collections.shuffle(ids, new Random(0));
+        for (long id : ids) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setValue(BigDecimal.valueOf(id));
+            shuffled.restoreMovement(id, movement);
+        }
+        long count = 0;
+        for (BigDecimal id : shuffled.getMovementsIDs()) {
+            count++;
+            assertEquals(count * 3, id.longValueExact());
+            assertEquals(id, shuffled.getMovement(id).getValue());
+        }
+        assertEquals(10000, count);
+        assertEquals(4, directory.list().length);
+
+        disk.close();
+        shuffled.close();
+        assertEquals(0, directory.list().length);
+        directory.delete();
+    }
+
+    @Test
+    public void diskStorageChangeTest() {
+        Manager manager = new Manager(null,
+                BTreeMovementStore.MIN_CACHED_PAGES);
+        Account account = new Account();
+        account.setName("account");
+        manager.addAccount(account);
+        for (int i = 0; i < 3000; i++) {
+            Movement movement = new Movement();
+            movement.setAccount(account);
+            movement.setValue(BigDecimal.ONE);
+            manager.addMovementWithLongId(movement);
+        }
+
+        // a movement changed after many others have been read
+        Movement movement = manager.getMovement(1);
+        for (long id = 2; id <= 2000; id++) {
+            assertEquals(BigDecimal.ONE, manager.getMovement(id).getValue());
+        }
+        movement.setValue(BigDecimal.TEN);
+        manager.updateMovement(1, movement);
+        for (long id = 2000; id <= 3000; id++) {
+            manager.getMovement(id);
+        }
+        assertEquals(BigDecimal.TEN, manager.getMovement(1).getValue());
+
+        // a copy changed does not change the manager
+        manager.getMovement(2).setValue(BigDecimal.TEN);
+        assertEquals(BigDecimal.ONE, manager.getMovement(2).getValue());
+
+        // the changes made by the manager are kept
+        manager.applyMovement(1);
+        manager.applyMovement(2);
+        for (long id = 3; id <= 3000; id++) {
+            manager.getMovement(id);
+        }
+        assertTrue(manager.getMovement(1).isLocked());
+        assertTrue(manager.getMovement(2).isLocked());
+        assertEquals(new BigDecimal(11), account.getValue());
+        manager.cancelMovement(1);
+        for (long id = 2; id <= 3000; id++) {
+            manager.getMovement(id);
+        }
+        assertFalse(manager.getMovement(1).isLocked());
+        assertEquals(BigDecimal.ONE, account.getValue());
+        try {
+            manager.updateMovement(2, manager.getMovement(2));
+            fail("no exception thrown");
+        } catch (AlreadyAppliedMovementException e) {
+        }
+
+        // the movements read have the scale of the manager
+        manager.setScale(2);
+        assertEquals(1000L, manager.getMovement(1).getUnits());
+        manager.close();
+    }
+
     /**
      * A manager with 3 accounts (named 1 to 3) and 2 budgets (named 1 and 2).
      *